@@ -0,0 +1,99 @@
+package ffnn.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+// runs the benchmarks selected by the usual JMH command line with the gc profiler on, then prints one line per
+// benchmark with ops/s, GFLOP/s and the allocation per op. -l, -h and -lp go straight to JMH
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = Arrays.asList(args);
+        if (arguments.contains("-l") || arguments.contains("-h") || arguments.contains("-lp")) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+
+        System.out.println();
+        System.out.printf("%-45s %-12s %14s %10s %14s%n", "Benchmark", "Shape", "ops/s", "GFLOP/s", "alloc B/op");
+        for (RunResult result : results) {
+            String benchmark = result.getParams().getBenchmark();
+            String name = benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1);
+            String shape = result.getParams().getParam("shape");
+            double opsPerSecond = result.getPrimaryResult().getScore();
+            double flops = flopsPerOp(name, shape);
+
+            System.out.printf("%-45s %-12s %14.1f %10s %14s%n", name, shape == null ? "" : shape, opsPerSecond,
+                    flops > 0 ? String.format("%.2f", opsPerSecond * flops / 1e9) : "-",
+                    allocationPerOp(result.getSecondaryResults()));
+        }
+    }
+
+    // floating point operations of one call, exp and compares count as one. 0 for pure data movement
+    static double flopsPerOp(String benchmark, String shape) {
+        switch (benchmark) {
+            case "MatrixBenchmark.matrixMultiply":
+            case "MatrixBenchmark.matrixMultiplyAllocating": {
+                int[] mkn = Core.shape(shape);
+                return 2.0 * mkn[0] * mkn[1] * mkn[2];
+            }
+            case "ElementWiseBenchmark.elementWiseMultiply": {
+                int[] mn = Core.shape(shape);
+                return (double) mn[0] * mn[1];
+            }
+            case "ElementWiseBenchmark.softmax": {
+                // max, exp, sum, divide
+                int[] mn = Core.shape(shape);
+                return 4.0 * mn[0] * mn[1];
+            }
+            case "LayerBenchmark.forwardPass": {
+                // X * W, bias, activation
+                int[] inOut = Core.shape(shape);
+                return LayerBenchmark.BATCH_SIZE * (2.0 * inOut[0] * inOut[1] + 2.0 * inOut[1]);
+            }
+            case "LayerBenchmark.backProp": {
+                // activation derivative, X^T * dZ, bias gradient, dZ * W^T
+                int[] inOut = Core.shape(shape);
+                return LayerBenchmark.BATCH_SIZE * (4.0 * inOut[0] * inOut[1] + 3.0 * inOut[1]);
+            }
+            case "TrainStepBenchmark.trainStep": {
+                // the three gemms per layer (forward, weight gradient, input gradient), the usual 6 * batch * weights
+                double weights = 0;
+                int in = TrainStepBenchmark.INPUT_LEN;
+                for (int size : TrainStepBenchmark.HIDDEN_LAYER_SIZES) {
+                    weights += (double) in * size;
+                    in = size;
+                }
+                weights += (double) in * TrainStepBenchmark.OUTPUT_LEN;
+                return 6.0 * TrainStepBenchmark.BATCH_SIZE * weights;
+            }
+            default:
+                return 0;
+        }
+    }
+
+    private static String allocationPerOp(Map<String, Result> secondary) {
+        for (Map.Entry<String, Result> entry : secondary.entrySet()) {
+            if (entry.getKey().endsWith("gc.alloc.rate.norm")) {
+                return String.format("%.1f", entry.getValue().getScore());
+            }
+        }
+        return "-";
+    }
+}
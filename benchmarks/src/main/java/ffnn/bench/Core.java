@@ -0,0 +1,148 @@
+package ffnn.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Random;
+
+// the network classes live in the unnamed package, which cannot be imported, and JMH refuses benchmarks in the
+// unnamed package. so the benchmarks reach them through method handles: static final handles are constants to the
+// JIT and get inlined like a direct call, the Object parameters and results cost a checkcast at most
+final class Core {
+
+    static final Class<?> MATRIX = type("Matrix");
+    static final Class<?> MATRIX_OPERATIONS = type("MatrixOperations");
+    static final Class<?> HIDDEN_LAYER = type("HiddenLayer");
+    static final Class<?> OUTPUT_LAYER = type("OutputLayer");
+    static final Class<?> NEURAL_NETWORK = type("NeuralNetwork");
+
+    private static final MethodHandle NEW_MATRIX = constructor(MATRIX, int.class, int.class);
+    private static final MethodHandle MATRIX_DATA = getter(MATRIX, "data", float[].class);
+
+    // (A, B) -> new A * B, (A, B, out) -> out = A * B
+    static final MethodHandle MATRIX_MULTIPLY = method(MATRIX_OPERATIONS, "matrixMultiply", MATRIX, MATRIX, MATRIX);
+    static final MethodHandle MATRIX_MULTIPLY_INTO = method(MATRIX_OPERATIONS, "matrixMultiply", MATRIX, MATRIX, MATRIX, MATRIX);
+    // (A, out) -> out = A^T
+    static final MethodHandle TRANSPOSE_INTO = method(MATRIX_OPERATIONS, "transpose", MATRIX, MATRIX, MATRIX);
+    // (A, B, out) -> out = A .* B
+    static final MethodHandle ELEMENT_WISE_MULTIPLY_INTO = method(MATRIX_OPERATIONS, "elementWiseMultiply", MATRIX, MATRIX, MATRIX, MATRIX);
+    // (Z, out) -> out = softmax of every row of Z
+    static final MethodHandle SOFTMAX_INTO = method(OUTPUT_LAYER, "softmax", MATRIX, MATRIX, MATRIX);
+
+    private static final MethodHandle NEW_HIDDEN_LAYER = constructor(HIDDEN_LAYER, int.class, int.class, float.class, float.class, Random.class);
+    // (layer, X) -> activations, (layer, gradients of the activations) -> gradients of X
+    static final MethodHandle HIDDEN_FORWARD = method(HIDDEN_LAYER, "forwardPass", MATRIX, HIDDEN_LAYER, MATRIX);
+    static final MethodHandle HIDDEN_BACKPROP = method(HIDDEN_LAYER, "backProp", MATRIX, HIDDEN_LAYER, MATRIX);
+
+    private static final MethodHandle NEW_NETWORK = constructor(NEURAL_NETWORK, int.class, int[].class, int.class, float.class, float.class, long.class);
+    // (network, batch, labels) -> loss, one forward + backward pass and parameter update
+    static final MethodHandle TRAIN_STEP = method(NEURAL_NETWORK, "trainStep", float.class, NEURAL_NETWORK, MATRIX, int[].class);
+
+    private Core() {
+    }
+
+    // rows x cols matrix of N(0, 1) values
+    static Object randomMatrix(int rows, int cols, Random random) {
+        try {
+            Object matrix = NEW_MATRIX.invoke(rows, cols);
+            float[] data = (float[]) MATRIX_DATA.invoke(matrix);
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (float) random.nextGaussian();
+            }
+            return matrix;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static Object hiddenLayer(int inputLen, int outputLen, Random random) {
+        try {
+            return NEW_HIDDEN_LAYER.invoke(inputLen, outputLen, 0.008f, 0.9f, random);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static Object network(int inputLen, int[] hiddenLayerSizes, int outputLen, long seed) {
+        try {
+            return NEW_NETWORK.invoke(inputLen, hiddenLayerSizes, outputLen, 0.008f, 0.9f, seed);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    // "32x784x256" -> {32, 784, 256}
+    static int[] shape(String shape) {
+        String[] parts = shape.split("x");
+        int[] dims = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            dims[i] = Integer.parseInt(parts[i]);
+        }
+        return dims;
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandles.Lookup lookup(Class<?> owner) throws IllegalAccessException {
+        // private access to the unnamed module, for package-private members like NeuralNetwork.trainStep
+        return MethodHandles.privateLookupIn(owner, MethodHandles.lookup());
+    }
+
+    // handle with every reference type erased to Object, so it can be called with invokeExact from here.
+    // for instance methods the receiver is the first parameter type
+    private static MethodHandle method(Class<?> owner, String name, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            boolean instance = parameterTypes.length > 0 && parameterTypes[0] == owner;
+            MethodHandle handle;
+            if (instance) {
+                Class<?>[] rest = new Class<?>[parameterTypes.length - 1];
+                System.arraycopy(parameterTypes, 1, rest, 0, rest.length);
+                handle = lookup(owner).findVirtual(owner, name, MethodType.methodType(returnType, rest));
+            } else {
+                handle = lookup(owner).findStatic(owner, name, MethodType.methodType(returnType, parameterTypes));
+            }
+            return handle.asType(erase(handle.type()));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> owner, Class<?>... parameterTypes) {
+        try {
+            MethodHandle handle = lookup(owner).findConstructor(owner, MethodType.methodType(void.class, parameterTypes));
+            return handle.asType(erase(handle.type()));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle getter(Class<?> owner, String name, Class<?> type) {
+        try {
+            MethodHandle handle = lookup(owner).findGetter(owner, name, type);
+            return handle.asType(erase(handle.type()));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // core classes -> Object, primitives and jdk types stay
+    private static MethodType erase(MethodType type) {
+        MethodType erased = type;
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (isCoreClass(type.parameterType(i))) {
+                erased = erased.changeParameterType(i, Object.class);
+            }
+        }
+        return isCoreClass(type.returnType()) ? erased.changeReturnType(Object.class) : erased;
+    }
+
+    private static boolean isCoreClass(Class<?> type) {
+        return !type.isPrimitive() && !type.isArray() && type.getPackageName().isEmpty();
+    }
+}
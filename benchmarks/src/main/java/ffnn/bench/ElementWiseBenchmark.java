@@ -0,0 +1,60 @@
+package ffnn.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// memory bound kernels on M x N matrices: activations of a batch of 32 and the weight matrices
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class ElementWiseBenchmark {
+
+    @Param({"32x10", "32x256", "784x256"})
+    public String shape;
+
+    private Object a;
+    private Object b;
+    private Object out;
+    private Object transposed;
+
+    @Setup
+    public void setup() {
+        int[] mn = Core.shape(shape);
+        Random random = new Random(42);
+        a = Core.randomMatrix(mn[0], mn[1], random);
+        b = Core.randomMatrix(mn[0], mn[1], random);
+        out = Core.randomMatrix(mn[0], mn[1], random);
+        transposed = Core.randomMatrix(mn[1], mn[0], random);
+    }
+
+    @Benchmark
+    public Object transpose() throws Throwable {
+        return (Object) Core.TRANSPOSE_INTO.invokeExact(a, transposed);
+    }
+
+    @Benchmark
+    public Object elementWiseMultiply() throws Throwable {
+        return (Object) Core.ELEMENT_WISE_MULTIPLY_INTO.invokeExact(a, b, out);
+    }
+
+    // row-wise softmax, 32x10 is the output layer
+    @Benchmark
+    public Object softmax() throws Throwable {
+        return (Object) Core.SOFTMAX_INTO.invokeExact(a, out);
+    }
+}
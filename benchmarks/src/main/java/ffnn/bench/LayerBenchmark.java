@@ -0,0 +1,57 @@
+package ffnn.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// one hidden layer, inputLen x outputLen, on a batch of 32. backProp reuses the activations of the forward pass
+// done in setup, it only computes gradients and does not change the weights
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class LayerBenchmark {
+
+    public static final int BATCH_SIZE = 32;
+
+    @Param({"784x256", "256x128"})
+    public String shape;
+
+    private Object layer;
+    private Object input;
+    private Object outputGradients;
+
+    @Setup
+    public void setup() throws Throwable {
+        int[] inOut = Core.shape(shape);
+        Random random = new Random(42);
+        layer = Core.hiddenLayer(inOut[0], inOut[1], random);
+        input = Core.randomMatrix(BATCH_SIZE, inOut[0], random);
+        outputGradients = Core.randomMatrix(BATCH_SIZE, inOut[1], random);
+        // the layer keeps the input and pre-activations of its last forward pass for backProp
+        forwardPass();
+    }
+
+    @Benchmark
+    public Object forwardPass() throws Throwable {
+        return (Object) Core.HIDDEN_FORWARD.invokeExact(layer, input);
+    }
+
+    @Benchmark
+    public Object backProp() throws Throwable {
+        return (Object) Core.HIDDEN_BACKPROP.invokeExact(layer, outputGradients);
+    }
+}
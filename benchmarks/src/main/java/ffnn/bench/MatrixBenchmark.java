@@ -0,0 +1,54 @@
+package ffnn.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// gemm at the shapes of the network's forward pass with batch 32: M x K times K x N
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class MatrixBenchmark {
+
+    @Param({"32x784x256", "32x256x128", "32x128x10"})
+    public String shape;
+
+    private Object a;
+    private Object b;
+    private Object out;
+
+    @Setup
+    public void setup() {
+        int[] mkn = Core.shape(shape);
+        Random random = new Random(42);
+        a = Core.randomMatrix(mkn[0], mkn[1], random);
+        b = Core.randomMatrix(mkn[1], mkn[2], random);
+        out = Core.randomMatrix(mkn[0], mkn[2], random);
+    }
+
+    // into a preallocated result, as the layers use it
+    @Benchmark
+    public Object matrixMultiply() throws Throwable {
+        return (Object) Core.MATRIX_MULTIPLY_INTO.invokeExact(a, b, out);
+    }
+
+    // with a new result matrix per call, the gc profiler shows the allocation
+    @Benchmark
+    public Object matrixMultiplyAllocating() throws Throwable {
+        return (Object) Core.MATRIX_MULTIPLY.invokeExact(a, b);
+    }
+}
@@ -0,0 +1,51 @@
+package ffnn.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// one step of trainBatch on the real network (784-256-128-10, batch 32): forward, loss, backward and the
+// parameter update of every layer, without the batch loading
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class TrainStepBenchmark {
+
+    public static final int INPUT_LEN = 784;
+    public static final int[] HIDDEN_LAYER_SIZES = {256, 128};
+    public static final int OUTPUT_LEN = 10;
+    public static final int BATCH_SIZE = 32;
+
+    private Object network;
+    private Object batch;
+    private int[] labels;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        network = Core.network(INPUT_LEN, HIDDEN_LAYER_SIZES, OUTPUT_LEN, 42);
+        batch = Core.randomMatrix(BATCH_SIZE, INPUT_LEN, random);
+        labels = new int[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            labels[i] = random.nextInt(OUTPUT_LEN);
+        }
+    }
+
+    @Benchmark
+    public float trainStep() throws Throwable {
+        return (float) Core.TRAIN_STEP.invokeExact(network, batch, labels);
+    }
+}
@@ -0,0 +1,52 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class NeuralNetworkTest {
+
+    private static NeuralNetwork network() {
+        return new NeuralNetwork(6, new int[] {8}, 3, 0.01f, 0.9f, 7);
+    }
+
+    @Test
+    void evaluatesAnEmptySet() {
+        NeuralNetwork network = network();
+        assertEquals(0, network.predict(new Matrix(0, 6)).length);
+
+        NeuralNetwork.Evaluation evaluation = network.evaluate(new Matrix(0, 6), new int[0]);
+        assertEquals(0, evaluation.predictions.length);
+        assertEquals(0f, evaluation.accuracy);
+        assertEquals(0f, evaluation.loss);
+
+        ByteMatrix pixels = ByteMatrix.normalized(new byte[0], 0, 6, new float[6], ones(6));
+        assertEquals(0, network.evaluate(pixels, new int[0]).predictions.length);
+    }
+
+    @Test
+    void trainsWithAnEmptyValidationSplit() {
+        Random random = new Random(1);
+        Matrix data = new Matrix(64, 6);
+        int[] labels = new int[64];
+        for (int i = 0; i < data.rows; i++) {
+            labels[i] = random.nextInt(3);
+            for (int j = 0; j < data.cols; j++) {
+                data.set(i, j, (float) random.nextGaussian() + labels[i]);
+            }
+        }
+
+        NeuralNetwork network = network();
+        TrainingController controller = new TrainingController(System.nanoTime() + 60_000_000_000L, 0.99f);
+        controller.setValidation(new Matrix(0, 6), new int[0], 100, 1);
+        network.setController(controller);
+        network.trainBatch(data, labels, 16, 2);
+        assertEquals(64, network.predict(data).length);
+    }
+
+    private static float[] ones(int n) {
+        float[] values = new float[n];
+        java.util.Arrays.fill(values, 1f);
+        return values;
+    }
+}
@@ -0,0 +1,86 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+// the int8 model of a trained network has to predict what the float model predicts, on rows it was not
+// calibrated on, with the scalar loops and with VectorKernels.int8Kernel4. the row count is not a multiple of
+// the 4 row tile, so the single row tail runs too
+class QuantizedNetworkTest {
+
+    private static final int INPUT_LEN = 64, CLASSES = 4;
+    private static final int ROWS = 1203, CALIBRATION_ROWS = 300;
+    private static final float MIN_AGREEMENT = 0.97f;
+
+    private boolean vectorApi;
+
+    @BeforeEach
+    void saveVectorApi() {
+        vectorApi = MatrixOperations.useVectorApi;
+    }
+
+    @AfterEach
+    void restoreVectorApi() {
+        MatrixOperations.setVectorApi(vectorApi);
+    }
+
+    @Test
+    void scalarPredictionsAgreeWithTheFloatModel() {
+        MatrixOperations.setVectorApi(false);
+        assertAgreement("scalar");
+    }
+
+    @Test
+    void vectorPredictionsAgreeWithTheFloatModel() {
+        assumeTrue(MatrixOperations.isVectorApiAvailable(), "jdk.incubator.vector is not available");
+        MatrixOperations.setVectorApi(true);
+        assertAgreement("int8Kernel4");
+    }
+
+    private static void assertAgreement(String path) {
+        // every class lights up its own band of pixels on a noisy background
+        Random random = new Random(3);
+        byte[] pixels = new byte[ROWS * INPUT_LEN];
+        int[] labels = new int[ROWS];
+        int band = INPUT_LEN / CLASSES;
+        for (int i = 0; i < ROWS; i++) {
+            labels[i] = random.nextInt(CLASSES);
+            for (int j = 0; j < INPUT_LEN; j++) {
+                int value = random.nextInt(3) == 0 ? 0 : random.nextInt(120);
+                if (j / band == labels[i]) {
+                    value += 100;
+                }
+                pixels[i * INPUT_LEN + j] = (byte) value;
+            }
+        }
+        float[] mean = new float[INPUT_LEN], std = new float[INPUT_LEN];
+        Arrays.fill(mean, 0.3f);
+        Arrays.fill(std, 0.25f);
+        ByteMatrix data = ByteMatrix.normalized(pixels, ROWS, INPUT_LEN, mean, std);
+
+        NeuralNetwork network = new NeuralNetwork(INPUT_LEN, new int[] {32, 16}, CLASSES, 0.01f, 0.9f, 7);
+        try {
+            network.trainBatch(data, labels, 32, 3);
+
+            int testRows = ROWS - CALIBRATION_ROWS;
+            QuantizedNetwork quantized = QuantizedNetwork.quantize(network, data.rows(testRows, ROWS));
+            ByteMatrix test = data.rows(0, testRows);
+            int[] expected = network.evaluate(test, null).predictions;
+            int[] predicted = quantized.predict(test);
+
+            int agree = 0;
+            for (int i = 0; i < testRows; i++) {
+                agree += expected[i] == predicted[i] ? 1 : 0;
+            }
+            assertTrue(agree >= MIN_AGREEMENT * testRows,
+                    path + ": int8 and float predictions agree on " + agree + " of " + testRows + " rows");
+        } finally {
+            network.shutdown();
+        }
+    }
+}
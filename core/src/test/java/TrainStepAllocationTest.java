@@ -0,0 +1,89 @@
+import com.sun.management.ThreadMXBean;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+// after a warm-up a training step reuses the buffers of the layers, the optimizer state and (with more than one
+// thread) the parked step workers, so neither the calling thread nor the workers allocate anything.
+// a round can still see a one-off allocation when the jit deoptimizes a method and materializes objects it had
+// scalar-replaced, so the steps are measured in a few rounds and one of them has to stay at 0
+class TrainStepAllocationTest {
+
+    private static final int BATCH = 32;
+    private static final int WARMUP_STEPS = 3000;
+    private static final int STEPS = 500;
+    private static final int ROUNDS = 5;
+
+    @Test
+    void singleThread() {
+        assertSteadyStateAllocation(1);
+    }
+
+    @Test
+    void multipleThreads() {
+        assertSteadyStateAllocation(3);
+    }
+
+    private static void assertSteadyStateAllocation(int threads) {
+        ThreadMXBean mx = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(mx.isThreadAllocatedMemorySupported(), "allocation counters are not supported");
+        mx.setThreadAllocatedMemoryEnabled(true);
+
+        Random random = new Random(1);
+        Matrix x = new Matrix(BATCH, 100);
+        for (int i = 0; i < x.data.length; i++) {
+            x.data[i] = (float) random.nextGaussian();
+        }
+        int[] y = new int[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            y[i] = random.nextInt(10);
+        }
+
+        NeuralNetwork network = new NeuralNetwork(100, new int[] {64, 32}, 10, 0.008f, 0.9f, 7);
+        network.setNumThreads(threads);
+        try {
+            for (int i = 0; i < WARMUP_STEPS; i++) {
+                network.trainStep(x, y);
+            }
+            long[] workers = stepWorkerIds();
+            assertEquals(threads - 1, workers.length, "step worker threads");
+
+            long fewest = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS && fewest > 0; round++) {
+                long before = allocated(mx, workers);
+                for (int i = 0; i < STEPS; i++) {
+                    network.trainStep(x, y);
+                }
+                fewest = Math.min(fewest, allocated(mx, workers) - before);
+            }
+            assertEquals(0, fewest, "bytes allocated by " + STEPS + " steps with " + threads + " threads");
+        } finally {
+            network.shutdown();
+        }
+    }
+
+    // bytes allocated so far by the calling thread and the given threads, allocates nothing itself
+    private static long allocated(ThreadMXBean mx, long[] threadIds) {
+        long bytes = mx.getCurrentThreadAllocatedBytes();
+        for (long id : threadIds) {
+            bytes += mx.getThreadAllocatedBytes(id);
+        }
+        return bytes;
+    }
+
+    private static long[] stepWorkerIds() {
+        List<Long> ids = new ArrayList<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("ffnn-step")) {
+                ids.add(thread.getId());
+            }
+        }
+        return ids.stream().mapToLong(Long::longValue).toArray();
+    }
+}
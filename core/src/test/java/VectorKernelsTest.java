@@ -0,0 +1,262 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+// every operation with a VectorKernels path runs once on the scalar loops and once on the kernels, on the same
+// inputs, and the results have to agree element by element. the sizes are not multiples of the vector length
+// (and cross the gemm tiles), the operands are views with an offset and a row stride, and for outputs the whole
+// backing array is compared so that a kernel writing past its row shows up as well
+class VectorKernelsTest {
+
+    // {rows of A, cols of A = rows of B, cols of B}
+    private static final int[][] SHAPES = {
+            {1, 1, 1}, {3, 5, 7}, {4, 8, 16}, {5, 17, 31}, {7, 13, 33}, {37, 131, 263}, {64, 129, 10}};
+    private static final int[] LENGTHS = {1, 3, 7, 8, 15, 16, 17, 31, 33, 100, 263};
+
+    // relative and absolute tolerance, |scalar - simd| <= REL * |scalar| + ABS
+    private static final float GEMM_REL = 1e-4f, GEMM_ABS = 1e-4f;
+    private static final float REL = 1e-5f, ABS = 1e-7f;
+
+    private boolean vectorApi;
+
+    @BeforeEach
+    void requireVectorApi() {
+        assumeTrue(MatrixOperations.isVectorApiAvailable(), "jdk.incubator.vector is not available");
+        vectorApi = MatrixOperations.useVectorApi;
+    }
+
+    @AfterEach
+    void restoreVectorApi() {
+        MatrixOperations.setVectorApi(vectorApi);
+    }
+
+    // runs op without and with the kernels, op returns the array it wrote
+    private interface Op {
+        float[] run();
+    }
+
+    private static void assertParity(String what, Op op, float rel, float abs) {
+        MatrixOperations.setVectorApi(false);
+        float[] expected = op.run().clone();
+        MatrixOperations.setVectorApi(true);
+        float[] actual = op.run();
+        assertEquals(expected.length, actual.length, what);
+        for (int i = 0; i < expected.length; i++) {
+            float e = expected[i], a = actual[i];
+            assertTrue(Math.abs(e - a) <= rel * Math.abs(e) + abs || Float.compare(e, a) == 0,
+                    what + ": element " + i + " is " + a + " with the kernels, " + e + " without");
+        }
+    }
+
+    // rows x cols gaussian values inside a bigger array, starting at an offset and with padding after each row
+    private static Matrix view(int rows, int cols, Random random) {
+        int offset = 3, rowStride = cols + 5;
+        float[] data = new float[offset + rows * rowStride];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (float) random.nextGaussian();
+        }
+        return new Matrix(data, offset, rows, cols, rowStride, 1);
+    }
+
+    // a fresh copy of m's backing array in the same layout, so that every run starts from the same output
+    private static Matrix fresh(Matrix m) {
+        return new Matrix(m.data.clone(), m.offset, m.rows, m.cols, m.rowStride, m.colStride);
+    }
+
+    private static float[] gaussian(int n, Random random) {
+        float[] values = new float[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = (float) random.nextGaussian();
+        }
+        return values;
+    }
+
+    @Test
+    void gemmNN() {
+        Random random = new Random(1);
+        for (int[] s : SHAPES) {
+            Matrix a = view(s[0], s[1], random), b = view(s[1], s[2], random), c = view(s[0], s[2], random);
+            assertParity("gemm " + s[0] + "x" + s[1] + "x" + s[2], () -> {
+                Matrix out = fresh(c);
+                MatrixOperations.gemm(a, b, out);
+                return out.data;
+            }, GEMM_REL, GEMM_ABS);
+            assertParity("matrixMultiply " + s[0] + "x" + s[1] + "x" + s[2], () -> {
+                Matrix out = fresh(c);
+                MatrixOperations.matrixMultiply(a, b, out);
+                return out.data;
+            }, GEMM_REL, GEMM_ABS);
+        }
+    }
+
+    @Test
+    void gemmTransA() {
+        Random random = new Random(2);
+        for (int[] s : SHAPES) {
+            // A is stored as its transpose, the kernels read it with a column stride
+            Matrix at = view(s[1], s[0], random), b = view(s[1], s[2], random), c = view(s[0], s[2], random);
+            assertParity("gemm A^T " + s[0] + "x" + s[1] + "x" + s[2], () -> {
+                Matrix out = fresh(c);
+                MatrixOperations.gemm(at.transpose(), b, out);
+                return out.data;
+            }, GEMM_REL, GEMM_ABS);
+            assertParity("matrixMultiplyTransA " + s[0] + "x" + s[1] + "x" + s[2], () -> {
+                Matrix out = fresh(c);
+                MatrixOperations.matrixMultiplyTransA(at, b, out);
+                return out.data;
+            }, GEMM_REL, GEMM_ABS);
+        }
+    }
+
+    @Test
+    void gemmTransB() {
+        Random random = new Random(3);
+        for (int[] s : SHAPES) {
+            Matrix a = view(s[0], s[1], random), bt = view(s[2], s[1], random), c = view(s[0], s[2], random);
+            assertParity("gemm B^T " + s[0] + "x" + s[1] + "x" + s[2], () -> {
+                Matrix out = fresh(c);
+                MatrixOperations.gemm(a, bt.transpose(), out);
+                return out.data;
+            }, GEMM_REL, GEMM_ABS);
+            assertParity("matrixMultiplyTransB " + s[0] + "x" + s[1] + "x" + s[2], () -> {
+                Matrix out = fresh(c);
+                MatrixOperations.matrixMultiplyTransB(a, bt, out);
+                return out.data;
+            }, GEMM_REL, GEMM_ABS);
+        }
+    }
+
+    @Test
+    void denseForward() {
+        Random random = new Random(4);
+        int[] activations = {MatrixOperations.ACTIVATION_NONE, MatrixOperations.ACTIVATION_LEAKY_RELU,
+                MatrixOperations.ACTIVATION_SOFTMAX};
+        for (int[] s : SHAPES) {
+            Matrix x = view(s[0], s[1], random), w = view(s[1], s[2], random);
+            Matrix z = view(s[0], s[2], random), out = view(s[0], s[2], random);
+            float[] bias = gaussian(s[2], random);
+            for (int activation : activations) {
+                // softmax is fused for the narrow shapes and a separate pass for the one wider than a tile
+                assertParity("denseForward activation " + activation + " " + s[0] + "x" + s[1] + "x" + s[2], () -> {
+                    Matrix zs = fresh(z), outs = fresh(out);
+                    MatrixOperations.denseForward(x, w, bias, activation, zs, outs);
+                    float[] both = new float[zs.data.length + outs.data.length];
+                    System.arraycopy(zs.data, 0, both, 0, zs.data.length);
+                    System.arraycopy(outs.data, 0, both, zs.data.length, outs.data.length);
+                    return both;
+                }, GEMM_REL, GEMM_ABS);
+            }
+        }
+    }
+
+    @Test
+    void addAndMultiply() {
+        Random random = new Random(5);
+        for (int[] s : SHAPES) {
+            Matrix a = view(s[0], s[2], random), b = view(s[0], s[2], random), c = view(s[0], s[2], random);
+            assertParity("addMatrix " + s[0] + "x" + s[2], () -> {
+                Matrix out = fresh(c);
+                MatrixOperations.addMatrix(a, b, out);
+                return out.data;
+            }, REL, ABS);
+            assertParity("elementWiseMultiply " + s[0] + "x" + s[2], () -> {
+                Matrix out = fresh(c);
+                MatrixOperations.elementWiseMultiply(a, b, out);
+                return out.data;
+            }, REL, ABS);
+            // in place, out is one of the operands
+            assertParity("addMatrix in place " + s[0] + "x" + s[2], () -> {
+                Matrix out = fresh(a);
+                MatrixOperations.addMatrix(out, b, out);
+                return out.data;
+            }, REL, ABS);
+        }
+    }
+
+    // inputs of the row functions, with exact zeros for the <= 0 branch of LeakyReLU
+    private static float[] logits(int n, Random random) {
+        float[] z = gaussian(n, random);
+        for (int i = 0; i < n; i += 5) {
+            z[i] = 0f;
+        }
+        return z;
+    }
+
+    @Test
+    void leakyReLU() {
+        Random random = new Random(6);
+        for (int n : LENGTHS) {
+            float[] z = logits(n + 4, random), out = gaussian(n + 6, random);
+            assertParity("LeakyReLU " + n, () -> {
+                float[] o = out.clone();
+                ActivationFunctions.LeakyReLU(z, 4, o, 2, n);
+                return o;
+            }, REL, ABS);
+            assertParity("D_LeakyReLU " + n, () -> {
+                float[] o = out.clone();
+                Derivatives.D_LeakyReLU(z, 4, o, 2, n);
+                return o;
+            }, REL, ABS);
+        }
+    }
+
+    @Test
+    void leakyReLUTimes() {
+        Random random = new Random(7);
+        for (int n : LENGTHS) {
+            float[] z = logits(n + 4, random), g = gaussian(n + 1, random), out = gaussian(n + 6, random);
+            assertParity("D_LeakyReLUTimes " + n, () -> {
+                float[] o = out.clone();
+                Derivatives.D_LeakyReLUTimes(z, 4, g, 1, o, 2, n);
+                return o;
+            }, REL, ABS);
+        }
+    }
+
+    @Test
+    void softmaxRow() {
+        Random random = new Random(8);
+        for (int n : LENGTHS) {
+            float[] z = gaussian(n + 4, random), out = gaussian(n + 6, random);
+            for (int i = 0; i < z.length; i++) {
+                z[i] *= 10;
+            }
+            assertParity("softmax " + n, () -> {
+                float[] o = out.clone();
+                ActivationFunctions.softmax(z, 4, o, 2, n);
+                return o;
+            }, REL, ABS);
+        }
+    }
+
+    @Test
+    void optimizerSteps() {
+        Optimizer[] optimizers = {Optimizer.sgd(), Optimizer.momentum(0.9f), Optimizer.nesterov(0.9f),
+                Optimizer.rmsProp(0.9f), Optimizer.adam(0.9f, 0.999f), Optimizer.adamW(0.9f, 0.999f, 0.01f)};
+        for (Optimizer optimizer : optimizers) {
+            Random random = new Random(9);
+            for (int[] s : SHAPES) {
+                Matrix w = view(s[1], s[2], random), g = view(s[1], s[2], random);
+                float[] bias = gaussian(s[2], random), gBias = gaussian(s[2], random);
+                assertParity(optimizer + " " + s[1] + "x" + s[2], () -> {
+                    Matrix ws = fresh(w);
+                    float[] bs = bias.clone();
+                    Optimizer.State state = optimizer.newState(s[1], s[2], null);
+                    for (int step = 0; step < 3; step++) {
+                        optimizer.update(ws, bs, g, gBias, state, 0.01f, 32);
+                    }
+                    float[] all = new float[ws.data.length + bs.length];
+                    System.arraycopy(ws.data, 0, all, 0, ws.data.length);
+                    System.arraycopy(bs, 0, all, ws.data.length, bs.length);
+                    return all;
+                }, REL, ABS);
+            }
+        }
+    }
+}
@@ -10,7 +10,7 @@ DATA_DIR="data"
 mkdir -p "$BIN_DIR"
 
 echo "Compiling all Java files..."
-javac -d "$BIN_DIR" "$SRC_DIR"/*.java
+javac --add-modules jdk.incubator.vector,jdk.incubator.foreign -d "$BIN_DIR" "$SRC_DIR"/*.java
 if [ $? -ne 0 ]; then
     echo "Compilation failed. Exiting."
     exit 1
@@ -18,7 +18,7 @@ fi
 echo "Compilation successful."
 
 echo "Executing the program..."
-nice -n 19 java -cp "$BIN_DIR" "$MAIN_CLASS"
+nice -n 19 java --add-modules jdk.incubator.vector,jdk.incubator.foreign -cp "$BIN_DIR" "$MAIN_CLASS"
 if [ $? -ne 0 ]; then
     echo "Execution failed. Exiting."
     exit 1
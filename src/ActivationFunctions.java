@@ -1,11 +1,48 @@
 public class ActivationFunctions {
 
+    public static final float LEAKY_RELU_ALFA = 0.01f;
+
     public static float ReLU(float input){
         return (input <= 0) ? 0 : input;
     }
 
     public static float LeakyReLU(float input){
-        float alfa = 0.01f;
+        float alfa = LEAKY_RELU_ALFA;
         return (input <= 0) ? input * alfa : input;
     }
+
+    // LeakyReLU of n values: out[o + j] = LeakyReLU(z[zo + j])
+    public static void LeakyReLU(float[] z, int zo, float[] out, int o, int n) {
+        if (MatrixOperations.useVectorApi) {
+            VectorKernels.leakyReLU(z, zo, out, o, n, LEAKY_RELU_ALFA);
+            return;
+        }
+        for (int j = 0; j < n; j++) {
+            out[o + j] = LeakyReLU(z[zo + j]);
+        }
+    }
+
+    // softmax of one row of n logits
+    public static void softmax(float[] z, int zo, float[] out, int o, int n) {
+        if (MatrixOperations.useVectorApi) {
+            VectorKernels.softmaxRow(z, zo, out, o, n);
+            return;
+        }
+        // find max for dstability
+        float maxLogit = Float.NEGATIVE_INFINITY;
+        for (int j = 0; j < n; j++) {
+            maxLogit = Math.max(maxLogit, z[zo + j]);
+        }
+
+        float sumExp = 0.0f;
+        for (int j = 0; j < n; j++) {
+            out[o + j] = (float) Math.exp(z[zo + j] - maxLogit); // subtract maxLogit for numerical stability
+            sumExp += out[o + j];
+        }
+
+        // normalize by the sum of exponentials
+        for (int j = 0; j < n; j++) {
+            out[o + j] /= sumExp;
+        }
+    }
 }
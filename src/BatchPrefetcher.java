@@ -0,0 +1,166 @@
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class BatchPrefetcher implements AutoCloseable {
+
+    // background stage that shuffles, gathers and optionally augments the batches of all epochs while the
+    // training thread computes. the batches live in a ring of `depth` reusable buffers (2 = double buffering):
+    // the loader takes a free buffer, fills it and hands it over through the ready queue, the trainer gives it
+    // back when it asks for the next batch. when all buffers are in use the loader blocks, so it can never run
+    // more than depth batches ahead. the random numbers are drawn in the same order as by BatchIterator,
+    // so a seeded run trains on the same batches with or without prefetching
+
+    // changes a batch in place on the loader thread, e.g. random flips of the images
+    public interface Augmentation {
+        void apply(DataManager.MiniBatch batch, Random random);
+    }
+
+    private static class Slot {
+        final DataManager.MiniBatch full;
+        final DataManager.MiniBatch tail;
+        DataManager.MiniBatch current;
+
+        Slot(int batchSize, int tailSize, int cols) {
+            full = new DataManager.MiniBatch(new Matrix(batchSize, cols), new int[batchSize]);
+            tail = tailSize == 0 ? null : new DataManager.MiniBatch(full.data.rows(0, tailSize), new int[tailSize]);
+        }
+    }
+
+    private static final Slot END_OF_EPOCH = new Slot(0, 0, 0);
+    private static final Slot FAILED = new Slot(0, 0, 0);
+
+    private final DataManager.BatchIterator batches;
+    private final BlockingQueue<Slot> free;
+    private final BlockingQueue<Slot> ready;
+    private final Thread loader;
+    private volatile Throwable failure;
+    private Slot inUse; // batch handed to the trainer, goes back to the free queue on the next call
+
+    public BatchPrefetcher(Matrix data, int[] labels, int batchSize, int epochs, Random random, int depth, Augmentation augmentation) {
+        this(new DataManager.BatchIterator(data, labels, batchSize), epochs, random, depth, augmentation);
+    }
+
+    public BatchPrefetcher(DataManager.BatchIterator batches, int epochs, Random random, int depth, Augmentation augmentation) {
+        this(batches, epochs, random, depth, augmentation, 0, 0);
+    }
+
+    // prefetches the batches of the iterator, which is used by the loader thread only from now on.
+    // a resumed run starts at batch startBatch of epoch startEpoch, the shuffles of the epochs before are replayed
+    public BatchPrefetcher(DataManager.BatchIterator batches, int epochs, Random random, int depth, Augmentation augmentation,
+                           int startEpoch, int startBatch) {
+        this.batches = batches;
+        int size = Math.min(batches.batchSize(), batches.numRows());
+        int tailSize = batches.numRows() % size;
+
+        free = new ArrayBlockingQueue<>(depth);
+        ready = new ArrayBlockingQueue<>(depth + epochs + 1); // room for all end of epoch markers, put never blocks
+        for (int i = 0; i < depth; i++) {
+            free.add(new Slot(size, tailSize, batches.numCols()));
+        }
+
+        // augmentation gets its own generator so it does not change the order of the batches
+        long augmentationSeed = augmentation == null ? 0 : random.nextLong();
+
+        loader = new Thread(() -> load(epochs, random, augmentation, augmentationSeed, startEpoch, startBatch), "ffnn-prefetch");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    private void load(int epochs, Random random, Augmentation augmentation, long augmentationSeed, int startEpoch, int startBatch) {
+        try {
+            Random augmentationRandom = new Random();
+            int rows = batches.numRows();
+            int batchSize = batches.batchSize();
+            for (int epoch = 0; epoch < startEpoch; epoch++) {
+                batches.newEpoch(random);
+            }
+            for (int epoch = startEpoch; epoch < epochs; epoch++) {
+                batches.newEpoch(random);
+                int first = epoch == startEpoch ? startBatch * batchSize : 0;
+                for (int start = first; start < rows; start += batchSize) {
+                    Slot slot = free.take();
+                    slot.current = rows - start >= slot.full.labels.length ? slot.full : slot.tail;
+                    batches.gather(start, slot.current);
+                    if (augmentation != null) {
+                        seedBatch(augmentationRandom, augmentationSeed, epoch, start / batchSize);
+                        augmentation.apply(slot.current, augmentationRandom);
+                    }
+                    ready.put(slot);
+                }
+                ready.put(END_OF_EPOCH);
+            }
+        } catch (InterruptedException e) {
+            // closed by the trainer
+        } catch (Throwable t) {
+            failure = t;
+            ready.add(FAILED);
+        }
+    }
+
+    // next batch of the current epoch or null at the end of the epoch.
+    // the batch is valid until the next call, then its buffer is reused by the loader
+    public DataManager.MiniBatch next() {
+        if (inUse != null) {
+            free.add(inUse);
+            inUse = null;
+        }
+        Slot slot;
+        try {
+            slot = ready.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a batch", e);
+        }
+        if (slot == FAILED) {
+            throw new IllegalStateException("Batch loader failed", failure);
+        }
+        if (slot == END_OF_EPOCH) {
+            return null;
+        }
+        inUse = slot;
+        return slot.current;
+    }
+
+    // stops the loader thread, also when it is blocked on a full ring
+    @Override
+    public void close() {
+        loader.interrupt();
+        try {
+            loader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // reseeds the augmentation generator for batch `batch` of epoch `epoch`. the draws of a batch depend only on
+    // the run's seed and the batch's position, so a resumed run augments its batches like the interrupted run did
+    // without replaying the batches before. the position is mixed (splitmix64) because Random's first values
+    // for nearby seeds are correlated
+    static void seedBatch(Random augmentationRandom, long seed, int epoch, int batch) {
+        long z = seed + (((long) epoch << 32) + batch) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        augmentationRandom.setSeed(z ^ (z >>> 31));
+    }
+
+    // mirrors every image of the batch left to right with the given probability, images are width pixels wide
+    public static Augmentation horizontalFlip(int width, float probability) {
+        return (batch, random) -> {
+            Matrix images = batch.data;
+            for (int i = 0; i < images.rows; i++) {
+                if (random.nextFloat() >= probability) {
+                    continue;
+                }
+                int row = images.index(i, 0);
+                for (int start = row; start < row + images.cols; start += width) {
+                    for (int l = start, r = start + width - 1; l < r; l++, r--) {
+                        float tmp = images.data[l];
+                        images.data[l] = images.data[r];
+                        images.data[r] = tmp;
+                    }
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,83 @@
+public class ByteMatrix {
+
+    // uint8 matrix for raw pixel data, 1 byte per element instead of 4. element (i, j) stands for the float
+    // (data[offset + i * rowStride + j] & 0xFF) * scale[j] + shift[j], which folds the / 255 and the mean / std
+    // normalization into one multiply-add per element. rows are only turned into floats when they are gathered
+    // into a batch, so the dataset itself never exists as floats
+
+    public final byte[] data;
+    public final int rows;
+    public final int cols;
+    public final int offset;
+    public final int rowStride;
+    public final float[] scale;
+    public final float[] shift;
+
+    public ByteMatrix(byte[] data, int rows, int cols, float[] scale, float[] shift) {
+        this(data, 0, rows, cols, cols, scale, shift);
+    }
+
+    private ByteMatrix(byte[] data, int offset, int rows, int cols, int rowStride, float[] scale, float[] shift) {
+        if (rows > 0 && cols > 0 && offset + (long) (rows - 1) * rowStride + cols > data.length) {
+            throw new IllegalArgumentException("ByteMatrix " + rows + "x" + cols + " does not fit into array of length " + data.length);
+        }
+        if (scale.length != cols || shift.length != cols) {
+            throw new IllegalArgumentException("Need " + cols + " scales and shifts");
+        }
+        this.data = data;
+        this.offset = offset;
+        this.rows = rows;
+        this.cols = cols;
+        this.rowStride = rowStride;
+        this.scale = scale;
+        this.shift = shift;
+    }
+
+    // pixels that dequantize to (p / 255 - mean[j]) / std[j], same arithmetic as DataManager.normalize
+    public static ByteMatrix normalized(byte[] pixels, int rows, int cols, float[] mean, float[] std) {
+        float[] scale = new float[cols];
+        float[] shift = new float[cols];
+        for (int j = 0; j < cols; j++) {
+            scale[j] = 1.0f / (255.0f * std[j]);
+            shift[j] = -mean[j] / std[j];
+        }
+        return new ByteMatrix(pixels, rows, cols, scale, shift);
+    }
+
+    public float get(int i, int j) {
+        return (data[offset + i * rowStride + j] & 0xFF) * scale[j] + shift[j];
+    }
+
+    // view of rows [start, end)
+    public ByteMatrix rows(int start, int end) {
+        return new ByteMatrix(data, offset + start * rowStride, end - start, cols, rowStride, scale, shift);
+    }
+
+    // dequantized row i into row dstRow of dst
+    public void dequantizeRow(int i, Matrix dst, int dstRow) {
+        int src = offset + i * rowStride;
+        if (dst.isRowMajor()) {
+            int out = dst.index(dstRow, 0);
+            for (int j = 0; j < cols; j++) {
+                dst.data[out + j] = (data[src + j] & 0xFF) * scale[j] + shift[j];
+            }
+        } else {
+            for (int j = 0; j < cols; j++) {
+                dst.set(dstRow, j, (data[src + j] & 0xFF) * scale[j] + shift[j]);
+            }
+        }
+    }
+
+    // all rows as a float matrix
+    public Matrix toMatrix() {
+        Matrix result = new Matrix(rows, cols);
+        for (int i = 0; i < rows; i++) {
+            dequantizeRow(i, result, i);
+        }
+        return result;
+    }
+
+    public void copyRow(int i, ByteMatrix src, int srcRow) {
+        System.arraycopy(src.data, src.offset + srcRow * src.rowStride, data, offset + i * rowStride, cols);
+    }
+}
@@ -0,0 +1,357 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+public class CsvParser {
+
+    // byte level parser for csv files of unsigned integers (pixels and labels).
+    // the file is mapped and cut into line-aligned chunks, every chunk first counts its rows so that it knows
+    // where its first row goes, then parses the digits straight into the target array. no strings are created.
+    // the number of rows and values per row have to match numRows / numCols exactly, otherwise IOException
+
+    public static final int MAX_LABEL = 255; // labels are class indices, cached as one byte each
+    private static final int MIN_CHUNK_BYTES = 1 << 20;
+    private static final int MAX_CHUNK_BYTES = 1 << 30; // one mapping has to stay below 2GB
+
+    // raw 0-255 values, row after row
+    public static byte[] readPixels(String path, int numRows, int numCols) throws IOException {
+        byte[] pixels = new byte[numRows * numCols];
+        parse(path, numRows, numCols, 255, pixels, null);
+        return pixels;
+    }
+
+    // one class index 0-MAX_LABEL per row
+    public static int[] readLabels(String path, int numRows) throws IOException {
+        int[] labels = new int[numRows];
+        parse(path, numRows, 1, MAX_LABEL, null, labels);
+        return labels;
+    }
+
+    public static int[] readInts(String path, int numRows, int numCols) throws IOException {
+        int[] values = new int[numRows * numCols];
+        parse(path, numRows, numCols, Integer.MAX_VALUE, null, values);
+        return values;
+    }
+
+    // exactly one of bytes / ints is the target
+    private static void parse(String path, int numRows, int numCols, int maxValue, byte[] bytes, int[] ints) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            long[] bounds = chunkBounds(channel);
+            int numChunks = bounds.length - 1;
+
+            MappedByteBuffer[] chunks = new MappedByteBuffer[numChunks];
+            for (int c = 0; c < numChunks; c++) {
+                chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, bounds[c], bounds[c + 1] - bounds[c]);
+            }
+
+            // pass 1: rows per chunk, the prefix sum is the first row of every chunk
+            List<Callable<Integer>> counts = new ArrayList<>();
+            for (MappedByteBuffer chunk : chunks) {
+                counts.add(() -> countRows(chunk));
+            }
+            List<Integer> rowsPerChunk = runAll(counts);
+
+            int[] firstRow = new int[numChunks];
+            long totalRows = 0;
+            for (int c = 0; c < numChunks; c++) {
+                firstRow[c] = (int) Math.min(totalRows, Integer.MAX_VALUE);
+                totalRows += rowsPerChunk.get(c);
+            }
+            if (totalRows != numRows) {
+                throw new IOException(path + " has " + totalRows + " rows, expected " + numRows);
+            }
+
+            // pass 2: parse every chunk into its own row range
+            List<Callable<Integer>> parsers = new ArrayList<>();
+            for (int c = 0; c < numChunks; c++) {
+                MappedByteBuffer chunk = chunks[c];
+                int row = firstRow[c];
+                parsers.add(() -> parseChunk(path, chunk, row, numCols, maxValue, bytes, ints));
+            }
+            runAll(parsers);
+        }
+    }
+
+    // [0, b1, b2, ..., size], every inner bound is the position right after a '\n'
+    private static long[] chunkBounds(FileChannel channel) throws IOException {
+        long size = channel.size();
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        long chunkBytes = Math.max(MIN_CHUNK_BYTES, Math.min(MAX_CHUNK_BYTES, size / (4L * parallelism) + 1));
+
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer probe = ByteBuffer.allocate(1 << 16);
+        long position = chunkBytes;
+        while (position < size) {
+            long lineEnd = nextLineStart(channel, position, probe);
+            if (lineEnd >= size) {
+                break;
+            }
+            bounds.add(lineEnd);
+            position = lineEnd + chunkBytes;
+        }
+        bounds.add(size);
+
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    private static long nextLineStart(FileChannel channel, long position, ByteBuffer probe) throws IOException {
+        while (true) {
+            probe.clear();
+            int read = channel.read(probe, position);
+            if (read <= 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < read; i++) {
+                if (probe.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+    }
+
+    // non-empty lines, a chunk always ends after a '\n' or at the end of the file
+    private static int countRows(ByteBuffer chunk) {
+        int rows = 0;
+        boolean inLine = false;
+        int limit = chunk.limit();
+        for (int i = 0; i < limit; i++) {
+            byte b = chunk.get(i);
+            if (b == '\n') {
+                if (inLine) {
+                    rows++;
+                }
+                inLine = false;
+            } else if (b != '\r') {
+                inLine = true;
+            }
+        }
+        return inLine ? rows + 1 : rows;
+    }
+
+    private static int parseChunk(String path, ByteBuffer chunk, int row, int numCols, int maxValue,
+                                  byte[] bytes, int[] ints) throws IOException {
+        int limit = chunk.limit();
+        int i = 0;
+
+        while (i < limit) {
+            // skip blank lines, countRows ignores them too
+            byte b = chunk.get(i);
+            if (b == '\n' || b == '\r') {
+                i++;
+                continue;
+            }
+
+            int out = row * numCols;
+            int col = 0;
+            while (true) {
+                while (i < limit && ((b = chunk.get(i)) == ' ' || b == '\t')) {
+                    i++;
+                }
+                int value = 0;
+                int digits = 0;
+                while (i < limit && (b = chunk.get(i)) >= '0' && b <= '9') {
+                    int digit = b - '0';
+                    if (value > (maxValue - digit) / 10) {
+                        throw new IOException(path + ": value out of range in row " + (row + 1));
+                    }
+                    value = value * 10 + digit;
+                    digits++;
+                    i++;
+                }
+                while (i < limit && ((b = chunk.get(i)) == ' ' || b == '\t' || b == '\r')) {
+                    i++;
+                }
+                if (digits == 0) {
+                    throw new IOException(path + ": expected an unsigned integer in row " + (row + 1) + ", column " + (col + 1));
+                }
+                if (col == numCols) {
+                    throw new IOException(path + ": row " + (row + 1) + " has more than " + numCols + " values");
+                }
+
+                if (bytes != null) {
+                    bytes[out + col] = (byte) value;
+                } else {
+                    ints[out + col] = value;
+                }
+                col++;
+
+                if (i >= limit || chunk.get(i) == '\n') {
+                    i++;
+                    break;
+                }
+                if (chunk.get(i) != ',') {
+                    throw new IOException(path + ": unexpected character '" + (char) chunk.get(i) + "' in row " + (row + 1));
+                }
+                i++;
+            }
+
+            if (col != numCols) {
+                throw new IOException(path + ": row " + (row + 1) + " has " + col + " values, expected " + numCols);
+            }
+            row++;
+        }
+        return row;
+    }
+
+    private static <T> List<T> runAll(List<Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing", e);
+        } catch (ExecutionException e) {
+            // the common pool wraps checked exceptions of a Callable in RuntimeExceptions
+            Throwable cause = e.getCause();
+            while (!(cause instanceof IOException) && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            throw cause instanceof IOException ? (IOException) cause : new IOException(e.getCause());
+        }
+        return results;
+    }
+
+    // sequential reader for files that are too big to parse at once: rows are parsed one at a time
+    // from a small read buffer, with the same checks as the parallel parser
+    public static class RowReader implements AutoCloseable {
+        private final String path;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        private final int numCols;
+        private final int maxValue;
+        private int row; // rows read since the start of the file
+
+        public RowReader(String path, int numCols, int maxValue) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(Path.of(path), StandardOpenOption.READ);
+            this.numCols = numCols;
+            this.maxValue = maxValue;
+            rewind();
+        }
+
+        public void rewind() throws IOException {
+            channel.position(0);
+            buffer.clear().limit(0);
+            row = 0;
+        }
+
+        public int rowsRead() {
+            return row;
+        }
+
+        // the next numRows rows into pixels / values, row after row
+        public void readPixels(byte[] pixels, int numRows) throws IOException {
+            for (int i = 0; i < numRows; i++) {
+                readRow(pixels, null, i * numCols);
+            }
+        }
+
+        public void readInts(int[] values, int numRows) throws IOException {
+            for (int i = 0; i < numRows; i++) {
+                readRow(null, values, i * numCols);
+            }
+        }
+
+        // throws if anything but blank lines follows the rows read so far
+        public void checkEnd() throws IOException {
+            int b;
+            while ((b = next()) == '\n' || b == '\r' || b == ' ' || b == '\t') {
+                // blank
+            }
+            if (b != -1) {
+                throw new IOException(path + " has more than " + row + " rows");
+            }
+        }
+
+        private int next() throws IOException {
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                if (channel.read(buffer) <= 0) {
+                    buffer.limit(0);
+                    return -1;
+                }
+                buffer.flip();
+            }
+            return buffer.get() & 0xFF;
+        }
+
+        private void readRow(byte[] bytes, int[] ints, int out) throws IOException {
+            int b = next();
+            while (b == '\n' || b == '\r') {
+                b = next();
+            }
+            if (b == -1) {
+                throw new IOException(path + " ends after " + row + " rows");
+            }
+
+            int col = 0;
+            while (true) {
+                while (b == ' ' || b == '\t') {
+                    b = next();
+                }
+                int value = 0;
+                int digits = 0;
+                while (b >= '0' && b <= '9') {
+                    int digit = b - '0';
+                    if (value > (maxValue - digit) / 10) {
+                        throw new IOException(path + ": value out of range in row " + (row + 1));
+                    }
+                    value = value * 10 + digit;
+                    digits++;
+                    b = next();
+                }
+                while (b == ' ' || b == '\t' || b == '\r') {
+                    b = next();
+                }
+                if (digits == 0) {
+                    throw new IOException(path + ": expected an unsigned integer in row " + (row + 1) + ", column " + (col + 1));
+                }
+                if (col == numCols) {
+                    throw new IOException(path + ": row " + (row + 1) + " has more than " + numCols + " values");
+                }
+
+                if (bytes != null) {
+                    bytes[out + col] = (byte) value;
+                } else {
+                    ints[out + col] = value;
+                }
+                col++;
+
+                if (b == -1 || b == '\n') {
+                    break;
+                }
+                if (b != ',') {
+                    throw new IOException(path + ": unexpected character '" + (char) b + "' in row " + (row + 1));
+                }
+                b = next();
+            }
+
+            if (col != numCols) {
+                throw new IOException(path + ": row " + (row + 1) + " has " + col + " values, expected " + numCols);
+            }
+            row++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -1,109 +1,265 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.util.*;
 
 public class DataManager {
 
-    public static float[][] data;
+    public static Matrix data;
     public static int[] labels;
 
+    // global statistics of the training set, pixel / 255
     public static float mean;
     public static float std;
 
-    public static float[][] loadImageData(String filePath, int numRows, int numCols, boolean training) throws IOException {
-        float[][] data = new float[numRows][numCols];
+    // statistics of the training set and the per column mean / std the data is normalized with,
+    // -Dffnn.normalize=pixel normalizes every pixel position with its own statistics instead of the global ones
+    public static DatasetStatistics statistics;
+    public static boolean perPixelNormalization = "pixel".equals(System.getProperty("ffnn.normalize", "global"));
+    public static float[] normalizationMean;
+    public static float[] normalizationStd;
 
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
-            String line;
-            int row = 0;
+    public static Matrix loadImageData(String filePath, int numRows, int numCols, boolean training) throws IOException {
+        byte[] pixels = CsvParser.readPixels(filePath, numRows, numCols);
 
-            while ((line = br.readLine()) != null) {
-                String[] values = line.split(",");
-                for (int col = 0; col < values.length; col++) {
-                    data[row][col] = Float.parseFloat(values[col]) / 255.0f; //normalizing the data first
-                }
-                row++;
-            }
+        // calc the statistics only if training and then use them later for testing
+        if (training) {
+            setStatistics(DatasetStatistics.compute(pixels, numRows, numCols));
         }
 
-        // calc the global mean and standard deviation only if training and then use it later for testing
-        if (training) {
-            mean = calculateMean(data);
-            std = calculateStd(data, mean);
+        checkStatistics(numCols);
+        return normalize(ByteBuffer.wrap(pixels), 0, numRows, numCols, normalizationMean, normalizationStd);
+    }
+
+    // raw 0-255 pixels of a csv file, row after row
+    public static byte[] loadPixels(String filePath, int numRows, int numCols) throws IOException {
+        return CsvParser.readPixels(filePath, numRows, numCols);
+    }
+
+    public static void setStatistics(DatasetStatistics stats) {
+        statistics = stats;
+        mean = stats.mean;
+        std = stats.std;
+        normalizationMean = stats.means(perPixelNormalization);
+        normalizationStd = stats.stds(perPixelNormalization);
+    }
+
+    // statistics saved next to the cache of a training set, so a test set can be normalized without loading it
+    public static void loadStatistics(String trainImagesPath) throws IOException {
+        setStatistics(DatasetStatistics.read(statisticsPath(cachePath(trainImagesPath))));
+    }
+
+    static void checkStatistics(int numCols) throws IOException {
+        if (normalizationMean == null) {
+            throw new IOException("No training statistics, load the training set or call loadStatistics first");
+        }
+        if (normalizationMean.length != numCols) {
+            throw new IOException("Training statistics have " + normalizationMean.length + " columns, expected " + numCols);
+        }
+    }
+
+    // (pixel / 255 - mean[j]) / std[j] for uint8 pixels starting at offset, row after row
+    public static Matrix normalize(ByteBuffer pixels, int offset, int numRows, int numCols, float[] mean, float[] std) {
+        return normalize(pixels, offset, numRows, numCols, mean, std, new Matrix(numRows, numCols));
+    }
+
+    // normalizes into the first numRows rows of data
+    public static Matrix normalize(ByteBuffer pixels, int offset, int numRows, int numCols, float[] mean, float[] std, Matrix data) {
+        // (p / 255 - mean) / std == p * scale + shift
+        float[] scale = new float[numCols];
+        float[] shift = new float[numCols];
+        for (int j = 0; j < numCols; j++) {
+            scale[j] = 1.0f / (255.0f * std[j]);
+            shift[j] = -mean[j] / std[j];
         }
 
-        // normalize the data using the global mean and standard deviation
+        float[] values = data.data;
         for (int i = 0; i < numRows; i++) {
+            int row = i * numCols;
+            int out = data.index(i, 0);
             for (int j = 0; j < numCols; j++) {
-                data[i][j] = (data[i][j] - mean) / std;
+                values[out + j] = (pixels.get(offset + row + j) & 0xFF) * scale[j] + shift[j];
             }
         }
-
         return data;
     }
 
-    public static int[] loadLabels(String filePath, int numLabels) throws IOException {
-        labels = new int[numLabels];
+    public static class Dataset {
+        public Matrix images;
+        public int[] labels;
 
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
-            String line;
-            int i = 0;
+        public Dataset(Matrix images, int[] labels) {
+            this.images = images;
+            this.labels = labels;
+        }
+    }
 
-            while ((line = br.readLine()) != null) {
-                labels[i] = Integer.parseInt(line.trim());
-                i++;
-            }
+    // images kept as uint8, dequantized and normalized only when batches are gathered (see ByteMatrix)
+    public static class PixelDataset {
+        public ByteMatrix images;
+        public int[] labels;
+
+        public PixelDataset(ByteMatrix images, int[] labels) {
+            this.images = images;
+            this.labels = labels;
         }
+    }
 
-        return labels;
+    // loads images and labels through the binary cache next to the csv (data/x.csv -> data/x.bin, data/x.stats).
+    // the first run parses the csv files and writes the cache, later runs only map the cache file.
+    // like loadImageData, the training set sets the statistics and the test set is normalized with them
+    public static Dataset loadDataset(String imagesPath, String labelsPath, int numRows, int numCols, boolean training) throws IOException {
+        String cachePath = cachePath(imagesPath);
+        if (!isCacheFresh(cachePath, imagesPath, labelsPath)) {
+            PixelDataset parsed = parseAndCache(imagesPath, labelsPath, numRows, numCols, training);
+            return new Dataset(parsed.images.toMatrix(), parsed.labels);
+        }
+
+        MappedByteBuffer buffer = DatasetCache.map(cachePath);
+        DatasetCache.Header header = openCache(buffer, cachePath, numRows, numCols, training);
+        if (header == null) {
+            PixelDataset parsed = parseAndCache(imagesPath, labelsPath, numRows, numCols, training);
+            return new Dataset(parsed.images.toMatrix(), parsed.labels);
+        }
+        return new Dataset(DatasetCache.readImages(buffer, header, normalizationMean, normalizationStd),
+                DatasetCache.readLabels(buffer, header));
     }
 
-    public static float[][] toOneHot(int[] labels, int numClasses) {
-        float[][] oneHot = new float[labels.length][numClasses];
-        for (int i = 0; i < labels.length; i++) {
-            oneHot[i][labels[i]] = 1.0f;
+    // same as loadDataset, but the images stay uint8: a quarter of the memory of the normalized floats
+    public static PixelDataset loadPixelDataset(String imagesPath, String labelsPath, int numRows, int numCols, boolean training) throws IOException {
+        String cachePath = cachePath(imagesPath);
+        if (!isCacheFresh(cachePath, imagesPath, labelsPath)) {
+            return parseAndCache(imagesPath, labelsPath, numRows, numCols, training);
         }
-        return oneHot;
+
+        MappedByteBuffer buffer = DatasetCache.map(cachePath);
+        DatasetCache.Header header = openCache(buffer, cachePath, numRows, numCols, training);
+        if (header == null) {
+            return parseAndCache(imagesPath, labelsPath, numRows, numCols, training);
+        }
+        if (header.dtype != DatasetCache.DTYPE_UINT8) {
+            throw new IOException(cachePath + " stores float32 values, uint8 input needs a uint8 dataset cache");
+        }
+        byte[] pixels = new byte[numRows * numCols];
+        buffer.get(DatasetCache.HEADER_BYTES, pixels);
+        return new PixelDataset(ByteMatrix.normalized(pixels, numRows, numCols, normalizationMean, normalizationStd),
+                DatasetCache.readLabels(buffer, header));
     }
 
-    private static float calculateMean(float[][] data) {
-        float sum = 0.0f;
-        int count = 0;
+    private static boolean isCacheFresh(String cachePath, String imagesPath, String labelsPath) {
+        File cache = new File(cachePath);
+        return cache.exists() && cache.lastModified() >= new File(imagesPath).lastModified()
+                && cache.lastModified() >= new File(labelsPath).lastModified();
+    }
 
-        for (float[] row : data) {
-            for (float value : row) {
-                sum += value;
-                count++;
-            }
+    // parses the csv files and writes the cache and statistics for the next run
+    private static PixelDataset parseAndCache(String imagesPath, String labelsPath, int numRows, int numCols, boolean training) throws IOException {
+        String cachePath = cachePath(imagesPath);
+        byte[] pixels = loadPixels(imagesPath, numRows, numCols);
+        int[] labels = loadLabels(labelsPath, numRows);
+        DatasetStatistics stats = DatasetStatistics.compute(pixels, numRows, numCols);
+        if (training) {
+            setStatistics(stats);
+        }
+
+        try {
+            DatasetCache.write(cachePath, pixels, numRows, numCols, labels, stats.mean, stats.std);
+            stats.write(statisticsPath(cachePath));
+            System.out.println("Dataset cache created: " + cachePath);
+        } catch (IOException e) {
+            System.err.println("Could not write dataset cache " + cachePath + ": " + e.getMessage());
         }
 
-        return sum / count;
+        checkStatistics(numCols);
+        return new PixelDataset(ByteMatrix.normalized(pixels, numRows, numCols, normalizationMean, normalizationStd), labels);
     }
 
-    private static float calculateStd(float[][] data, float mean) {
-        float sumSquaredDifferences = 0.0f;
-        int count = 0;
+    // header of a mapped cache, checked against the expected shape, sets the statistics if training.
+    // null if the cache is damaged or of other data, the caller parses the csv files again and rewrites it
+    private static DatasetCache.Header openCache(ByteBuffer buffer, String cachePath, int numRows, int numCols, boolean training) throws IOException {
+        DatasetCache.Header header;
+        try {
+            header = DatasetCache.readHeader(buffer);
+            if (header.rows != numRows || header.cols != numCols) {
+                throw new IOException("shape " + header.rows + "x" + header.cols + ", expected " + numRows + "x" + numCols);
+            }
+            if (training) {
+                setStatistics(cachedStatistics(buffer, header, statisticsPath(cachePath)));
+            }
+        } catch (IOException e) {
+            System.err.println("Dataset cache " + cachePath + " is not usable (" + e.getMessage() + "), parsing the csv files again");
+            return null;
+        }
+        checkStatistics(numCols);
+        return header;
+    }
 
-        for (float[] row : data) {
-            for (float value : row) {
-                sumSquaredDifferences += Math.pow(value - mean, 2);
-                count++;
+    // the .stats file if it is there and fits, otherwise recomputed from the cached pixels (uint8)
+    // or the global values in the header (float32, per pixel values can't be recovered from normalized data)
+    private static DatasetStatistics cachedStatistics(ByteBuffer buffer, DatasetCache.Header header, String statsPath) throws IOException {
+        if (new File(statsPath).exists()) {
+            DatasetStatistics stats = DatasetStatistics.read(statsPath);
+            if (stats.cols == header.cols && stats.mean == header.mean && stats.std == header.std) {
+                return stats;
+            }
+        }
+        if (header.dtype == DatasetCache.DTYPE_UINT8) {
+            DatasetStatistics stats = DatasetStatistics.compute(buffer, DatasetCache.HEADER_BYTES, header.rows, header.cols);
+            try {
+                stats.write(statsPath);
+            } catch (IOException e) {
+                System.err.println("Could not write dataset statistics " + statsPath + ": " + e.getMessage());
             }
+            return stats;
         }
+        if (perPixelNormalization) {
+            throw new IOException("Per pixel normalization needs " + statsPath + " for a float32 dataset cache");
+        }
+        float[] featureMean = new float[header.cols];
+        float[] featureStd = new float[header.cols];
+        Arrays.fill(featureMean, header.mean);
+        Arrays.fill(featureStd, header.std);
+        return new DatasetStatistics(header.mean, header.std, featureMean, featureStd);
+    }
 
-        return (float) Math.sqrt(sumSquaredDifferences / count);
+    static String cachePath(String csvPath) {
+        return (csvPath.endsWith(".csv") ? csvPath.substring(0, csvPath.length() - 4) : csvPath) + ".bin";
     }
 
+    static String statisticsPath(String cachePath) {
+        return (cachePath.endsWith(".bin") ? cachePath.substring(0, cachePath.length() - 4) : cachePath) + ".stats";
+    }
+
+    public static int[] loadLabels(String filePath, int numLabels) throws IOException {
+        labels = CsvParser.readLabels(filePath, numLabels);
+        return labels;
+    }
+
+    public static Matrix toOneHot(int[] labels, int numClasses) {
+        return toOneHot(labels, numClasses, new Matrix(labels.length, numClasses));
+    }
+
+    // fills an existing labels.length x numClasses matrix
+    public static Matrix toOneHot(int[] labels, int numClasses, Matrix oneHot) {
+        oneHot.fill(0.0f);
+        for (int i = 0; i < labels.length; i++) {
+            oneHot.set(i, labels[i], 1.0f);
+        }
+        return oneHot;
+    }
 
     // shuffle indices instead of data
     public static int[] generateShuffledIndices(int size) {
+        return generateShuffledIndices(size, new Random());
+    }
+
+    public static int[] generateShuffledIndices(int size, Random random) {
         int[] indices = new int[size];
         for (int i = 0; i < size; i++) {
             indices[i] = i;
         }
 
-        Random random = new Random();
         for (int i = size - 1; i > 0; i--) {
             int index = random.nextInt(i + 1);
             int temp = indices[index];
@@ -115,33 +271,102 @@ public class DataManager {
     }
 
     // split data and labels for training and testing
-    public static DataSplit splitData(float[][] data, int[] labels, float splitRatio) {
-        int totalSize = data.length;
+    // rows are shuffled in place, so train and validation data are just views of the original matrix
+    public static DataSplit splitData(Matrix data, int[] labels, float splitRatio) {
+        return splitData(data, labels, splitRatio, new Random());
+    }
+
+    public static DataSplit splitData(Matrix data, int[] labels, float splitRatio, Random random) {
+        int totalSize = data.rows;
         int trainSize = (int) (totalSize * splitRatio);
 
-        float[][] trainData = new float[trainSize][data[0].length];
         int[] trainLabels = new int[trainSize];
+        int[] valLabels = new int[totalSize - trainSize];
+
+        int[] shuffledIndices = generateShuffledIndices(totalSize, random);
+
+        for (int i = 0; i < trainSize; i++) {
+            trainLabels[i] = labels[shuffledIndices[i]];
+        }
+
+        for (int i = trainSize; i < totalSize; i++) {
+            valLabels[i - trainSize] = labels[shuffledIndices[i]];
+        }
+
+        permuteRows(data, shuffledIndices);
+
+        return new DataSplit(data.rows(0, trainSize), trainLabels, data.rows(trainSize, totalSize), valLabels);
+    }
+
+    // same split for uint8 images
+    public static PixelSplit splitData(ByteMatrix data, int[] labels, float splitRatio, Random random) {
+        int totalSize = data.rows;
+        int trainSize = (int) (totalSize * splitRatio);
 
-        float[][] valData = new float[totalSize - trainSize][data[0].length];
+        int[] trainLabels = new int[trainSize];
         int[] valLabels = new int[totalSize - trainSize];
 
-        int[] shuffledIndices = generateShuffledIndices(totalSize);
+        int[] shuffledIndices = generateShuffledIndices(totalSize, random);
 
         for (int i = 0; i < trainSize; i++) {
-            trainData[i] = data[shuffledIndices[i]];
             trainLabels[i] = labels[shuffledIndices[i]];
         }
 
         for (int i = trainSize; i < totalSize; i++) {
-            valData[i - trainSize] = data[shuffledIndices[i]];
             valLabels[i - trainSize] = labels[shuffledIndices[i]];
         }
 
-        return new DataSplit(trainData, trainLabels, valData, valLabels);
+        permuteRows(data, shuffledIndices);
+
+        return new PixelSplit(data.rows(0, trainSize), trainLabels, data.rows(trainSize, totalSize), valLabels);
+    }
+
+    // reorders rows so that row i becomes old row order[i], follows the permutation cycles with one spare row
+    private static void permuteRows(Matrix data, int[] order) {
+        boolean[] done = new boolean[order.length];
+        Matrix tmp = new Matrix(1, data.cols);
+
+        for (int start = 0; start < order.length; start++) {
+            if (done[start] || order[start] == start) {
+                continue;
+            }
+            tmp.copyRow(0, data, start);
+            int i = start;
+            while (order[i] != start) {
+                data.copyRow(i, data, order[i]);
+                done[i] = true;
+                i = order[i];
+            }
+            data.copyRow(i, tmp, 0);
+            done[i] = true;
+        }
+    }
+
+    private static void permuteRows(ByteMatrix data, int[] order) {
+        boolean[] done = new boolean[order.length];
+        ByteMatrix tmp = new ByteMatrix(new byte[data.cols], 1, data.cols, data.scale, data.shift);
+
+        for (int start = 0; start < order.length; start++) {
+            if (done[start] || order[start] == start) {
+                continue;
+            }
+            tmp.copyRow(0, data, start);
+            int i = start;
+            while (order[i] != start) {
+                data.copyRow(i, data, order[i]);
+                done[i] = true;
+                i = order[i];
+            }
+            data.copyRow(i, tmp, 0);
+            done[i] = true;
+        }
     }
 
     public static int[] shuffle(int[] array){
-        Random r = new Random();
+        return shuffle(array, new Random());
+    }
+
+    public static int[] shuffle(int[] array, Random r){
         for(int i=array.length-1; i>0;i--){
             int index = r.nextInt(i+1);
             int a = array[index];
@@ -153,12 +378,27 @@ public class DataManager {
     }
 
     public static class DataSplit {
-        public float[][] trainData;
+        public Matrix trainData;
+        public int[] trainLabels;
+        public Matrix valData;
+        public int[] valLabels;
+
+        public DataSplit(Matrix trainData, int[] trainLabels, Matrix valData, int[] valLabels) {
+            this.trainData = trainData;
+            this.trainLabels = trainLabels;
+            this.valData = valData;
+            this.valLabels = valLabels;
+        }
+    }
+
+
+    public static class PixelSplit {
+        public ByteMatrix trainData;
         public int[] trainLabels;
-        public float[][] valData;
+        public ByteMatrix valData;
         public int[] valLabels;
 
-        public DataSplit(float[][] trainData, int[] trainLabels, float[][] valData, int[] valLabels) {
+        public PixelSplit(ByteMatrix trainData, int[] trainLabels, ByteMatrix valData, int[] valLabels) {
             this.trainData = trainData;
             this.trainLabels = trainLabels;
             this.valData = valData;
@@ -172,19 +412,23 @@ public class DataManager {
     /////////////////////////////////// MINI BATCH CLASS /////////////////////////////////////////////////
 
     public static class MiniBatch {
-        public float[][] data;
+        public Matrix data;
         public int[] labels;
 
-        public MiniBatch(float[][] data, int[] labels) {
+        public MiniBatch(Matrix data, int[] labels) {
             this.data = data;
             this.labels = labels;
         }
     }
 
     //creates minibatches
-    public static MiniBatch[] getMiniBatches(float[][] data, int[] labels, int batchSize) {
-        int numExamples = data.length;
-        int numFeatures = data[0].length;
+    public static MiniBatch[] getMiniBatches(Matrix data, int[] labels, int batchSize) {
+        return getMiniBatches(data, labels, batchSize, new Random());
+    }
+
+    public static MiniBatch[] getMiniBatches(Matrix data, int[] labels, int batchSize, Random random) {
+        int numExamples = data.rows;
+        int numFeatures = data.cols;
 
         int numBatches = (int) Math.ceil((double) numExamples / batchSize);
 
@@ -195,19 +439,19 @@ public class DataManager {
             indices[i] = i;
         }
 
-        indices = shuffle(indices);
+        indices = shuffle(indices, random);
 
         for (int batch = 0; batch < numBatches; batch++) {
             int start = batch * batchSize;
             int end = Math.min(start + batchSize, numExamples);
             int currBSize = end - start;
 
-            float[][] Bdata = new float[currBSize][numFeatures];
+            Matrix Bdata = new Matrix(currBSize, numFeatures);
             int[] Blabels = new int[currBSize];
 
             for (int i = 0; i < currBSize; i++) {
                 int index = indices[start + i];
-                Bdata[i] = data[index];
+                Bdata.copyRow(i, data, index);
                 Blabels[i] = labels[index];
             }
 
@@ -217,6 +461,101 @@ public class DataManager {
         return batches;
     }
 
+    // iterates over the mini-batches of an epoch without materializing them. an epoch is a shuffled permutation
+    // of the row indices and every batch is an index range of it, whose rows are gathered into one reusable
+    // buffer. next() always returns the same MiniBatch objects, so after construction batching allocates nothing
+    public static class BatchIterator {
+        private final Matrix data;
+        private final ByteMatrix pixels; // uint8 source instead of data, dequantized while gathering
+        private final int cols;
+        private final int[] labels;
+        private final int batchSize;
+        private final int[] order;
+        private final MiniBatch full;
+        private final MiniBatch tail; // the last, shorter batch, null if batchSize divides the number of rows
+        private int position;
+
+        public BatchIterator(Matrix data, int[] labels, int batchSize) {
+            this(data, null, data.rows, data.cols, labels, batchSize);
+        }
+
+        public BatchIterator(ByteMatrix pixels, int[] labels, int batchSize) {
+            this(null, pixels, pixels.rows, pixels.cols, labels, batchSize);
+        }
+
+        private BatchIterator(Matrix data, ByteMatrix pixels, int rows, int cols, int[] labels, int batchSize) {
+            this.data = data;
+            this.pixels = pixels;
+            this.cols = cols;
+            this.labels = labels;
+            this.batchSize = batchSize;
+            this.order = new int[rows];
+
+            Matrix buffer = new Matrix(Math.min(batchSize, rows), cols);
+            full = new MiniBatch(buffer, new int[buffer.rows]);
+            int tailSize = rows % batchSize;
+            tail = tailSize == 0 || rows < batchSize ? null : new MiniBatch(buffer.rows(0, tailSize), new int[tailSize]);
+            position = order.length;
+        }
+
+        // starts an epoch with a new permutation, draws the same random numbers as getMiniBatches
+        public void newEpoch(Random random) {
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            shuffle(order, random);
+            position = 0;
+        }
+
+        public int numRows() {
+            return order.length;
+        }
 
+        public int numCols() {
+            return cols;
+        }
+
+        public int batchSize() {
+            return batchSize;
+        }
+
+        public int numBatches() {
+            return (order.length + batchSize - 1) / batchSize;
+        }
+
+        public boolean hasNext() {
+            return position < order.length;
+        }
+
+        // skips the next numBatches batches of the epoch without gathering them
+        public void skip(int numBatches) {
+            position = (int) Math.min(order.length, position + (long) numBatches * batchSize);
+        }
+
+        public MiniBatch next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int size = Math.min(batchSize, order.length - position);
+            MiniBatch batch = size == full.labels.length ? full : tail;
+            gather(position, batch);
+            position += size;
+            return batch;
+        }
+
+        // copies the rows order[start .. start + batch size) and their labels into batch,
+        // uint8 rows are normalized on the way, which is the only place they become floats
+        public void gather(int start, MiniBatch batch) {
+            for (int i = 0; i < batch.labels.length; i++) {
+                int index = order[start + i];
+                if (pixels != null) {
+                    pixels.dequantizeRow(index, batch.data, i);
+                } else {
+                    batch.data.copyRow(i, data, index);
+                }
+                batch.labels[i] = labels[index];
+            }
+        }
+    }
 
 }
@@ -0,0 +1,195 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+public class DatasetCache {
+
+    // binary copy of a csv dataset so that later runs don't have to parse text.
+    // layout (little-endian):
+    //   int magic 'FFDS', int version, int rows, int cols, int dtype, float mean, float std, int numLabels
+    //   rows * cols pixels, uint8 (raw 0-255 values) or float32 (already normalized with mean/std)
+    //   numLabels labels as uint8
+    // the file is written next to its final path and renamed into place once complete.
+    // the file is read through FileChannel.map, so it is shared read-only between processes by the page cache
+
+    public static final int MAGIC = 0x53444646; // "FFDS"
+    public static final int VERSION = 1;
+    public static final int DTYPE_UINT8 = 0;
+    public static final int DTYPE_FLOAT32 = 1;
+    public static final int HEADER_BYTES = 32;
+
+    public static class Header {
+        public int rows;
+        public int cols;
+        public int dtype;
+        public float mean; // of pixel / 255 over the whole file
+        public float std;
+        public int numLabels;
+    }
+
+    // writes raw pixels, mean and std are the statistics of pixels / 255
+    public static void write(String path, byte[] pixels, int rows, int cols, int[] labels, float mean, float std) throws IOException {
+        checkLabels(labels);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path + ".tmp"), 1 << 16))) {
+            writeHeader(out, rows, cols, DTYPE_UINT8, mean, std, labels.length);
+            out.write(pixels, 0, rows * cols);
+            writeLabels(out, labels);
+        }
+        replace(path);
+    }
+
+    // writes already normalized values
+    public static void write(String path, Matrix images, int[] labels, float mean, float std) throws IOException {
+        checkLabels(labels);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path + ".tmp"), 1 << 16))) {
+            writeHeader(out, images.rows, images.cols, DTYPE_FLOAT32, mean, std, labels.length);
+            ByteBuffer row = ByteBuffer.allocate(images.cols * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < images.rows; i++) {
+                row.clear();
+                for (int j = 0; j < images.cols; j++) {
+                    row.putFloat(images.get(i, j));
+                }
+                out.write(row.array(), 0, row.position());
+            }
+            writeLabels(out, labels);
+        }
+        replace(path);
+    }
+
+    // renames path.tmp over path: a crash while writing leaves the old file (or none), never a truncated one
+    // that looks newer than the csv files
+    static void replace(String path) throws IOException {
+        Files.move(Path.of(path + ".tmp"), Path.of(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeHeader(DataOutputStream out, int rows, int cols, int dtype, float mean, float std, int numLabels) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(cols).putInt(dtype)
+                .putFloat(mean).putFloat(std).putInt(numLabels);
+        out.write(header.array());
+    }
+
+    // labels are stored as one unsigned byte each, checked before the file is created
+    private static void checkLabels(int[] labels) {
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i] < 0 || labels[i] > CsvParser.MAX_LABEL) {
+                throw new IllegalArgumentException("Label " + labels[i] + " in row " + (i + 1) + " is outside 0-" + CsvParser.MAX_LABEL);
+            }
+        }
+    }
+
+    private static void writeLabels(DataOutputStream out, int[] labels) throws IOException {
+        for (int label : labels) {
+            out.write(label);
+        }
+    }
+
+    public static MappedByteBuffer map(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        }
+    }
+
+    public static Header readHeader(ByteBuffer buffer) throws IOException {
+        return readHeader(buffer, buffer.capacity());
+    }
+
+    // header at the start of buffer, fileSize is the size of the whole cache file
+    public static Header readHeader(ByteBuffer buffer, long fileSize) throws IOException {
+        if (fileSize < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a dataset cache file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported dataset cache version " + buffer.getInt(4));
+        }
+        Header header = new Header();
+        header.rows = buffer.getInt(8);
+        header.cols = buffer.getInt(12);
+        header.dtype = buffer.getInt(16);
+        header.mean = buffer.getFloat(20);
+        header.std = buffer.getFloat(24);
+        header.numLabels = buffer.getInt(28);
+
+        long expected = HEADER_BYTES + (long) header.rows * header.cols * (header.dtype == DTYPE_FLOAT32 ? Float.BYTES : 1) + header.numLabels;
+        if (fileSize != expected) {
+            throw new IOException("Dataset cache is truncated, expected " + expected + " bytes but got " + fileSize);
+        }
+        return header;
+    }
+
+    // normalized images, (pixel / 255 - mean[j]) / std[j] for column j, in one pass over the mapped file
+    public static Matrix readImages(ByteBuffer buffer, Header header, float[] mean, float[] std) {
+        if (header.dtype == DTYPE_UINT8) {
+            return DataManager.normalize(buffer, HEADER_BYTES, header.rows, header.cols, mean, std);
+        }
+
+        Matrix images = new Matrix(header.rows, header.cols);
+        float[] values = images.data;
+        buffer.slice(HEADER_BYTES, header.rows * header.cols * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(values);
+
+        // stored values were normalized with the file's own global statistics, move them to the requested ones
+        float[] scale = new float[header.cols];
+        float[] shift = new float[header.cols];
+        boolean same = true;
+        for (int j = 0; j < header.cols; j++) {
+            scale[j] = header.std / std[j];
+            shift[j] = (header.mean - mean[j]) / std[j];
+            same &= mean[j] == header.mean && std[j] == header.std;
+        }
+        if (!same) {
+            for (int i = 0; i < header.rows; i++) {
+                int row = i * header.cols;
+                for (int j = 0; j < header.cols; j++) {
+                    values[row + j] = values[row + j] * scale[j] + shift[j];
+                }
+            }
+        }
+        return images;
+    }
+
+    public static int[] readLabels(ByteBuffer buffer, Header header) {
+        int[] labels = new int[header.numLabels];
+        int start = HEADER_BYTES + header.rows * header.cols * (header.dtype == DTYPE_FLOAT32 ? Float.BYTES : 1);
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = buffer.get(start + i) & 0xFF;
+        }
+        return labels;
+    }
+
+    // one-time conversion: java DatasetCache <images.csv> <labels.csv> <rows> <cols> <out.bin> [uint8|float32]
+    public static void main(String[] args) throws IOException {
+        if (args.length < 5) {
+            System.err.println("usage: DatasetCache <images.csv> <labels.csv> <rows> <cols> <out.bin> [uint8|float32]");
+            System.exit(1);
+        }
+        int rows = Integer.parseInt(args[2]);
+        int cols = Integer.parseInt(args[3]);
+        boolean asFloat = args.length > 5 && args[5].equals("float32");
+
+        byte[] pixels = DataManager.loadPixels(args[0], rows, cols);
+        int[] labels = DataManager.loadLabels(args[1], rows);
+        DatasetStatistics stats = DatasetStatistics.compute(pixels, rows, cols);
+
+        if (asFloat) {
+            float[] mean = stats.means(false);
+            float[] std = stats.stds(false);
+            Matrix images = DataManager.normalize(ByteBuffer.wrap(pixels), 0, rows, cols, mean, std);
+            write(args[4], images, labels, stats.mean, stats.std);
+        } else {
+            write(args[4], pixels, rows, cols, labels, stats.mean, stats.std);
+        }
+        stats.write(DataManager.statisticsPath(args[4]));
+        System.out.println("Dataset cache created: " + args[4]);
+    }
+}
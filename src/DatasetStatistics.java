@@ -0,0 +1,183 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+public class DatasetStatistics {
+
+    // mean and std of pixel / 255, over the whole dataset (global) and for every pixel position (per feature).
+    // pixels are integers, so the sums of p and p^2 are exact in a long and a single pass is enough:
+    // no float accumulation error and no cancellation to guard against, which is what Welford / Kahan are for.
+    // the rows are split into chunks that are summed in parallel and merged in chunk order.
+    // saved as <name>.stats next to the dataset cache, layout (little-endian):
+    //   int magic 'FFST', int version, int cols, float mean, float std, cols floats featureMean, cols floats featureStd
+
+    public static final int MAGIC = 0x54534646; // "FFST"
+    public static final int VERSION = 1;
+
+    private static final int ROWS_PER_CHUNK = 1024;
+
+    // a pixel that never changes in the training set is only centered, not scaled
+    private static final float MIN_STD = 1e-6f;
+
+    public final int cols;
+    public final float mean;
+    public final float std;
+    public final float[] featureMean;
+    public final float[] featureStd;
+
+    public DatasetStatistics(float mean, float std, float[] featureMean, float[] featureStd) {
+        this.cols = featureMean.length;
+        this.mean = mean;
+        this.std = std;
+        this.featureMean = featureMean;
+        this.featureStd = featureStd;
+    }
+
+    public static DatasetStatistics compute(byte[] pixels, int rows, int cols) {
+        return compute(ByteBuffer.wrap(pixels), 0, rows, cols);
+    }
+
+    // uint8 pixels starting at offset, row after row, e.g. the data section of a mapped dataset cache
+    public static DatasetStatistics compute(ByteBuffer pixels, int offset, int rows, int cols) {
+        int numChunks = (rows + ROWS_PER_CHUNK - 1) / ROWS_PER_CHUNK;
+        Accumulator[] chunks = new Accumulator[numChunks];
+
+        IntStream.range(0, numChunks).parallel().forEach(c -> {
+            int start = c * ROWS_PER_CHUNK;
+            int end = Math.min(rows, start + ROWS_PER_CHUNK);
+            chunks[c] = new Accumulator(cols);
+            chunks[c].add(pixels, offset + start * cols, end - start);
+        });
+
+        Accumulator total = new Accumulator(cols);
+        for (Accumulator chunk : chunks) {
+            total.add(chunk);
+        }
+        return total.result();
+    }
+
+    // exact running sums, for data that is seen one block of rows at a time
+    public static class Accumulator {
+        private final int cols;
+        private final long[] sum;
+        private final long[] sumSq;
+        private long rows;
+
+        public Accumulator(int cols) {
+            this.cols = cols;
+            this.sum = new long[cols];
+            this.sumSq = new long[cols];
+        }
+
+        public void add(ByteBuffer pixels, int offset, int numRows) {
+            for (int i = 0; i < numRows; i++) {
+                int row = offset + i * cols;
+                for (int j = 0; j < cols; j++) {
+                    int p = pixels.get(row + j) & 0xFF;
+                    sum[j] += p;
+                    sumSq[j] += p * p;
+                }
+            }
+            rows += numRows;
+        }
+
+        public void add(Accumulator other) {
+            for (int j = 0; j < cols; j++) {
+                sum[j] += other.sum[j];
+                sumSq[j] += other.sumSq[j];
+            }
+            rows += other.rows;
+        }
+
+        public DatasetStatistics result() {
+            float[] featureMean = new float[cols];
+            float[] featureStd = new float[cols];
+            long totalSum = 0;
+            long totalSumSq = 0;
+            for (int j = 0; j < cols; j++) {
+                featureMean[j] = mean(sum[j], rows);
+                featureStd[j] = std(sum[j], sumSq[j], rows);
+                totalSum += sum[j];
+                totalSumSq += sumSq[j];
+            }
+            long count = rows * cols;
+            return new DatasetStatistics(mean(totalSum, count), std(totalSum, totalSumSq, count), featureMean, featureStd);
+        }
+    }
+
+    private static float mean(long sum, long count) {
+        return (float) ((double) sum / count / 255.0);
+    }
+
+    // var = E[p^2] - E[p]^2 from exact sums, both terms are of the same magnitude for pixel data
+    // so the double subtraction loses no meaningful precision
+    private static float std(long sum, long sumSq, long count) {
+        double mean = (double) sum / count;
+        double variance = (double) sumSq / count - mean * mean;
+        double std = Math.sqrt(Math.max(variance, 0.0)) / 255.0;
+        return std < MIN_STD ? 1.0f : (float) std;
+    }
+
+    // per column mean and std that the data is normalized with, either the global values repeated or the per pixel ones
+    public float[] means(boolean perFeature) {
+        if (perFeature) {
+            return featureMean;
+        }
+        float[] result = new float[cols];
+        Arrays.fill(result, mean);
+        return result;
+    }
+
+    public float[] stds(boolean perFeature) {
+        if (perFeature) {
+            return featureStd;
+        }
+        float[] result = new float[cols];
+        Arrays.fill(result, std);
+        return result;
+    }
+
+    public void write(String path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(5 * 4 + 2 * cols * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(cols).putFloat(mean).putFloat(std);
+        for (float m : featureMean) {
+            buffer.putFloat(m);
+        }
+        for (float s : featureStd) {
+            buffer.putFloat(s);
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path + ".tmp")))) {
+            out.write(buffer.array());
+        }
+        DatasetCache.replace(path);
+    }
+
+    public static DatasetStatistics read(String path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Path.of(path))).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < 20 || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a dataset statistics file: " + path);
+        }
+        if (buffer.getInt() != VERSION) {
+            throw new IOException("Unsupported dataset statistics version in " + path);
+        }
+        int cols = buffer.getInt();
+        if (buffer.capacity() != 20 + 2L * cols * Float.BYTES) {
+            throw new IOException("Dataset statistics file is truncated: " + path);
+        }
+        float mean = buffer.getFloat();
+        float std = buffer.getFloat();
+        float[] featureMean = new float[cols];
+        float[] featureStd = new float[cols];
+        buffer.asFloatBuffer().get(featureMean);
+        buffer.position(buffer.position() + cols * Float.BYTES);
+        buffer.asFloatBuffer().get(featureStd);
+        return new DatasetStatistics(mean, std, featureMean, featureStd);
+    }
+}
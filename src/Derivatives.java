@@ -4,8 +4,30 @@ public class Derivatives {
     }
 
     public static float D_LeakyReLU(float input){
-        float alfa = 0.01f;
+        float alfa = ActivationFunctions.LEAKY_RELU_ALFA;
         return (input <= 0) ? alfa : 1f;
     }
 
+    // out[o + j] = D_LeakyReLU(z[zo + j])
+    public static void D_LeakyReLU(float[] z, int zo, float[] out, int o, int n) {
+        if (MatrixOperations.useVectorApi) {
+            VectorKernels.leakyReLUDerivative(z, zo, out, o, n, ActivationFunctions.LEAKY_RELU_ALFA);
+            return;
+        }
+        for (int j = 0; j < n; j++) {
+            out[o + j] = D_LeakyReLU(z[zo + j]);
+        }
+    }
+
+    // fused backward of LeakyReLU: out[o + j] = g[go + j] * D_LeakyReLU(z[zo + j]), without building the derivative
+    public static void D_LeakyReLUTimes(float[] z, int zo, float[] g, int go, float[] out, int o, int n) {
+        if (MatrixOperations.useVectorApi) {
+            VectorKernels.leakyReLUBackward(z, zo, g, go, out, o, n, ActivationFunctions.LEAKY_RELU_ALFA);
+            return;
+        }
+        float alfa = ActivationFunctions.LEAKY_RELU_ALFA;
+        for (int j = 0; j < n; j++) {
+            out[o + j] = z[zo + j] <= 0 ? g[go + j] * alfa : g[go + j];
+        }
+    }
 }
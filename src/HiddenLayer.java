@@ -1,116 +1,203 @@
 import java.util.Random;
 
 public class HiddenLayer {
-    private float[][] weights;
+    private Matrix weights;
 
     private float[] biases;
     public int inputLen;
     public int outputLen;
     private float learningRate;
-    private float[][] zBatch;
-    private float[][] xBatch; //inputBatch
+    private Matrix zBatch;
+    private Matrix xBatch; //inputBatch
 
-    //need to init these for batch gradient updates - gradient of weight and bias (L_z == L_b)
-    float[][] L_w;
-    float[] L_z;
+    private Matrix gradientsW;
+    private float[] gradientsB;
 
-    float momentum;
+    // the update rule and its per parameter state (velocities, moments), shared with the replicas
+    private final Optimizer optimizer;
+    private final Optimizer.State optimizerState;
+
+    // the weights, their gradients and the optimizer state live in native memory if this is set,
+    // the workspaces always on the heap
+    private final OffHeapArena arena;
+
+    // workspaces, sized once per batch size and reused by every step
+    private Matrix aBatch; // activations
+    private Matrix gradientsZ;
+    private Matrix gradientsX; // gradient w.r.t. inputs, passed to the previous layer
 
-    private float[][] gradientsW;
-    private float[] gradientsB;
     public HiddenLayer(int inputLen, int outputLen, float learningRate, float momentum) {
+        this(inputLen, outputLen, learningRate, momentum, new Random());
+    }
+
+    public HiddenLayer(int inputLen, int outputLen, float learningRate, float momentum, Random random) {
+        this(inputLen, outputLen, learningRate, Optimizer.momentum(momentum), random, null);
+    }
+
+    public HiddenLayer(int inputLen, int outputLen, float learningRate, Optimizer optimizer, Random random, OffHeapArena arena) {
         this.inputLen = inputLen;
         this.outputLen = outputLen;
+        this.arena = arena;
 
         this.learningRate = learningRate;
-        this.momentum = momentum;
+        this.optimizer = optimizer;
+        this.optimizerState = optimizer.newState(inputLen, outputLen, arena);
 
         biases = new float[outputLen];
-        weights = new float[inputLen][outputLen];
+        weights = Matrix.allocate(inputLen, outputLen, arena);
 
-        L_w = new float[inputLen][outputLen];
-        L_z = new float[outputLen];
-        setWeights();
+        gradientsW = Matrix.allocate(inputLen, outputLen, arena);
+        gradientsB = new float[outputLen];
+        setWeights(random);
     }
 
-    public float[][] forwardPass(float[][] inputBatch){
+    // replica for data-parallel training, shares weights and biases with the original layer
+    // but has its own workspaces and gradients
+    private HiddenLayer(HiddenLayer shared) {
+        this.inputLen = shared.inputLen;
+        this.outputLen = shared.outputLen;
+        this.learningRate = shared.learningRate;
+        this.optimizer = shared.optimizer;
+        this.optimizerState = shared.optimizerState;
+        this.arena = shared.arena;
+
+        weights = shared.weights;
+        biases = shared.biases;
+
+        gradientsW = Matrix.allocate(inputLen, outputLen, arena);
+        gradientsB = new float[outputLen];
+    }
+
+    public HiddenLayer replica() {
+        return new HiddenLayer(this);
+    }
+
+    // the parameters themselves, not copies, for saving and loading a model
+    public Matrix getWeights() {
+        return weights;
+    }
+
+    public float[] getBiases() {
+        return biases;
+    }
+
+    public Optimizer.State getOptimizerState() {
+        return optimizerState;
+    }
+
+    public Matrix forwardPass(Matrix inputBatch){
         xBatch = inputBatch;
+        ensureWorkspace(inputBatch.rows);
 
-        // Z = X * W +B
-        zBatch = MatrixOperations.matrixMultiply(inputBatch, weights);
-        addBias(zBatch, biases);
+        // Z = X * W +B and A = LeakyReLU(Z), fused into the gemm
+        return MatrixOperations.denseForward(inputBatch, weights, biases, MatrixOperations.ACTIVATION_LEAKY_RELU, zBatch, aBatch);
+    }
+
+    // forward pass for inference into a caller-owned buffer, nothing is kept for backprop,
+    // so any number of threads can run it on the same layer with their own buffers
+    public Matrix infer(Matrix inputBatch, Matrix out) {
+        return MatrixOperations.denseForward(inputBatch, weights, biases, MatrixOperations.ACTIVATION_LEAKY_RELU, out, out);
+    }
 
-        return activationFunction(zBatch);
+    private void ensureWorkspace(int batchSize) {
+        zBatch = Matrix.reuse(zBatch, batchSize, outputLen);
+        aBatch = Matrix.reuse(aBatch, batchSize, outputLen);
+        gradientsZ = Matrix.reuse(gradientsZ, batchSize, outputLen);
+        gradientsX = Matrix.reuse(gradientsX, batchSize, inputLen);
     }
 
-    public static void addBias(float[][] matrix, float[] biases) {
-        int rows = matrix.length;
-        int cols = matrix[0].length;
+    public static void addBias(Matrix matrix, float[] biases) {
+        int rows = matrix.rows;
+        int cols = matrix.cols;
 
         for (int i = 0; i < rows; i++) {
+            int row = matrix.index(i, 0);
+            if (MatrixOperations.useVectorApi) {
+                VectorKernels.add(matrix.data, row, biases, 0, matrix.data, row, cols);
+                continue;
+            }
             for (int j = 0; j < cols; j++) {
-                matrix[i][j] += biases[j];
+                matrix.data[row + j] += biases[j];
             }
         }
     }
 
-    public float[][] activationFunction(float[][] zBatch) {
-        int rows = zBatch.length;
-        int cols = zBatch[0].length;
-        float[][] activatedBatch = new float[rows][cols];
+    public Matrix activationFunction(Matrix zBatch) {
+        return activationFunction(zBatch, new Matrix(zBatch.rows, zBatch.cols));
+    }
+
+    public Matrix activationFunction(Matrix zBatch, Matrix activatedBatch) {
+        int rows = zBatch.rows;
+        int cols = zBatch.cols;
 
         for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < cols; j++) {
-                activatedBatch[i][j] = ActivationFunctions.LeakyReLU(zBatch[i][j]);
-            }
+            ActivationFunctions.LeakyReLU(zBatch.data, zBatch.index(i, 0), activatedBatch.data, activatedBatch.index(i, 0), cols);
         }
 
         return activatedBatch;
     }
 
-    public float[][] activationDFunction(float[][] zBatch) {
-        int rows = zBatch.length;
-        int cols = zBatch[0].length;
-        float[][] activatedBatch = new float[rows][cols];
+    public Matrix activationDFunction(Matrix zBatch) {
+        return activationDFunction(zBatch, new Matrix(zBatch.rows, zBatch.cols));
+    }
+
+    public Matrix activationDFunction(Matrix zBatch, Matrix activatedBatch) {
+        int rows = zBatch.rows;
+        int cols = zBatch.cols;
 
         for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < cols; j++) {
-                activatedBatch[i][j] = Derivatives.D_LeakyReLU(zBatch[i][j]);
-            }
+            Derivatives.D_LeakyReLU(zBatch.data, zBatch.index(i, 0), activatedBatch.data, activatedBatch.index(i, 0), cols);
         }
 
         return activatedBatch;
     }
 
-    public float[][] backProp(float[][] L_y) {
+    public Matrix backProp(Matrix L_y) {
         //L_y == gradient of loss w.r.t activations from the next layer
         //compute gradients of loss L with respect to w, b, inputs x:
         //gradient of loss with respect to pre-activated values z
         //float[] L_z = new float[outputLen]; // gradient of loss with respect to pre-activation values
-        float[][] activationD = activationDFunction(zBatch);
-        float[][] gradientsZ = MatrixOperations.elementWiseMultiply(L_y, activationD);
+        // L_z = L_y * D_LeakyReLU(z) straight from zBatch, the derivative matrix is never built
+        for (int i = 0; i < zBatch.rows; i++) {
+            Derivatives.D_LeakyReLUTimes(zBatch.data, zBatch.index(i, 0), L_y.data, L_y.index(i, 0),
+                    gradientsZ.data, gradientsZ.index(i, 0), outputLen);
+        }
 
-        gradientsW = MatrixOperations.matrixMultiply(MatrixOperations.transpose(xBatch), gradientsZ);
-        gradientsB = MatrixOperations.sumAlongAxis(gradientsZ, 0);
+        MatrixOperations.matrixMultiplyTransA(xBatch, gradientsZ, gradientsW);
+        MatrixOperations.sumAlongAxis(gradientsZ, 0, gradientsB);
 
-        return MatrixOperations.matrixMultiply(gradientsZ, MatrixOperations.transpose(weights));
+        return MatrixOperations.matrixMultiplyTransB(gradientsZ, weights, gradientsX);
+    }
+
+    // adds the weight gradient rows [rowStart, rowEnd) of other to this layer's gradients,
+    // the bias gradients are added too if withBiases is set
+    public void addGradients(HiddenLayer other, int rowStart, int rowEnd, boolean withBiases) {
+        Matrix stripe = gradientsW.rows(rowStart, rowEnd);
+        MatrixOperations.addMatrix(stripe, other.gradientsW.rows(rowStart, rowEnd), stripe);
+        if (withBiases) {
+            MatrixOperations.addVector(gradientsB, other.gradientsB, gradientsB);
+        }
     }
 
     public void updateParameters() {
-        // Update weights: W = W - learningRate * gradientsW
-        weights = MatrixOperations.subtractMatrix(weights, MatrixOperations.scalarMultiply(gradientsW, learningRate / xBatch.length));
+        updateParameters(xBatch.rows);
+    }
 
-        // Update biases: B = B - learningRate * gradientsB
-        biases = MatrixOperations.subtractVector(biases, MatrixOperations.scalarMultiply(gradientsB, learningRate / xBatch.length));
+    // one fused in-place pass over the weights, gradients and optimizer state, the gradients are sums over batchSize rows
+    public void updateParameters(int batchSize) {
+        optimizer.update(weights, biases, gradientsW, gradientsB, optimizerState, learningRate, batchSize);
     }
 
     public void setWeights(){
-        Random r = new Random();
+        setWeights(new Random());
+    }
+
+    public void setWeights(Random r){
 
         float stddev = (float) Math.sqrt(2.0 / inputLen);
         for (int i = 0; i < inputLen; i++) {
             for (int j = 0; j < outputLen; j++) {
-                weights[i][j] = (float) r.nextGaussian() * stddev;
+                weights.set(i, j, (float) r.nextGaussian() * stddev);
             }
         }
 
@@ -119,14 +206,6 @@ public class HiddenLayer {
         }
     }
 
-    public float[][] getWeightGradients(){
-        return L_w;
-    }
-
-    public float[] getBiasGradients(){
-        return L_z;
-    }
-
     public void setLearningRate(float newRate){
         learningRate = newRate;
     }
@@ -0,0 +1,353 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class InferenceServer {
+
+    // http inference service for a saved model (see ModelCheckpoint).
+    //   POST /predict  body: csv rows of raw 0-255 pixels (Content-Type text/csv, the default), or
+    //                  rows * inputLen raw uint8 pixels (Content-Type application/octet-stream)
+    //                  response: the predicted class of every row, one per line
+    //   GET  /health   "ok", 503 once the batcher has stopped
+    // every request is handled on its own virtual thread if the jdk has them, otherwise on a pooled thread.
+    // handlers only parse the body and queue the rows. a single batcher thread takes whatever arrived within
+    // windowMicros of the first waiting request (up to maxBatch rows), runs one forward pass over all of them
+    // and completes the requests in its own workspace, the network is only read
+
+    private static final int MAX_BODY_BYTES = 64 << 20;
+
+    static {
+        // small responses otherwise wait for the client's delayed ack (nagle), which adds ~40 ms to every request.
+        // read once when the jdk http server is first used, so it has to be set before that
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final NeuralNetwork network;
+    private final int inputLen;
+    private final int maxBatch;
+    private final long windowNanos;
+    private final float[] scale; // raw pixel -> normalized input, as in ByteMatrix
+    private final float[] shift;
+
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread batcher;
+    private volatile Throwable failure; // why the batcher stopped, null while it runs
+
+    private static class Request {
+        final byte[] pixels;
+        final int rows;
+        final CompletableFuture<int[]> result = new CompletableFuture<>();
+
+        Request(byte[] pixels, int rows) {
+            this.pixels = pixels;
+            this.rows = rows;
+        }
+    }
+
+    // the normalization statistics are the ones in DataManager, ModelCheckpoint.load restores them
+    public InferenceServer(NeuralNetwork network, int port, int maxBatch, long windowMicros) throws IOException {
+        this.network = network;
+        this.inputLen = network.getHiddenLayers()[0].inputLen;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        DataManager.checkStatistics(inputLen);
+        ByteMatrix normalized = ByteMatrix.normalized(new byte[0], 0, inputLen,
+                DataManager.normalizationMean, DataManager.normalizationStd);
+        this.scale = normalized.scale;
+        this.shift = normalized.shift;
+
+        handlers = newHandlerExecutor();
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(handlers);
+        server.createContext("/predict", this::predict);
+        server.createContext("/health", this::health);
+
+        batcher = new Thread(this::runBatches, "ffnn-batcher");
+        batcher.setDaemon(true);
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor through reflection, so the server also builds and runs on jdks
+    // without virtual threads, there a cached pool of platform threads serves the requests
+    private static ExecutorService newHandlerExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "ffnn-http");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public void start() {
+        batcher.start();
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        batcher.interrupt();
+        handlers.shutdownNow();
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    private void health(HttpExchange exchange) throws IOException {
+        Throwable stopped = failure;
+        if (stopped == null) {
+            respond(exchange, 200, "ok\n");
+        } else {
+            respond(exchange, 503, "Batcher stopped: " + stopped + "\n");
+        }
+    }
+
+    private void predict(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "POST rows of pixels\n");
+            return;
+        }
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = in.readNBytes(MAX_BODY_BYTES + 1);
+        }
+        if (body.length > MAX_BODY_BYTES) {
+            respond(exchange, 413, "Body larger than " + MAX_BODY_BYTES + " bytes\n");
+            return;
+        }
+
+        Request request;
+        try {
+            String type = exchange.getRequestHeaders().getFirst("Content-Type");
+            request = type != null && type.startsWith("application/octet-stream") ? binaryRequest(body) : csvRequest(body);
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, e.getMessage() + "\n");
+            return;
+        }
+
+        int[] predictions;
+        try {
+            queue.add(request);
+            // the batcher sets failure before it drains the queue, so a request it no longer sees is failed here
+            Throwable stopped = failure;
+            if (stopped != null) {
+                request.result.completeExceptionally(stopped);
+            }
+            predictions = request.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "Server is stopping\n");
+            return;
+        } catch (ExecutionException e) {
+            if (failure != null) {
+                respond(exchange, 503, "Batcher stopped: " + failure + "\n");
+                return;
+            }
+            respond(exchange, 500, "Inference failed: " + e.getCause() + "\n");
+            return;
+        }
+
+        StringBuilder response = new StringBuilder(predictions.length * 2);
+        for (int p : predictions) {
+            response.append(p).append('\n');
+        }
+        respond(exchange, 200, response.toString());
+    }
+
+    private Request binaryRequest(byte[] body) {
+        if (body.length == 0 || body.length % inputLen != 0) {
+            throw new IllegalArgumentException("Binary body must be a multiple of " + inputLen + " bytes, got " + body.length);
+        }
+        return new Request(body, body.length / inputLen);
+    }
+
+    // rows of comma separated integers 0-255, blank lines are ignored. spaces may surround a value but not split it
+    private Request csvRequest(byte[] body) {
+        byte[] pixels = new byte[Math.max(inputLen, body.length / 2 + 1)];
+        int count = 0;
+        int row = 1;
+        int col = 0;
+        int value = -1;
+        boolean spaced = false; // a space followed the digits of value
+        for (int i = 0; i <= body.length; i++) {
+            int c = i < body.length ? body[i] : '\n';
+            if (c >= '0' && c <= '9') {
+                if (spaced) {
+                    throw new IllegalArgumentException("Space inside a value in row " + row);
+                }
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255) {
+                    throw new IllegalArgumentException("Pixel value out of range in row " + row);
+                }
+            } else if (c == ',' || c == '\n') {
+                if (value < 0) {
+                    if (c == '\n' && col == 0) {
+                        continue;
+                    }
+                    throw new IllegalArgumentException("Missing value in row " + row);
+                }
+                if (col == inputLen) {
+                    throw new IllegalArgumentException("Row " + row + " has more than " + inputLen + " values");
+                }
+                pixels[count++] = (byte) value;
+                value = -1;
+                spaced = false;
+                col++;
+                if (c == '\n') {
+                    if (col != inputLen) {
+                        throw new IllegalArgumentException("Row " + row + " has " + col + " values, expected " + inputLen);
+                    }
+                    col = 0;
+                    row++;
+                }
+            } else if (c == '\r' || c == ' ') {
+                spaced = value >= 0;
+            } else {
+                throw new IllegalArgumentException("Unexpected character '" + (char) c + "' in row " + row);
+            }
+        }
+        if (count == 0) {
+            throw new IllegalArgumentException("Empty body");
+        }
+        return new Request(pixels, count / inputLen);
+    }
+
+    private void runBatches() {
+        List<Request> batch = new ArrayList<>();
+        try {
+            NeuralNetwork.Workspace workspace = network.newWorkspace(maxBatch);
+            Matrix input = new Matrix(maxBatch, inputLen);
+            while (true) {
+                // the first request opens the window, whatever else arrives before it closes joins the batch
+                Request first = queue.take();
+                batch.add(first);
+                int rows = first.rows;
+                long deadline = System.nanoTime() + windowNanos;
+                while (rows < maxBatch) {
+                    long wait = deadline - System.nanoTime();
+                    Request next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    rows += next.rows;
+                }
+
+                // a request never waits for rows that do not fit, oversized batches run in maxBatch pieces
+                int[][] results = new int[batch.size()][];
+                try {
+                    int r = 0;
+                    int row = 0;
+                    while (r < batch.size()) {
+                        int n = 0;
+                        int startRequest = r;
+                        int startRow = row;
+                        while (r < batch.size() && n < maxBatch) {
+                            Request request = batch.get(r);
+                            int take = Math.min(request.rows - row, maxBatch - n);
+                            for (int i = 0; i < take; i++) {
+                                dequantize(request.pixels, (row + i) * inputLen, input, n + i);
+                            }
+                            n += take;
+                            row += take;
+                            if (row == request.rows) {
+                                r++;
+                                row = 0;
+                            }
+                        }
+
+                        Matrix z = network.logits(input.rows(0, n), workspace);
+
+                        // hand the predictions back to their requests in order
+                        int k = 0;
+                        for (int q = startRequest, qRow = startRow; k < n; q++, qRow = 0) {
+                            Request request = batch.get(q);
+                            if (results[q] == null) {
+                                results[q] = new int[request.rows];
+                            }
+                            for (; qRow < request.rows && k < n; qRow++, k++) {
+                                results[q][qRow] = NeuralNetwork.argMax(z.data, z.index(k, 0), z.cols);
+                            }
+                        }
+                    }
+                    for (int q = 0; q < batch.size(); q++) {
+                        batch.get(q).result.complete(results[q]);
+                    }
+                } catch (RuntimeException e) {
+                    // a bad batch only fails its own requests
+                    for (Request request : batch) {
+                        request.result.completeExceptionally(e);
+                    }
+                }
+                batch.clear();
+            }
+        } catch (Throwable e) {
+            // stopped, or an error (out of memory, ...) killed the batcher: fail the batch in flight and whatever is
+            // still waiting, from now on /predict and /health answer 503
+            failure = e;
+            for (Request request : batch) {
+                request.result.completeExceptionally(e);
+            }
+            Request request;
+            while ((request = queue.poll()) != null) {
+                request.result.completeExceptionally(e);
+            }
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+        }
+    }
+
+    private void dequantize(byte[] pixels, int offset, Matrix dst, int dstRow) {
+        int out = dst.index(dstRow, 0);
+        for (int j = 0; j < inputLen; j++) {
+            dst.data[out + j] = (pixels[offset + j] & 0xFF) * scale[j] + shift[j];
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.US_ASCII);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // java InferenceServer <model file> [port], -Dffnn.serve.batch=<max rows> -Dffnn.serve.window=<micros>
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: InferenceServer <model file> [port]");
+            System.exit(1);
+        }
+        NeuralNetwork network = ModelCheckpoint.load(args[0]);
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+        InferenceServer server = new InferenceServer(network, port,
+                Integer.getInteger("ffnn.serve.batch", 256), Long.getLong("ffnn.serve.window", 500));
+        server.start();
+        System.out.println("Serving " + args[0] + " on port " + server.port());
+    }
+}
@@ -0,0 +1,138 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class LoadGenerator {
+
+    // closed-loop load test for InferenceServer: every client sends its next request as soon as the previous one
+    // is answered. the bodies are random uint8 images, sent as binary or csv. the first warmup requests of
+    // every client are not measured. reports latency percentiles and throughput
+
+    public static class Report {
+        public final int requests;
+        public final int errors;
+        public final double seconds;
+        public final long[] latencyNanos; // sorted
+
+        Report(int requests, int errors, double seconds, long[] latencyNanos) {
+            this.requests = requests;
+            this.errors = errors;
+            this.seconds = seconds;
+            this.latencyNanos = latencyNanos;
+        }
+
+        public double percentileMillis(double p) {
+            if (latencyNanos.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(p / 100.0 * latencyNanos.length) - 1;
+            return latencyNanos[Math.max(0, Math.min(index, latencyNanos.length - 1))] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests, %d errors in %.2f s: %.0f req/s, p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+                    requests, errors, seconds, requests / seconds,
+                    percentileMillis(50), percentileMillis(99), percentileMillis(100));
+        }
+    }
+
+    public static Report run(String url, int clients, int requestsPerClient, int rowsPerRequest, int inputLen,
+                             boolean binary, int warmup) throws Exception {
+        HttpClient http = HttpClient.newHttpClient();
+        URI uri = URI.create(url);
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        long[][] latencies = new long[clients][requestsPerClient];
+        int[] errors = new int[clients];
+        // the clock starts when every client has finished its warmup
+        long[] start = new long[1];
+        CyclicBarrier warmedUp = new CyclicBarrier(clients, () -> start[0] = System.nanoTime());
+
+        List<Callable<Void>> tasks = new ArrayList<>(clients);
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            byte[] body = body(new Random(client), rowsPerRequest, inputLen, binary);
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .header("Content-Type", binary ? "application/octet-stream" : "text/csv")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                    .build();
+            tasks.add(() -> {
+                for (int i = -warmup; i < requestsPerClient; i++) {
+                    if (i == 0) {
+                        warmedUp.await();
+                    }
+                    long sent = System.nanoTime();
+                    HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+                    if (i < 0) {
+                        continue;
+                    }
+                    latencies[client][i] = System.nanoTime() - sent;
+                    if (response.statusCode() != 200) {
+                        errors[client]++;
+                    }
+                }
+                return null;
+            });
+        }
+
+        try {
+            for (Future<Void> f : pool.invokeAll(tasks)) {
+                f.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        double seconds = (System.nanoTime() - start[0]) / 1e9;
+
+        long[] all = new long[clients * requestsPerClient];
+        int totalErrors = 0;
+        for (int c = 0; c < clients; c++) {
+            System.arraycopy(latencies[c], 0, all, c * requestsPerClient, requestsPerClient);
+            totalErrors += errors[c];
+        }
+        Arrays.sort(all);
+        return new Report(all.length, totalErrors, seconds, all);
+    }
+
+    private static byte[] body(Random random, int rows, int inputLen, boolean binary) {
+        byte[] pixels = new byte[rows * inputLen];
+        random.nextBytes(pixels);
+        if (binary) {
+            return pixels;
+        }
+        StringBuilder csv = new StringBuilder(pixels.length * 4);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < inputLen; j++) {
+                csv.append(pixels[i * inputLen + j] & 0xFF).append(j + 1 < inputLen ? ',' : '\n');
+            }
+        }
+        return csv.toString().getBytes();
+    }
+
+    // java LoadGenerator <url> [clients] [requests per client] [rows per request] [binary|csv]
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: LoadGenerator <url> [clients] [requests per client] [rows per request] [binary|csv]");
+            System.exit(1);
+        }
+        String url = args[0];
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        int rows = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        boolean binary = args.length <= 4 || "binary".equals(args[4]);
+
+        Report report = run(url, clients, requests, rows, Integer.getInteger("ffnn.serve.input", 784), binary, 20);
+        System.out.println(report);
+        System.out.printf("%.0f rows/s%n", (double) report.requests * rows / report.seconds);
+    }
+}
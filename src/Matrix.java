@@ -0,0 +1,192 @@
+import java.nio.FloatBuffer;
+
+public class Matrix {
+
+    // dense matrix stored in one flat float array, element (i, j) is at offset + i * rowStride + j * colStride
+    // row slices and transposes are views over the same array, no data is copied.
+    // a matrix from an OffHeapArena keeps its floats in native memory instead: data is null and the same indices
+    // address memory. MatrixOperations takes both kinds, code that reads data directly needs an on-heap matrix
+
+    public final float[] data;
+    public final FloatBuffer memory; // native storage, null for on-heap matrices
+    public final int rows;
+    public final int cols;
+    public final int offset;
+    public final int rowStride;
+    public final int colStride;
+
+    public Matrix(int rows, int cols) {
+        this(new float[rows * cols], 0, rows, cols, cols, 1);
+    }
+
+    public Matrix(float[] data, int rows, int cols) {
+        this(data, 0, rows, cols, cols, 1);
+    }
+
+    public Matrix(float[] data, int offset, int rows, int cols, int rowStride, int colStride) {
+        this(data, null, data.length, offset, rows, cols, rowStride, colStride);
+    }
+
+    public Matrix(FloatBuffer memory, int offset, int rows, int cols, int rowStride, int colStride) {
+        this(null, memory, memory.capacity(), offset, rows, cols, rowStride, colStride);
+    }
+
+    private Matrix(float[] data, FloatBuffer memory, int length, int offset, int rows, int cols, int rowStride, int colStride) {
+        if (rows > 0 && cols > 0 && offset + (long) (rows - 1) * rowStride + (long) (cols - 1) * colStride >= length) {
+            throw new IllegalArgumentException("Matrix " + rows + "x" + cols + " does not fit into array of length " + length);
+        }
+        this.data = data;
+        this.memory = memory;
+        this.offset = offset;
+        this.rows = rows;
+        this.cols = cols;
+        this.rowStride = rowStride;
+        this.colStride = colStride;
+    }
+
+    // rows x cols zeros, in native memory when an arena is given
+    public static Matrix allocate(int rows, int cols, OffHeapArena arena) {
+        return arena == null ? new Matrix(rows, cols) : arena.matrix(rows, cols);
+    }
+
+    // returns m if it already has the shape, otherwise a rows x cols matrix that reuses m's array when it is big enough
+    // used for workspaces that are sized once per batch size
+    public static Matrix reuse(Matrix m, int rows, int cols) {
+        if (m != null && m.rows == rows && m.cols == cols && m.isRowMajor() && m.rowStride == cols) {
+            return m;
+        }
+        if (m != null && m.offset == 0 && m.data != null && m.data.length >= rows * cols) {
+            return new Matrix(m.data, rows, cols);
+        }
+        return new Matrix(rows, cols);
+    }
+
+    public int index(int i, int j) {
+        return offset + i * rowStride + j * colStride;
+    }
+
+    public float get(int i, int j) {
+        int index = offset + i * rowStride + j * colStride;
+        return data != null ? data[index] : memory.get(index);
+    }
+
+    public void set(int i, int j, float value) {
+        int index = offset + i * rowStride + j * colStride;
+        if (data != null) {
+            data[index] = value;
+        } else {
+            memory.put(index, value);
+        }
+    }
+
+    public boolean isOnHeap() {
+        return data != null;
+    }
+
+    // true if rows are contiguous runs of cols floats, which is what the kernels stream through
+    public boolean isRowMajor() {
+        return colStride == 1;
+    }
+
+    // view of rows [start, end)
+    public Matrix rows(int start, int end) {
+        return view(offset + start * rowStride, end - start, cols, rowStride, colStride);
+    }
+
+    // transposed view, only swaps the strides
+    public Matrix transpose() {
+        return view(offset, cols, rows, colStride, rowStride);
+    }
+
+    private Matrix view(int offset, int rows, int cols, int rowStride, int colStride) {
+        return data != null ? new Matrix(data, offset, rows, cols, rowStride, colStride)
+                : new Matrix(memory, offset, rows, cols, rowStride, colStride);
+    }
+
+    // contiguous row-major copy, always on the heap
+    public Matrix copy() {
+        Matrix result = new Matrix(rows, cols);
+        for (int i = 0; i < rows; i++) {
+            if (colStride == 1) {
+                readRow(i, result.data, i * cols);
+            } else {
+                for (int j = 0; j < cols; j++) {
+                    result.data[i * cols + j] = get(i, j);
+                }
+            }
+        }
+        return result;
+    }
+
+    public void copyRow(int i, Matrix src, int srcRow) {
+        if (colStride == 1 && src.colStride == 1 && data != null) {
+            src.readRow(srcRow, data, offset + i * rowStride);
+        } else if (colStride == 1 && src.colStride == 1 && src.data != null) {
+            writeRow(i, src.data, src.offset + srcRow * src.rowStride);
+        } else {
+            for (int j = 0; j < cols; j++) {
+                set(i, j, src.get(srcRow, j));
+            }
+        }
+    }
+
+    public void fill(float value) {
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                if (data != null) {
+                    data[offset + i * rowStride + j * colStride] = value;
+                } else {
+                    memory.put(offset + i * rowStride + j * colStride, value);
+                }
+            }
+        }
+    }
+
+    // row i of a row-major matrix into dst[dstOffset..], one bulk copy from either storage
+    public void readRow(int i, float[] dst, int dstOffset) {
+        if (data != null) {
+            System.arraycopy(data, offset + i * rowStride, dst, dstOffset, cols);
+        } else {
+            memory.get(offset + i * rowStride, dst, dstOffset, cols);
+        }
+    }
+
+    // src[srcOffset..] into row i of a row-major matrix
+    public void writeRow(int i, float[] src, int srcOffset) {
+        if (data != null) {
+            System.arraycopy(src, srcOffset, data, offset + i * rowStride, cols);
+        } else {
+            memory.put(offset + i * rowStride, src, srcOffset, cols);
+        }
+    }
+
+    // the elements of row i into the buffer at its position, which is advanced
+    public void writeRowTo(int i, FloatBuffer out) {
+        if (colStride != 1) {
+            for (int j = 0; j < cols; j++) {
+                out.put(get(i, j));
+            }
+        } else if (data != null) {
+            out.put(data, offset + i * rowStride, cols);
+        } else {
+            out.put(out.position(), memory, offset + i * rowStride, cols);
+            out.position(out.position() + cols);
+        }
+    }
+
+    // all elements row by row from the buffer at its position, which is advanced
+    public void readFrom(FloatBuffer in) {
+        for (int i = 0; i < rows; i++) {
+            if (colStride != 1) {
+                for (int j = 0; j < cols; j++) {
+                    set(i, j, in.get());
+                }
+            } else if (data != null) {
+                in.get(data, offset + i * rowStride, cols);
+            } else {
+                memory.put(offset + i * rowStride, in, in.position(), cols);
+                in.position(in.position() + cols);
+            }
+        }
+    }
+}
@@ -1,136 +1,802 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 public class MatrixOperations {
 
     // class for all matrix operations that i use
 
-    public static float[][] matrixMultiply(float[][] A, float[][] B) {
-        int rowsA = A.length, colsA = A[0].length, colsB = B[0].length;
-        float[][] result = new float[rowsA][colsB];
+    // tile sizes for the blocked gemm, can be tuned with -Dffnn.gemm.tile=<n> / -Dffnn.gemm.ktile=<n>
+    public static int tileSize = Integer.getInteger("ffnn.gemm.tile", 256);
+    public static int kTileSize = Integer.getInteger("ffnn.gemm.ktile", 128);
+
+    // SIMD kernels from VectorKernels, on when the jdk.incubator.vector module is present
+    // (java --add-modules jdk.incubator.vector), -Dffnn.simd=false or setVectorApi(false) goes back to the scalar loops
+    public static boolean useVectorApi = isVectorApiAvailable() && !"false".equals(System.getProperty("ffnn.simd"));
+
+    public static boolean isVectorApiAvailable() {
+        return ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    }
+
+    public static void setVectorApi(boolean enabled) {
+        if (enabled && !isVectorApiAvailable()) {
+            throw new IllegalStateException("jdk.incubator.vector is not available, run java with --add-modules jdk.incubator.vector");
+        }
+        useVectorApi = enabled;
+    }
+
+    public static Matrix matrixMultiply(Matrix A, Matrix B) {
+        Matrix result = new Matrix(A.rows, B.cols);
+        gemm(A, B, result);
+        return result;
+    }
+
+    // out = A * B, out is overwritten
+    public static Matrix matrixMultiply(Matrix A, Matrix B, Matrix out) {
+        if (!out.isOnHeap()) {
+            return stagedOutput(out, false, (block, start, end) -> gemm(A.rows(start, end), B, block));
+        }
+        out.fill(0f);
+        gemm(A, B, out);
+        return out;
+    }
+
+    // out = A^T * B without building the transpose, out is overwritten
+    public static Matrix matrixMultiplyTransA(Matrix A, Matrix B, Matrix out) {
+        Matrix a = onHeap(A);
+        Matrix b = rowMajor(B);
+        if (!out.isOnHeap()) {
+            // rows [start, end) of A^T * B are columns [start, end) of A times B
+            return stagedOutput(out, false, (block, start, end) ->
+                    gemmNN(a.data, a.offset + start * a.colStride, a.colStride, a.rowStride, b, block, 0, end - start, b.cols, a.rows));
+        }
+        checkRowMajor(out);
+        out.fill(0f);
+        // element (i, k) of A^T is A(k, i), so the transpose is just A with swapped strides
+        long work = (long) a.rows * b.cols;
+        if (runsParallel(a.cols, work)) {
+            parallelRows(a.cols, work, (start, end) ->
+                    gemmNN(a.data, a.offset, a.colStride, a.rowStride, b, out, start, end, b.cols, a.rows));
+        } else {
+            gemmNN(a.data, a.offset, a.colStride, a.rowStride, b, out, 0, a.cols, b.cols, a.rows);
+        }
+        return out;
+    }
+
+    // out = A * B^T without building the transpose, out is overwritten
+    public static Matrix matrixMultiplyTransB(Matrix A, Matrix B, Matrix out) {
+        Matrix a = onHeap(rowMajor(A));
+        Matrix b = rowMajor(B);
+        if (!out.isOnHeap()) {
+            return stagedOutput(out, false, (block, start, end) -> gemmNT(a.rows(start, end), b, block, a.cols, b.rows));
+        }
+        checkRowMajor(out);
+        out.fill(0f);
+        gemmNT(a, b, out, a.cols, b.rows);
+        return out;
+    }
+
+    // C += A * B, A and B may be strided views (e.g. A.transpose()), they are read in place
+    public static void gemm(Matrix A, Matrix B, Matrix C) {
+        if (!C.isOnHeap()) {
+            stagedOutput(C, true, (block, start, end) -> gemm(A.rows(start, end), B, block));
+            return;
+        }
+        checkRowMajor(C);
+        Matrix a = onHeap(A);
+        if (B.isRowMajor()) {
+            long work = (long) a.cols * B.cols;
+            if (runsParallel(a.rows, work)) {
+                parallelRows(a.rows, work, (start, end) ->
+                        gemmNN(a.data, a.offset, a.rowStride, a.colStride, B, C, start, end, B.cols, a.cols));
+            } else {
+                gemmNN(a.data, a.offset, a.rowStride, a.colStride, B, C, 0, a.rows, B.cols, a.cols);
+            }
+        } else if (B.rowStride == 1 && a.isRowMajor()) {
+            // B is a transposed view: its columns are contiguous rows of the underlying matrix
+            gemmNT(a, B.transpose(), C, a.cols, B.cols);
+        } else {
+            gemm(a, B.copy(), C);
+        }
+    }
+
+    // C += A * B^T, the rows of B are the columns of the right operand
+    private static void gemmNT(Matrix A, Matrix B, Matrix C, int colsA, int colsB) {
+        long work = (long) colsA * colsB;
+        if (runsParallel(A.rows, work)) {
+            parallelRows(A.rows, work, (start, end) -> gemmNT(A, B, C, start, end, colsB, colsA));
+        } else {
+            gemmNT(A, B, C, 0, A.rows, colsB, colsA);
+        }
+    }
+
+    // activations that can be fused into the gemm epilogue
+    public static final int ACTIVATION_NONE = 0;
+    public static final int ACTIVATION_LEAKY_RELU = 1;
+    public static final int ACTIVATION_SOFTMAX = 2;
 
-        for (int i = 0; i < rowsA; i++) {
-            for (int j = 0; j < colsB; j++) {
-                for (int k = 0; k < colsA; k++) {
-                    result[i][j] += A[i][k] * B[k][j];
+    // fused dense layer: Z = X * W + bias and out = activation(Z) in one pass over Z.
+    // bias and activation are applied to each 4-row tile of Z right after its last k-block is accumulated,
+    // while the tile is still in L1. softmax needs whole rows, so it is only fused when all columns fit into
+    // one column tile, otherwise it runs as a separate pass. with ACTIVATION_NONE out is neither checked nor
+    // written and may be null. Z and out are workspaces and have to be on the heap, W may be off-heap
+    public static Matrix denseForward(Matrix input, Matrix W, float[] bias, int activation, Matrix Z, Matrix out) {
+        Matrix X = onHeap(input);
+        Matrix w = rowMajor(W);
+        checkRowMajor(Z);
+        checkOnHeap(Z);
+        if (activation != ACTIVATION_NONE) {
+            checkRowMajor(out);
+            checkOnHeap(out);
+        }
+        Z.fill(0f);
+
+        boolean softmaxAfter = activation == ACTIVATION_SOFTMAX && w.cols > Math.max(1, tileSize);
+        int fused = softmaxAfter ? ACTIVATION_NONE : activation;
+        long work = (long) X.cols * w.cols;
+        if (runsParallel(X.rows, work)) {
+            parallelRows(X.rows, work, (start, end) ->
+                    gemmNN(X.data, X.offset, X.rowStride, X.colStride, w, Z, start, end, w.cols, X.cols, bias, fused, out));
+        } else {
+            gemmNN(X.data, X.offset, X.rowStride, X.colStride, w, Z, 0, X.rows, w.cols, X.cols, bias, fused, out);
+        }
+
+        if (softmaxAfter) {
+            for (int i = 0; i < Z.rows; i++) {
+                ActivationFunctions.softmax(Z.data, Z.index(i, 0), out.data, out.index(i, 0), Z.cols);
+            }
+        }
+        return activation == ACTIVATION_NONE ? Z : out;
+    }
+
+    // epilogue of the fused kernel for rows [iStart, iEnd) and columns [jStart, jEnd) of C
+    private static void epilogue(Matrix C, int iStart, int iEnd, int jStart, int jEnd,
+                                 float[] bias, int activation, Matrix out) {
+        int n = jEnd - jStart;
+        for (int i = iStart; i < iEnd; i++) {
+            int c = C.offset + i * C.rowStride + jStart;
+            if (useVectorApi) {
+                VectorKernels.add(C.data, c, bias, jStart, C.data, c, n);
+            } else {
+                for (int j = 0; j < n; j++) {
+                    C.data[c + j] += bias[jStart + j];
                 }
             }
+
+            if (activation == ACTIVATION_LEAKY_RELU) {
+                ActivationFunctions.LeakyReLU(C.data, c, out.data, out.offset + i * out.rowStride + jStart, n);
+            } else if (activation == ACTIVATION_SOFTMAX) {
+                ActivationFunctions.softmax(C.data, c, out.data, out.offset + i * out.rowStride + jStart, n);
+            }
         }
-        return result;
     }
 
-    public static float[][] addMatrix(float[][] A, float[][] B) {
-        int rows = A.length, cols = A[0].length;
-        float[][] result = new float[rows][cols];
-        for (int i = 0; i < rows; i++) {
+    private static void gemmNN(float[] a, int aOff, int aRowStride, int aColStride, Matrix B, Matrix C,
+                               int iStart, int iEnd, int colsB, int colsA) {
+        gemmNN(a, aOff, aRowStride, aColStride, B, C, iStart, iEnd, colsB, colsA, null, ACTIVATION_NONE, null);
+    }
+
+    // C += A * B for row-major B and rows [iStart, iEnd) of C, A(i, k) is a[aOff + i * aRowStride + k * aColStride]
+    // blocked over k and j so the used part of B stays in cache,
+    // i-k-j order so the inner loop streams along rows of B and C.
+    // with a bias the fused epilogue runs on every finished tile.
+    // an off-heap B is packed one block at a time into a heap buffer, which the kernels index like B itself
+    private static void gemmNN(float[] a, int aOff, int aRowStride, int aColStride, Matrix B, Matrix C,
+                               int iStart, int iEnd, int colsB, int colsA,
+                               float[] bias, int activation, Matrix out) {
+        int nTile = Math.max(1, tileSize), kTile = Math.max(1, kTileSize);
+        float[] b = B.data, c = C.data;
+        int bOff = B.offset, bStride = B.rowStride;
+
+        for (int jj = 0; jj < colsB; jj += nTile) {
+            int jEnd = Math.min(jj + nTile, colsB);
+            for (int kk = 0; kk < colsA; kk += kTile) {
+                int kEnd = Math.min(kk + kTile, colsA);
+                if (!B.isOnHeap()) {
+                    bStride = jEnd - jj;
+                    b = pack(B, kk, kEnd, jj, jEnd);
+                    bOff = -(kk * bStride + jj);
+                }
+
+                int i = iStart;
+                for (; i + 4 <= iEnd; i += 4) {
+                    if (useVectorApi) {
+                        VectorKernels.gemmKernel4(a, aOff + i * aRowStride, aRowStride, aColStride,
+                                b, bOff, bStride,
+                                c, C.offset + i * C.rowStride, C.rowStride,
+                                kk, kEnd, jj, jEnd);
+                    } else {
+                        gemmKernel4(a, aOff + i * aRowStride, aRowStride, aColStride,
+                                b, bOff, bStride,
+                                c, C.offset + i * C.rowStride, C.rowStride,
+                                kk, kEnd, jj, jEnd);
+                    }
+                    if (bias != null && kEnd == colsA) {
+                        epilogue(C, i, i + 4, jj, jEnd, bias, activation, out);
+                    }
+                }
+                for (; i < iEnd; i++) {
+                    if (useVectorApi) {
+                        VectorKernels.gemmKernel1(a, aOff + i * aRowStride, aColStride,
+                                b, bOff, bStride,
+                                c, C.offset + i * C.rowStride,
+                                kk, kEnd, jj, jEnd);
+                    } else {
+                        gemmKernel1(a, aOff + i * aRowStride, aColStride,
+                                b, bOff, bStride,
+                                c, C.offset + i * C.rowStride,
+                                kk, kEnd, jj, jEnd);
+                    }
+                    if (bias != null && kEnd == colsA) {
+                        epilogue(C, i, i + 1, jj, jEnd, bias, activation, out);
+                    }
+                }
+            }
+        }
+    }
+
+    // register tile of 4 rows of A: every loaded row of B is used for 4 rows of C
+    private static void gemmKernel4(float[] a, int aRow, int aStride, int aColStride, float[] b, int bOff, int bStride,
+                                    float[] c, int cRow, int cStride,
+                                    int kStart, int kEnd, int jStart, int jEnd) {
+        int a0 = aRow, a1 = a0 + aStride, a2 = a1 + aStride, a3 = a2 + aStride;
+        int c0 = cRow, c1 = c0 + cStride, c2 = c1 + cStride, c3 = c2 + cStride;
+
+        for (int k = kStart; k < kEnd; k++) {
+            int ak = k * aColStride;
+            float v0 = a[a0 + ak], v1 = a[a1 + ak], v2 = a[a2 + ak], v3 = a[a3 + ak];
+            int bk = bOff + k * bStride;
+            for (int j = jStart; j < jEnd; j++) {
+                float bj = b[bk + j];
+                c[c0 + j] += v0 * bj;
+                c[c1 + j] += v1 * bj;
+                c[c2 + j] += v2 * bj;
+                c[c3 + j] += v3 * bj;
+            }
+        }
+    }
+
+    private static void gemmKernel1(float[] a, int aRow, int aColStride, float[] b, int bOff, int bStride,
+                                    float[] c, int cRow,
+                                    int kStart, int kEnd, int jStart, int jEnd) {
+        for (int k = kStart; k < kEnd; k++) {
+            float v = a[aRow + k * aColStride];
+            int bk = bOff + k * bStride;
+            for (int j = jStart; j < jEnd; j++) {
+                c[cRow + j] += v * b[bk + j];
+            }
+        }
+    }
+
+    // C += A * B^T for row-major A and B and rows [iStart, iEnd) of C, B^T(k, j) is b[bOff + j * bRowStride + k] so every
+    // output element is a dot product of two contiguous rows. blocked over j and k so the block of B stays in cache,
+    // an off-heap B is packed one block at a time like in gemmNN
+    private static void gemmNT(Matrix A, Matrix B, Matrix C,
+                               int iStart, int iEnd, int colsB, int colsA) {
+        int nTile = Math.max(1, tileSize), kTile = Math.max(1, kTileSize);
+        float[] a = A.data, b = B.data, c = C.data;
+        int bOff = B.offset, bRowStride = B.rowStride;
+
+        for (int jj = 0; jj < colsB; jj += nTile) {
+            int jEnd = Math.min(jj + nTile, colsB);
+            for (int kk = 0; kk < colsA; kk += kTile) {
+                int kEnd = Math.min(kk + kTile, colsA);
+                if (!B.isOnHeap()) {
+                    bRowStride = kEnd - kk;
+                    b = pack(B, jj, jEnd, kk, kEnd);
+                    bOff = -(jj * bRowStride + kk);
+                }
+
+                int i = iStart;
+                for (; i + 4 <= iEnd; i += 4) {
+                    int a0 = A.offset + i * A.rowStride, a1 = a0 + A.rowStride, a2 = a1 + A.rowStride, a3 = a2 + A.rowStride;
+                    int c0 = C.offset + i * C.rowStride, c1 = c0 + C.rowStride, c2 = c1 + C.rowStride, c3 = c2 + C.rowStride;
+                    if (useVectorApi) {
+                        for (int j = jj; j < jEnd; j++) {
+                            VectorKernels.dot4(a, a0, A.rowStride, b, bOff + j * bRowStride, kk, kEnd, c, c0 + j, C.rowStride);
+                        }
+                        continue;
+                    }
+                    for (int j = jj; j < jEnd; j++) {
+                        int bj = bOff + j * bRowStride;
+                        float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+                        for (int k = kk; k < kEnd; k++) {
+                            float bk = b[bj + k];
+                            s0 += a[a0 + k] * bk;
+                            s1 += a[a1 + k] * bk;
+                            s2 += a[a2 + k] * bk;
+                            s3 += a[a3 + k] * bk;
+                        }
+                        c[c0 + j] += s0;
+                        c[c1 + j] += s1;
+                        c[c2 + j] += s2;
+                        c[c3 + j] += s3;
+                    }
+                }
+                for (; i < iEnd; i++) {
+                    int a0 = A.offset + i * A.rowStride, c0 = C.offset + i * C.rowStride;
+                    for (int j = jj; j < jEnd; j++) {
+                        int bj = bOff + j * bRowStride;
+                        if (useVectorApi) {
+                            c[c0 + j] += VectorKernels.dot(a, a0 + kk, b, bj + kk, kEnd - kk);
+                            continue;
+                        }
+                        float s0 = 0f;
+                        for (int k = kk; k < kEnd; k++) {
+                            s0 += a[a0 + k] * b[bj + k];
+                        }
+                        c[c0 + j] += s0;
+                    }
+                }
+            }
+        }
+    }
+
+    public static Matrix addMatrix(Matrix A, Matrix B) {
+        return addMatrix(A, B, new Matrix(A.rows, A.cols));
+    }
+
+    // out may be A or B
+    public static Matrix addMatrix(Matrix A, Matrix B, Matrix out) {
+        Matrix a = rowMajor(A), b = rowMajor(B);
+        checkRowMajor(out);
+        if (runsParallel(a.rows, a.cols)) {
+            parallelRows(a.rows, a.cols, (start, end) -> addRows(a, b, out, start, end));
+        } else {
+            addRows(a, b, out, 0, a.rows);
+        }
+        return out;
+    }
+
+    private static void addRows(Matrix A, Matrix B, Matrix out, int start, int end) {
+        if (!A.isOnHeap() || !B.isOnHeap() || !out.isOnHeap()) {
+            stagedRows(ADD, A, B, 0f, out, start, end);
+            return;
+        }
+        int cols = A.cols;
+        for (int i = start; i < end; i++) {
+            int a = A.offset + i * A.rowStride, b = B.offset + i * B.rowStride, r = out.offset + i * out.rowStride;
+            if (useVectorApi) {
+                VectorKernels.add(A.data, a, B.data, b, out.data, r, cols);
+                continue;
+            }
             for (int j = 0; j < cols; j++) {
-                result[i][j] = A[i][j] + B[i][j];
+                out.data[r + j] = A.data[a + j] + B.data[b + j];
             }
         }
-        return result;
     }
 
     public static float[] addVector(float[] A, float[] B) {
+        return addVector(A, B, new float[A.length]);
+    }
+
+    public static float[] addVector(float[] A, float[] B, float[] out) {
         int length = A.length;
-        float[] result = new float[length];
         for (int i = 0; i < length; i++) {
-            result[i] = A[i] + B[i];
+            out[i] = A[i] + B[i];
         }
-        return result;
+        return out;
     }
 
-    public static float[][] transpose(float[][] A) {
-        int rows = A.length, cols = A[0].length;
-        float[][] result = new float[cols][rows];
+    // materialized transpose, use A.transpose() for a view
+    public static Matrix transpose(Matrix A) {
+        return transpose(A, new Matrix(A.cols, A.rows));
+    }
+
+    public static Matrix transpose(Matrix input, Matrix out) {
+        Matrix A = onHeap(input);
+        checkRowMajor(out);
+        checkOnHeap(out);
+        int rows = A.rows, cols = A.cols;
 
         for (int i = 0; i < rows; i++) {
+            int a = A.offset + i * A.rowStride;
             for (int j = 0; j < cols; j++) {
-                result[j][i] = A[i][j];
+                out.data[out.offset + j * out.rowStride + i] = A.data[a + j * A.colStride];
             }
         }
-        return result;
+        return out;
     }
 
 
-    public static float[][] elementWiseMultiply(float[][] A, float[][] B) {
-        int rows = A.length, cols = A[0].length;
-        float[][] result = new float[rows][cols];
+    public static Matrix elementWiseMultiply(Matrix A, Matrix B) {
+        return elementWiseMultiply(A, B, new Matrix(A.rows, A.cols));
+    }
 
-        for (int i = 0; i < rows; i++) {
+    // out may be A or B
+    public static Matrix elementWiseMultiply(Matrix A, Matrix B, Matrix out) {
+        Matrix a = rowMajor(A), b = rowMajor(B);
+        checkRowMajor(out);
+        if (runsParallel(a.rows, a.cols)) {
+            parallelRows(a.rows, a.cols, (start, end) -> multiplyRows(a, b, out, start, end));
+        } else {
+            multiplyRows(a, b, out, 0, a.rows);
+        }
+        return out;
+    }
+
+    private static void multiplyRows(Matrix A, Matrix B, Matrix out, int start, int end) {
+        if (!A.isOnHeap() || !B.isOnHeap() || !out.isOnHeap()) {
+            stagedRows(MULTIPLY, A, B, 0f, out, start, end);
+            return;
+        }
+        int cols = A.cols;
+        for (int i = start; i < end; i++) {
+            int a = A.offset + i * A.rowStride, b = B.offset + i * B.rowStride, r = out.offset + i * out.rowStride;
+            if (useVectorApi) {
+                VectorKernels.multiply(A.data, a, B.data, b, out.data, r, cols);
+                continue;
+            }
             for (int j = 0; j < cols; j++) {
-                result[i][j] = A[i][j] * B[i][j];
+                out.data[r + j] = A.data[a + j] * B.data[b + j];
             }
         }
-        return result;
     }
 
 
-    public static float[] sumAlongAxis(float[][] A, int axis) {
-        if (axis == 0) { // column-wise sum
-            int cols = A[0].length;
-            float[] result = new float[cols];
-            for (float[] row : A) {
-                for (int j = 0; j < cols; j++) {
-                    result[j] += row[j];
-                }
+    public static float[] sumAlongAxis(Matrix A, int axis) {
+        if (axis == 0) {
+            return sumAlongAxis(A, axis, new float[A.cols]);
+        } else if (axis == 1) {
+            return sumAlongAxis(A, axis, new float[A.rows]);
+        }
+        return null;
+    }
+
+    // out is overwritten, it has A.cols elements for axis 0 and A.rows elements for axis 1
+    public static float[] sumAlongAxis(Matrix A, int axis, float[] out) {
+        Matrix a = onHeap(rowMajor(A));
+        if (axis == 0) { // column-wise sum, split into column blocks when parallel
+            if (runsParallel(a.cols, a.rows)) {
+                parallelRows(a.cols, a.rows, (start, end) -> sumColumns(a, out, start, end));
+            } else {
+                sumColumns(a, out, 0, a.cols);
             }
-            return result;
+            return out;
         } else if (axis == 1) { // row-wise sum
-            int rows = A.length;
-            float[] result = new float[rows];
-            for (int i = 0; i < rows; i++) {
-                for (float val : A[i]) {
-                    result[i] += val;
-                }
+            if (runsParallel(a.rows, a.cols)) {
+                parallelRows(a.rows, a.cols, (start, end) -> sumRows(a, out, start, end));
+            } else {
+                sumRows(a, out, 0, a.rows);
             }
-            return result;
+            return out;
         }
         return null;
     }
 
+    private static void sumColumns(Matrix A, float[] out, int start, int end) {
+        Arrays.fill(out, start, end, 0f);
+        for (int i = 0; i < A.rows; i++) {
+            int a = A.offset + i * A.rowStride;
+            for (int j = start; j < end; j++) {
+                out[j] += A.data[a + j];
+            }
+        }
+    }
 
-    public static float[][] subtractMatrix(float[][] A, float[][] B) {
-        int rows = A.length, cols = A[0].length;
-        float[][] result = new float[rows][cols];
+    private static void sumRows(Matrix A, float[] out, int start, int end) {
+        for (int i = start; i < end; i++) {
+            int a = A.offset + i * A.rowStride;
+            float sum = 0f;
+            for (int j = 0; j < A.cols; j++) {
+                sum += A.data[a + j];
+            }
+            out[i] = sum;
+        }
+    }
 
-        for (int i = 0; i < rows; i++) {
+
+    public static Matrix subtractMatrix(Matrix A, Matrix B) {
+        return subtractMatrix(A, B, new Matrix(A.rows, A.cols));
+    }
+
+    // out may be A or B
+    public static Matrix subtractMatrix(Matrix A, Matrix B, Matrix out) {
+        Matrix a = rowMajor(A), b = rowMajor(B);
+        checkRowMajor(out);
+        if (runsParallel(a.rows, a.cols)) {
+            parallelRows(a.rows, a.cols, (start, end) -> subtractRows(a, b, out, start, end));
+        } else {
+            subtractRows(a, b, out, 0, a.rows);
+        }
+        return out;
+    }
+
+    private static void subtractRows(Matrix A, Matrix B, Matrix out, int start, int end) {
+        if (!A.isOnHeap() || !B.isOnHeap() || !out.isOnHeap()) {
+            stagedRows(SUBTRACT, A, B, 0f, out, start, end);
+            return;
+        }
+        int cols = A.cols;
+        for (int i = start; i < end; i++) {
+            int a = A.offset + i * A.rowStride, b = B.offset + i * B.rowStride, r = out.offset + i * out.rowStride;
+            if (useVectorApi) {
+                VectorKernels.subtract(A.data, a, B.data, b, out.data, r, cols);
+                continue;
+            }
             for (int j = 0; j < cols; j++) {
-                result[i][j] = A[i][j] - B[i][j];
+                out.data[r + j] = A.data[a + j] - B.data[b + j];
             }
         }
-        return result;
     }
 
 
     public static float[] subtractVector(float[] A, float[] B) {
+        return subtractVector(A, B, new float[A.length]);
+    }
+
+    public static float[] subtractVector(float[] A, float[] B, float[] out) {
         int length = A.length;
-        float[] result = new float[length];
 
         for (int i = 0; i < length; i++) {
-            result[i] = A[i] - B[i];
+            out[i] = A[i] - B[i];
         }
-        return result;
+        return out;
     }
 
 
-    public static float[][] scalarMultiply(float[][] A, float scalar) {
-        int rows = A.length, cols = A[0].length;
-        float[][] result = new float[rows][cols];
+    public static Matrix scalarMultiply(Matrix A, float scalar) {
+        return scalarMultiply(A, scalar, new Matrix(A.rows, A.cols));
+    }
+
+    // out may be A
+    public static Matrix scalarMultiply(Matrix A, float scalar, Matrix out) {
+        Matrix a = rowMajor(A);
+        checkRowMajor(out);
+        if (runsParallel(a.rows, a.cols)) {
+            parallelRows(a.rows, a.cols, (start, end) -> scaleRows(a, scalar, out, start, end));
+        } else {
+            scaleRows(a, scalar, out, 0, a.rows);
+        }
+        return out;
+    }
 
-        for (int i = 0; i < rows; i++) {
+    private static void scaleRows(Matrix A, float scalar, Matrix out, int start, int end) {
+        if (!A.isOnHeap() || !out.isOnHeap()) {
+            stagedRows(SCALE, A, null, scalar, out, start, end);
+            return;
+        }
+        int cols = A.cols;
+        for (int i = start; i < end; i++) {
+            int a = A.offset + i * A.rowStride, r = out.offset + i * out.rowStride;
+            if (useVectorApi) {
+                VectorKernels.scale(A.data, a, scalar, out.data, r, cols);
+                continue;
+            }
             for (int j = 0; j < cols; j++) {
-                result[i][j] = A[i][j] * scalar;
+                out.data[r + j] = A.data[a + j] * scalar;
             }
         }
-        return result;
     }
 
 
     public static float[] scalarMultiply(float[] A, float scalar) {
+        return scalarMultiply(A, scalar, new float[A.length]);
+    }
+
+    public static float[] scalarMultiply(float[] A, float scalar, float[] out) {
         int length = A.length;
-        float[] result = new float[length];
 
         for (int i = 0; i < length; i++) {
-            result[i] = A[i] * scalar;
+            out[i] = A[i] * scalar;
         }
-        return result;
+        return out;
     }
-}
 
+    //////////////////////////////////////////////////////////////////////////////////////////////////////
+    /////////////////////////////////// FORK-JOIN EXECUTION //////////////////////////////////////////////
+
+    // the row loops of the kernels can be split over a ForkJoinPool, off by default,
+    // turned on with -Dffnn.kernel.threads=<n> or setParallelism(n).
+    // calls with less than parallelThreshold multiply-adds (or elements) in total stay on the calling thread
+    public static int parallelThreshold = Integer.getInteger("ffnn.kernel.threshold", 1 << 18);
+    private static ForkJoinPool pool;
+
+    static {
+        setParallelism(Integer.getInteger("ffnn.kernel.threads", 1));
+    }
+
+    public static void setParallelism(int threads) {
+        if (pool != null) {
+            pool.shutdown();
+        }
+        pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    interface RowRange {
+        void run(int start, int end);
+    }
+
+    private static boolean runsParallel(int rows, long workPerRow) {
+        return pool != null && rows > 1 && rows * workPerRow >= parallelThreshold;
+    }
+
+    private static void parallelRows(int rows, long workPerRow, RowRange body) {
+        pool.invoke(new RowTask(body, 0, rows, workPerRow));
+    }
+
+    // halves the row range until a block is below the threshold, splits are kept at multiples of 4
+    // so the gemm register tile is not broken up
+    private static class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RowRange body;
+        private final int start, end;
+        private final long workPerRow;
+
+        RowTask(RowRange body, int start, int end, long workPerRow) {
+            this.body = body;
+            this.start = start;
+            this.end = end;
+            this.workPerRow = workPerRow;
+        }
+
+        @Override
+        protected void compute() {
+            int n = end - start;
+            if (n < 2 || n * workPerRow < 2L * parallelThreshold) {
+                body.run(start, end);
+                return;
+            }
+            int half = n >= 8 ? (n / 2) & ~3 : n / 2;
+            int mid = start + half;
+            invokeAll(new RowTask(body, start, mid, workPerRow), new RowTask(body, mid, end, workPerRow));
+        }
+    }
+
+    // kernels stream along rows, so strided views (e.g. transposes) are copied first
+    private static Matrix rowMajor(Matrix A) {
+        return A.isRowMajor() ? A : A.copy();
+    }
+
+    private static void checkRowMajor(Matrix A) {
+        if (!A.isRowMajor()) {
+            throw new IllegalArgumentException("Output matrix must be row-major");
+        }
+    }
+
+    private static void checkOnHeap(Matrix A) {
+        if (!A.isOnHeap()) {
+            throw new IllegalArgumentException("Workspace matrix must be on the heap");
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////////
+    /////////////////////////////////// OFF-HEAP OPERANDS ////////////////////////////////////////////////
+
+    // matrices from an OffHeapArena go through the same kernels: a gemm packs the block of an off-heap B it is
+    // about to use into a heap buffer (the block is reused for every row of A, so the copy is cheap), off-heap
+    // results are computed on the heap a block of rows at a time and copied out, element-wise ops copy pieces
+    // of rows that stay in L1. the buffers are per thread, so fork-join workers don't share them
+
+    private static final int PACKED = 0;
+    private static final int STAGED_A = 1;
+    private static final int STAGED_B = 2;
+    private static final int STAGED_OUT = 3;
+
+    // floats of a staged piece of a row, and of a staged block of result rows
+    private static final int STAGE = 1024;
+    private static final int STAGE_BLOCK = 16384;
+
+    private static final ThreadLocal<float[][]> scratch = ThreadLocal.withInitial(() -> new float[4][0]);
+
+    private static final int ADD = 0;
+    private static final int SUBTRACT = 1;
+    private static final int MULTIPLY = 2;
+    private static final int SCALE = 3;
+
+    interface RowBlock {
+        void run(Matrix block, int start, int end);
+    }
+
+    private static float[] scratch(int slot, int size) {
+        float[][] buffers = scratch.get();
+        if (buffers[slot].length < size) {
+            buffers[slot] = new float[size];
+        }
+        return buffers[slot];
+    }
+
+    // operands the kernels read straight from their array are copied to the heap first
+    private static Matrix onHeap(Matrix A) {
+        return A.isOnHeap() ? A : A.copy();
+    }
+
+    // rows [rowStart, rowEnd) and columns [colStart, colEnd) of row-major M, packed row after row
+    private static float[] pack(Matrix M, int rowStart, int rowEnd, int colStart, int colEnd) {
+        int width = colEnd - colStart;
+        float[] packed = scratch(PACKED, (rowEnd - rowStart) * width);
+        for (int r = rowStart; r < rowEnd; r++) {
+            M.memory.get(M.index(r, colStart), packed, (r - rowStart) * width, width);
+        }
+        return packed;
+    }
+
+    // computes an off-heap result block by block: body adds rows [start, end) of the result to a heap block,
+    // which is then copied into out. the block starts with out's rows with accumulate, otherwise with zeros
+    private static Matrix stagedOutput(Matrix out, boolean accumulate, RowBlock body) {
+        checkRowMajor(out);
+        int blockRows = Math.max(4, STAGE_BLOCK / Math.max(1, out.cols) & ~3);
+        float[] buffer = scratch(STAGED_OUT, blockRows * out.cols);
+        Matrix full = new Matrix(buffer, 0, blockRows, out.cols, out.cols, 1);
+        for (int start = 0; start < out.rows; start += blockRows) {
+            int end = Math.min(start + blockRows, out.rows);
+            Matrix block = end - start == blockRows ? full : full.rows(0, end - start);
+            if (accumulate) {
+                for (int i = start; i < end; i++) {
+                    out.readRow(i, buffer, (i - start) * out.cols);
+                }
+            } else {
+                Arrays.fill(buffer, 0, (end - start) * out.cols, 0f);
+            }
+            body.run(block, start, end);
+            for (int i = start; i < end; i++) {
+                out.writeRow(i, buffer, (i - start) * out.cols);
+            }
+        }
+        return out;
+    }
+
+    // element-wise op on rows [start, end) where some matrix is off-heap: every piece of a row is copied into a heap
+    // buffer, computed by the heap kernel and the result copied back. B is null for SCALE
+    private static void stagedRows(int op, Matrix A, Matrix B, float scalar, Matrix out, int start, int end) {
+        float[] aBuffer = scratch(STAGED_A, STAGE), bBuffer = scratch(STAGED_B, STAGE), outBuffer = scratch(STAGED_OUT, STAGE);
+        for (int i = start; i < end; i++) {
+            for (int j = 0; j < A.cols; j += STAGE) {
+                int n = Math.min(STAGE, A.cols - j);
+                float[] x = A.data, y = B == null ? null : B.data, r = out.data;
+                int xo = A.index(i, j), yo = B == null ? 0 : B.index(i, j), ro = out.index(i, j);
+                if (x == null) {
+                    A.memory.get(xo, aBuffer, 0, n);
+                    x = aBuffer;
+                    xo = 0;
+                }
+                if (B != null && y == null) {
+                    B.memory.get(yo, bBuffer, 0, n);
+                    y = bBuffer;
+                    yo = 0;
+                }
+                if (r == null) {
+                    r = outBuffer;
+                    ro = 0;
+                }
+                elementWise(op, x, xo, y, yo, scalar, r, ro, n);
+                if (!out.isOnHeap()) {
+                    out.memory.put(out.index(i, j), outBuffer, 0, n);
+                }
+            }
+        }
+    }
+
+    private static void elementWise(int op, float[] x, int xo, float[] y, int yo, float scalar, float[] out, int o, int n) {
+        if (useVectorApi) {
+            switch (op) {
+                case ADD: VectorKernels.add(x, xo, y, yo, out, o, n); return;
+                case SUBTRACT: VectorKernels.subtract(x, xo, y, yo, out, o, n); return;
+                case MULTIPLY: VectorKernels.multiply(x, xo, y, yo, out, o, n); return;
+                default: VectorKernels.scale(x, xo, scalar, out, o, n); return;
+            }
+        }
+        switch (op) {
+            case ADD:
+                for (int j = 0; j < n; j++) {
+                    out[o + j] = x[xo + j] + y[yo + j];
+                }
+                break;
+            case SUBTRACT:
+                for (int j = 0; j < n; j++) {
+                    out[o + j] = x[xo + j] - y[yo + j];
+                }
+                break;
+            case MULTIPLY:
+                for (int j = 0; j < n; j++) {
+                    out[o + j] = x[xo + j] * y[yo + j];
+                }
+                break;
+            default:
+                for (int j = 0; j < n; j++) {
+                    out[o + j] = x[xo + j] * scalar;
+                }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+public class ModelCheckpoint {
+
+    // trained network, normalization statistics and training progress in one file. layout (little-endian):
+    //   int magic 'FFNM', int version, int numHidden, int inputLen, numHidden ints hidden sizes, int outputLen
+    //   float learningRate, float decayRate
+    //   int optimizer id, float beta1, float beta2, float epsilon, float weightDecay (Optimizer.hyperparameters()),
+    //   int optimizer steps
+    //   int perPixel, int statsCols, float mean, float std
+    //   int epoch, int batch, int randomBytes, randomBytes bytes of the serialized generator (0 if not training)
+    //   zero padding up to a multiple of 64 bytes
+    //   floats: statsCols featureMean, statsCols featureStd,
+    //           per hidden layer and then the output layer: weights (inputLen * outputLen, row-major), biases,
+    //           and for each of the optimizer's state buffers its weight part and bias part
+    // version 1 files (float momentum in place of the optimizer fields, velocities only for the output layer)
+    // still load, as sgd with momentum.
+    // the floats are read through FileChannel.map and copied into the layers' arrays (or native memory, see
+    // OffHeapArena) with one bulk copy per row.
+    // a checkpoint is written to a temporary file and renamed over the old one, so a crash never leaves half a file.
+    // the floats go out a row at a time through one direct buffer, the file is never built in memory
+
+    public static final int MAGIC = 0x4D4E4646; // "FFNM"
+    public static final int VERSION = 2;
+
+    private static final int ALIGNMENT = 64;
+
+    // where a resumed training run continues: the generator as it was when the run started, and the first
+    // batch that was not trained yet. the run replays the shuffles of the finished epochs to get back to it
+    public static class Progress {
+        public final int epoch;
+        public final int batch;
+        final byte[] randomState;
+
+        Progress(int epoch, int batch, byte[] randomState) {
+            this.epoch = epoch;
+            this.batch = batch;
+            this.randomState = randomState;
+        }
+
+        static byte[] saveRandom(Random random) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(random);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        Random random() throws IOException {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(randomState))) {
+                return (Random) in.readObject();
+            } catch (ClassNotFoundException | ClassCastException e) {
+                throw new IOException("Bad generator state in checkpoint", e);
+            }
+        }
+    }
+
+    // progress may be null for a finished model
+    public static void save(NeuralNetwork network, String path, Progress progress) throws IOException {
+        HiddenLayer[] hidden = network.getHiddenLayers();
+        OutputLayer output = network.getOutputLayer();
+        Optimizer optimizer = network.getOptimizer();
+        DatasetStatistics stats = DataManager.statistics;
+        byte[] randomState = progress == null ? new byte[0] : progress.randomState;
+
+        // zero padded up to the floats
+        ByteBuffer buffer = ByteBuffer.allocate(headerBytes(VERSION, hidden.length, randomState.length)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(hidden.length).putInt(hidden[0].inputLen);
+        for (HiddenLayer layer : hidden) {
+            buffer.putInt(layer.outputLen);
+        }
+        buffer.putInt(output.outputLen);
+        buffer.putFloat(network.getLearningRate()).putFloat(network.getDecayRate());
+        buffer.putInt(optimizer.id());
+        for (float hyperparameter : optimizer.hyperparameters()) {
+            buffer.putFloat(hyperparameter);
+        }
+        buffer.putInt(output.getOptimizerState().steps);
+        buffer.putInt(DataManager.perPixelNormalization ? 1 : 0).putInt(stats == null ? 0 : stats.cols)
+                .putFloat(stats == null ? 0 : stats.mean).putFloat(stats == null ? 1 : stats.std);
+        buffer.putInt(progress == null ? 0 : progress.epoch).putInt(progress == null ? 0 : progress.batch)
+                .putInt(randomState.length).put(randomState);
+        buffer.rewind();
+
+        // the widest row: a layer's outputs, or the per pixel statistics
+        int rowFloats = Math.max(output.outputLen, stats == null ? 0 : stats.cols);
+        for (HiddenLayer layer : hidden) {
+            rowFloats = Math.max(rowFloats, layer.outputLen);
+        }
+
+        Path target = Path.of(path);
+        Path temp = Path.of(path + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            RowWriter out = new RowWriter(channel, rowFloats);
+            if (stats != null) {
+                out.write(stats.featureMean);
+                out.write(stats.featureStd);
+            }
+            for (HiddenLayer layer : hidden) {
+                writeLayer(out, layer.getWeights(), layer.getBiases(), layer.getOptimizerState());
+            }
+            writeLayer(out, output.getWeights(), output.getBiases(), output.getOptimizerState());
+            channel.force(false);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // network with the saved weights and learning settings, also restores the normalization statistics
+    // into DataManager. if the file is a checkpoint of an unfinished run, the next trainBatch continues it
+    public static NeuralNetwork load(String path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (buffer.capacity() < 16 || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a model file: " + path);
+        }
+        int version = buffer.getInt();
+        if (version != 1 && version != VERSION) {
+            throw new IOException("Unsupported model version in " + path);
+        }
+        int numHidden = buffer.getInt();
+        if (numHidden < 1 || buffer.capacity() < headerBytes(version, numHidden, 0)) {
+            throw new IOException("Model file is truncated: " + path);
+        }
+        int inputLen = buffer.getInt();
+        int[] hiddenSizes = new int[numHidden];
+        for (int i = 0; i < numHidden; i++) {
+            hiddenSizes[i] = buffer.getInt();
+        }
+        int outputLen = buffer.getInt();
+        float learningRate = buffer.getFloat();
+        Optimizer optimizer;
+        float decayRate;
+        int optimizerSteps = 0;
+        if (version == 1) {
+            optimizer = Optimizer.momentum(buffer.getFloat());
+            decayRate = buffer.getFloat();
+        } else {
+            decayRate = buffer.getFloat();
+            int id = buffer.getInt();
+            float[] hyperparameters = new float[Optimizer.HYPERPARAMETERS];
+            for (int i = 0; i < hyperparameters.length; i++) {
+                hyperparameters[i] = buffer.getFloat();
+            }
+            optimizer = Optimizer.forId(id, hyperparameters);
+            if (optimizer == null) {
+                throw new IOException("Unknown optimizer " + id + " in " + path);
+            }
+            optimizerSteps = buffer.getInt();
+        }
+        boolean perPixel = buffer.getInt() != 0;
+        int statsCols = buffer.getInt();
+        float mean = buffer.getFloat();
+        float std = buffer.getFloat();
+        int epoch = buffer.getInt();
+        int batch = buffer.getInt();
+        int randomBytes = buffer.getInt();
+
+        // state buffers per hidden layer and of the output layer
+        int hiddenStates = version == 1 ? 0 : optimizer.numStates();
+        int outputStates = version == 1 ? 1 : optimizer.numStates();
+        int headerBytes = headerBytes(version, numHidden, randomBytes);
+        long floats = 2L * statsCols;
+        for (int i = 0, in = inputLen; i < numHidden; in = hiddenSizes[i], i++) {
+            floats += (1 + hiddenStates) * ((long) in * hiddenSizes[i] + hiddenSizes[i]);
+        }
+        floats += (1 + outputStates) * ((long) hiddenSizes[numHidden - 1] * outputLen + outputLen);
+        if (randomBytes < 0 || buffer.capacity() != headerBytes + floats * Float.BYTES) {
+            throw new IOException("Model file is truncated: " + path);
+        }
+        byte[] randomState = new byte[randomBytes];
+        buffer.get(randomState);
+
+        NeuralNetwork network = new NeuralNetwork(inputLen, hiddenSizes, outputLen, learningRate, optimizer);
+        network.setDecayRate(decayRate);
+
+        FloatBuffer in = buffer.position(headerBytes).slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        if (statsCols > 0) {
+            float[] featureMean = new float[statsCols];
+            float[] featureStd = new float[statsCols];
+            in.get(featureMean).get(featureStd);
+            DataManager.perPixelNormalization = perPixel;
+            DataManager.setStatistics(new DatasetStatistics(mean, std, featureMean, featureStd));
+        }
+        for (HiddenLayer layer : network.getHiddenLayers()) {
+            readLayer(in, layer.getWeights(), layer.getBiases(), layer.getOptimizerState(), hiddenStates);
+            layer.getOptimizerState().steps = optimizerSteps;
+        }
+        OutputLayer output = network.getOutputLayer();
+        readLayer(in, output.getWeights(), output.getBiases(), output.getOptimizerState(), outputStates);
+        output.getOptimizerState().steps = optimizerSteps;
+
+        if (randomBytes > 0) {
+            network.resume(new Progress(epoch, batch, randomState));
+        }
+        return network;
+    }
+
+    private static void writeLayer(RowWriter out, Matrix weights, float[] biases, Optimizer.State state) throws IOException {
+        out.write(weights);
+        out.write(biases);
+        for (int s = 0; s < state.weights.length; s++) {
+            out.write(state.weights[s]);
+            out.write(state.biases[s]);
+        }
+    }
+
+    // floats to a channel through one direct buffer of rowFloats floats that is reused for every row
+    private static class RowWriter {
+        private final FileChannel channel;
+        private final ByteBuffer bytes;
+        private final FloatBuffer floats; // view of bytes
+
+        RowWriter(FileChannel channel, int rowFloats) {
+            this.channel = channel;
+            this.bytes = ByteBuffer.allocateDirect(Math.max(1, rowFloats) * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            this.floats = bytes.asFloatBuffer();
+        }
+
+        void write(Matrix matrix) throws IOException {
+            for (int i = 0; i < matrix.rows; i++) {
+                floats.clear();
+                matrix.writeRowTo(i, floats);
+                flush();
+            }
+        }
+
+        void write(float[] values) throws IOException {
+            for (int start = 0; start < values.length; start += floats.capacity()) {
+                floats.clear();
+                floats.put(values, start, Math.min(floats.capacity(), values.length - start));
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            bytes.clear().limit(floats.position() * Float.BYTES);
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+    }
+
+    // the first numStates state buffers, the others stay zero
+    private static void readLayer(FloatBuffer in, Matrix weights, float[] biases, Optimizer.State state, int numStates) {
+        weights.readFrom(in);
+        in.get(biases);
+        for (int s = 0; s < numStates; s++) {
+            state.weights[s].readFrom(in);
+            in.get(state.biases[s]);
+        }
+    }
+
+    // size of the file save writes for a finished model (no progress)
+    static long fileBytes(NeuralNetwork network) {
+        HiddenLayer[] hidden = network.getHiddenLayers();
+        OutputLayer output = network.getOutputLayer();
+        DatasetStatistics stats = DataManager.statistics;
+        long floats = stats == null ? 0 : 2L * stats.cols;
+        for (HiddenLayer layer : hidden) {
+            floats += (long) (layer.inputLen + 1) * layer.outputLen * (1 + layer.getOptimizerState().weights.length);
+        }
+        floats += (long) (output.inputLen + 1) * output.outputLen * (1 + output.getOptimizerState().weights.length);
+        return headerBytes(VERSION, hidden.length, 0) + floats * Float.BYTES;
+    }
+
+    private static int headerBytes(int version, int numHidden, int randomBytes) {
+        int bytes = ((version == 1 ? 15 : 20) + numHidden) * 4 + randomBytes;
+        return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+}
@@ -1,162 +1,897 @@
+import java.io.File;
 import java.io.IOException;
 import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 public class NeuralNetwork {
     private HiddenLayer[] hiddenLayers;
     private OutputLayer outputLayer;
     private float learningRate;
+    private final Optimizer optimizer; // the same update rule for every layer
 
-    private static float[][] validateData;
     private static int[] validateLabels;
     private float decayRate = 0.0f;
 
+    private Random random; // weight init and shuffling, seeded for reproducible runs
+
+    // -Dffnn.offheap=true: weights, gradients and optimizer state in native memory, freed by close()
+    private final OffHeapArena arena;
+
+    // batches are prepared by a background loader this many batches ahead, 0 prepares them on the training thread
+    private int prefetchDepth = Integer.getInteger("ffnn.prefetch", 2);
+    private BatchPrefetcher.Augmentation augmentation;
+
+    // trainBatch saves the model and its progress to checkpointPath every checkpointInterval batches
+    // and at the end of every epoch, a run loaded from such a checkpoint continues where it stopped
+    private String checkpointPath;
+    private int checkpointInterval;
+    private ModelCheckpoint.Progress resumeFrom;
+
+    // data-parallel training: every batch is split into numThreads shards, worker 0 uses this network's layers,
+    // the other workers use replicas that share the weights but have their own activations and gradients.
+    // the steps run on stepWorkers, the inference on workerPool
+    private int numThreads = 1;
+    private ExecutorService workerPool;
+    private WorkerGroup stepWorkers;
+    private HiddenLayer[][] workerHiddenLayers;
+    private OutputLayer[] workerOutputLayers;
+    private float[] workerLoss;
+    // batch of the current parallel step, and every worker's view of its shard, kept while the batch matrix is the same
+    private Matrix stepData;
+    private int[] stepLabels;
+    private int stepShards;
+    private Matrix[] shardSources;
+    private Matrix[] shardViews;
+    private final WorkerGroup.Task shardTask = this::trainShard;
+    private final WorkerGroup.Task reduceTask = this::reduceShard;
+
+    // per phase and per layer timing of the training, does nothing unless -Dffnn.profile=true
+    private TrainingProfiler profiler;
+
+    // learning rate schedule, validation and early stopping of trainBatch within a time budget, null trains
+    // all epochs with the exponential decay
+    private TrainingController controller;
+
+    // the optimizer is the one of -Dffnn.optimizer, sgd with momentum unless it is set
     public NeuralNetwork(int inputLen, int[] hiddenLayerSizes, int outputLen, float learningRate, float momentum) {
+        this(inputLen, hiddenLayerSizes, outputLen, learningRate, Optimizer.fromProperties(momentum), new Random());
+    }
+
+    public NeuralNetwork(int inputLen, int[] hiddenLayerSizes, int outputLen, float learningRate, float momentum, long seed) {
+        this(inputLen, hiddenLayerSizes, outputLen, learningRate, Optimizer.fromProperties(momentum), new Random(seed));
+    }
+
+    public NeuralNetwork(int inputLen, int[] hiddenLayerSizes, int outputLen, float learningRate, Optimizer optimizer) {
+        this(inputLen, hiddenLayerSizes, outputLen, learningRate, optimizer, new Random());
+    }
+
+    public NeuralNetwork(int inputLen, int[] hiddenLayerSizes, int outputLen, float learningRate, Optimizer optimizer, long seed) {
+        this(inputLen, hiddenLayerSizes, outputLen, learningRate, optimizer, new Random(seed));
+    }
+
+    private NeuralNetwork(int inputLen, int[] hiddenLayerSizes, int outputLen, float learningRate, Optimizer optimizer, Random random) {
         // init all hidden layers and output layers and set learning rate
+        this.random = random;
+        this.arena = Boolean.getBoolean("ffnn.offheap") ? new OffHeapArena() : null;
 
         hiddenLayers = new HiddenLayer[hiddenLayerSizes.length];
 
-        hiddenLayers[0] = new HiddenLayer(inputLen, hiddenLayerSizes[0], learningRate, momentum);
+        hiddenLayers[0] = new HiddenLayer(inputLen, hiddenLayerSizes[0], learningRate, optimizer, random, arena);
         for (int i = 1; i < hiddenLayerSizes.length; i++) {
-            hiddenLayers[i] = new HiddenLayer(hiddenLayerSizes[i - 1], hiddenLayerSizes[i], learningRate, momentum);
+            hiddenLayers[i] = new HiddenLayer(hiddenLayerSizes[i - 1], hiddenLayerSizes[i], learningRate, optimizer, random, arena);
         }
 
-        outputLayer = new OutputLayer(hiddenLayerSizes[hiddenLayerSizes.length - 1], outputLen, learningRate, momentum);
+        outputLayer = new OutputLayer(hiddenLayerSizes[hiddenLayerSizes.length - 1], outputLen, learningRate, optimizer, random, arena);
 
         this.learningRate = learningRate;
+        this.optimizer = optimizer;
+        setNumThreads(1);
     }
 
-    //forwardpass logic
-    public float[][] forwardPass(float[][] inputBatch) {
-        float[][] hiddenOutput = inputBatch;
-        for (HiddenLayer layer : hiddenLayers) {
-            hiddenOutput = layer.forwardPass(hiddenOutput);
+    // number of threads used by trainBatch, for a fixed seed and thread count the training is deterministic
+    public void setNumThreads(int numThreads) {
+        shutdown();
+        this.numThreads = Math.max(1, numThreads);
+
+        // replicas that already exist are kept, off-heap ones are only freed with the arena
+        HiddenLayer[][] previousHidden = workerHiddenLayers;
+        OutputLayer[] previousOutput = workerOutputLayers;
+        workerHiddenLayers = new HiddenLayer[this.numThreads][];
+        workerOutputLayers = new OutputLayer[this.numThreads];
+        workerLoss = new float[this.numThreads];
+        shardSources = new Matrix[this.numThreads];
+        shardViews = new Matrix[this.numThreads];
+
+        workerHiddenLayers[0] = hiddenLayers;
+        workerOutputLayers[0] = outputLayer;
+        for (int w = 1; w < this.numThreads; w++) {
+            if (previousHidden != null && w < previousHidden.length) {
+                workerHiddenLayers[w] = previousHidden[w];
+                workerOutputLayers[w] = previousOutput[w];
+                continue;
+            }
+            workerHiddenLayers[w] = new HiddenLayer[hiddenLayers.length];
+            for (int i = 0; i < hiddenLayers.length; i++) {
+                workerHiddenLayers[w][i] = hiddenLayers[i].replica();
+            }
+            workerOutputLayers[w] = outputLayer.replica();
+        }
+        if (this.numThreads > 1) {
+            stepWorkers = new WorkerGroup(this.numThreads, "ffnn-step");
+            workerPool = Executors.newFixedThreadPool(this.numThreads, r -> {
+                Thread t = new Thread(r, "ffnn-worker");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        profiler = new TrainingProfiler(hiddenLayers, outputLayer, this.numThreads,
+                stepWorkers == null ? new long[0] : stepWorkers.threadIds());
+    }
+
+    // stops the worker threads of the data-parallel mode
+    public void shutdown() {
+        if (stepWorkers != null) {
+            stepWorkers.close();
+            stepWorkers = null;
+        }
+        if (workerPool != null) {
+            workerPool.shutdown();
+            workerPool = null;
+        }
+    }
+
+    // stops the workers and frees the native memory of an off-heap network, the network can't be used afterwards
+    public void close() {
+        shutdown();
+        if (arena != null) {
+            arena.close();
+        }
+    }
+
+    // bytes of native memory held by the layers, 0 when everything is on the heap
+    public long offHeapBytes() {
+        return arena == null ? 0 : arena.allocatedBytes();
+    }
+
+    // activation buffers for the inference of up to maxRows rows at a time. inference only reads the layers,
+    // so any number of threads can share one network without locks as long as every thread uses its own
+    // workspace and no training runs at the same time
+    public static class Workspace {
+        public final int maxRows;
+        final Matrix input; // dequantized uint8 rows
+        final Matrix[] activations;
+        final Matrix output; // logits or probabilities
+
+        Workspace(int maxRows, Matrix input, Matrix[] activations, Matrix output) {
+            this.maxRows = maxRows;
+            this.input = input;
+            this.activations = activations;
+            this.output = output;
+        }
+    }
+
+    public Workspace newWorkspace(int maxRows) {
+        Matrix[] activations = new Matrix[hiddenLayers.length];
+        for (int i = 0; i < hiddenLayers.length; i++) {
+            activations[i] = new Matrix(maxRows, hiddenLayers[i].outputLen);
+        }
+        return new Workspace(maxRows, new Matrix(maxRows, hiddenLayers[0].inputLen), activations,
+                new Matrix(maxRows, outputLayer.outputLen));
+    }
+
+    // one pooled workspace per thread for the calls that don't pass their own
+    private final ThreadLocal<Workspace> workspaces = ThreadLocal.withInitial(() -> newWorkspace(INFERENCE_CHUNK));
+
+    // softmax probabilities of all rows into a new matrix. thread-safe: the rows go through the calling thread's
+    // pooled workspace in chunks, the training workspaces of the layers are not used
+    public Matrix forwardPass(Matrix inputBatch) {
+        Workspace workspace = workspaces.get();
+        Matrix probabilities = new Matrix(inputBatch.rows, outputLayer.outputLen);
+        for (int start = 0; start < inputBatch.rows; start += workspace.maxRows) {
+            int end = Math.min(start + workspace.maxRows, inputBatch.rows);
+            outputLayer.infer(hiddenForward(inputBatch.rows(start, end), workspace), probabilities.rows(start, end));
+        }
+        return probabilities;
+    }
+
+    // softmax probabilities of at most workspace.maxRows rows, valid until the workspace is used again
+    public Matrix forwardPass(Matrix inputBatch, Workspace workspace) {
+        Matrix hidden = hiddenForward(inputBatch, workspace);
+        return outputLayer.infer(hidden, workspace.output.rows(0, inputBatch.rows));
+    }
+
+    // logits of at most workspace.maxRows rows, enough for predictions and the loss
+    public Matrix logits(Matrix inputBatch, Workspace workspace) {
+        Matrix hidden = hiddenForward(inputBatch, workspace);
+        return outputLayer.logits(hidden, workspace.output.rows(0, inputBatch.rows));
+    }
+
+    // rows [start, end) of uint8 data, dequantized into the workspace's input buffer
+    public Matrix dequantize(ByteMatrix pixels, int start, int end, Workspace workspace) {
+        for (int i = start; i < end; i++) {
+            pixels.dequantizeRow(i, workspace.input, i - start);
+        }
+        return workspace.input.rows(0, end - start);
+    }
+
+    private Matrix hiddenForward(Matrix inputBatch, Workspace workspace) {
+        if (inputBatch.rows > workspace.maxRows) {
+            throw new IllegalArgumentException(inputBatch.rows + " rows do not fit a workspace of " + workspace.maxRows);
+        }
+        Matrix x = inputBatch;
+        for (int i = 0; i < hiddenLayers.length; i++) {
+            x = hiddenLayers[i].infer(x, workspace.activations[i].rows(0, inputBatch.rows));
         }
-        return outputLayer.forwardPass(hiddenOutput);
+        return x;
+    }
+
+    public HiddenLayer[] getHiddenLayers() {
+        return hiddenLayers;
+    }
+
+    public OutputLayer getOutputLayer() {
+        return outputLayer;
+    }
+
+    public float getLearningRate() {
+        return learningRate;
+    }
+
+    public Optimizer getOptimizer() {
+        return optimizer;
+    }
+
+    public float getDecayRate() {
+        return decayRate;
+    }
+
+    public void setDecayRate(float decayRate) {
+        this.decayRate = decayRate;
+    }
+
+    // null turns checkpointing off
+    public void setCheckpoint(String path, int intervalBatches) {
+        this.checkpointPath = path;
+        this.checkpointInterval = Math.max(1, intervalBatches);
+    }
+
+    // the next trainBatch continues the run the progress was saved from, with the same data and settings
+    void resume(ModelCheckpoint.Progress progress) {
+        this.resumeFrom = progress;
+    }
+
+    public void setPrefetchDepth(int prefetchDepth) {
+        this.prefetchDepth = Math.max(0, prefetchDepth);
+    }
+
+    // applied to every training batch before it is used, null turns it off
+    public void setAugmentation(BatchPrefetcher.Augmentation augmentation) {
+        this.augmentation = augmentation;
+    }
+
+    // null turns it off, epochs is then the exact number of epochs again instead of a maximum
+    public void setController(TrainingController controller) {
+        this.controller = controller;
     }
 
     // training function
-    public void trainBatch(float[][] trainData, int[] trainLabels, int batchSize, int epochs) {
-        for (int epoch = 0; epoch < epochs; epoch++) {
-            // compute the decayed learning rate
-            float decayingLR = (float) (learningRate * Math.exp(-decayRate * epoch));
-            System.out.println("LEARNING RATE: " + decayingLR);
+    public void trainBatch(Matrix trainData, int[] trainLabels, int batchSize, int epochs) {
+        train(new DataManager.BatchIterator(trainData, trainLabels, batchSize), batchSize, epochs);
+    }
 
-            // create mini-batches
-            DataManager.MiniBatch[] miniBatches = DataManager.getMiniBatches(trainData, trainLabels, batchSize);
+    // uint8 training images, every batch is dequantized and normalized while it is gathered
+    public void trainBatch(ByteMatrix trainData, int[] trainLabels, int batchSize, int epochs) {
+        train(new DataManager.BatchIterator(trainData, trainLabels, batchSize), batchSize, epochs);
+    }
 
-            float totalLoss = 0;
+    private void train(DataManager.BatchIterator batches, int batchSize, int epochs) {
+        int startEpoch = 0;
+        int startBatch = 0;
+        if (resumeFrom != null) {
+            // back to the generator the interrupted run started with, its shuffles are replayed up to the batch
+            try {
+                random = resumeFrom.random();
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot resume training", e);
+            }
+            startEpoch = resumeFrom.epoch;
+            startBatch = resumeFrom.batch;
+            resumeFrom = null;
+            System.out.printf("Resuming at epoch %d, batch %d%n", startEpoch + 1, startBatch);
+        }
+        byte[] randomState = checkpointPath == null ? null : ModelCheckpoint.Progress.saveRandom(random);
+
+        BatchPrefetcher prefetcher = null;
+        Random augmentationRandom = null;
+        long augmentationSeed = 0;
+        if (prefetchDepth > 0) {
+            prefetcher = new BatchPrefetcher(batches, epochs, random, prefetchDepth, augmentation, startEpoch, startBatch);
+        } else {
+            // reseeded for every batch like in BatchPrefetcher, so a resumed run augments like the interrupted one
+            if (augmentation != null) {
+                augmentationSeed = random.nextLong();
+                augmentationRandom = new Random();
+            }
+            for (int epoch = 0; epoch < startEpoch; epoch++) {
+                batches.newEpoch(random);
+            }
+        }
 
-            for (DataManager.MiniBatch batch : miniBatches) {
-                float[][] batchData = batch.data;
-                float[][] batchLabels = DataManager.toOneHot(batch.labels, outputLayer.outputLen);
+        if (controller != null) {
+            controller.begin(this, (epochs - startEpoch) * batches.numBatches() - startBatch);
+        }
+        boolean stopped = false;
+        try {
+            for (int epoch = startEpoch; epoch < epochs && !stopped; epoch++) {
+                if (controller == null) {
+                    setEpochLearningRate(epoch);
+                }
 
-                // update learning rate for all layers
-                for (HiddenLayer layer : hiddenLayers) {
-                    layer.setLearningRate(decayingLR);
+                profiler.beginEpoch();
+                double totalLoss = 0;
+                long samples = 0;
+                int steps = 0;
+                int batch = epoch == startEpoch ? startBatch : 0;
+
+                if (prefetcher == null) {
+                    // new permutation, the batches are gathered from it one at a time into the same buffer
+                    batches.newEpoch(random);
+                    batches.skip(batch);
+                }
+                while (true) {
+                    long t = TrainingProfiler.start();
+                    DataManager.MiniBatch miniBatch;
+                    if (prefetcher != null) {
+                        // the loader is already filling the next buffers while this batch trains
+                        miniBatch = prefetcher.next();
+                    } else if (batches.hasNext()) {
+                        miniBatch = batches.next();
+                        if (augmentation != null) {
+                            BatchPrefetcher.seedBatch(augmentationRandom, augmentationSeed, epoch, batch);
+                            augmentation.apply(miniBatch, augmentationRandom);
+                        }
+                    } else {
+                        miniBatch = null;
+                    }
+                    if (miniBatch == null) {
+                        break;
+                    }
+                    profiler.lap(t, 0, TrainingProfiler.BATCH, 0);
+
+                    if (controller != null) {
+                        applyLearningRate(controller.learningRate(epoch));
+                    }
+                    profiler.beginStep();
+                    int rows = miniBatch.data.rows;
+                    float loss = trainStep(miniBatch.data, miniBatch.labels);
+                    profiler.endStep(epoch, batch, rows, loss);
+                    // the step loss is the mean over its rows, weighted by the rows the epoch loss is the mean per sample
+                    totalLoss += (double) loss * rows;
+                    samples += rows;
+                    steps++;
+                    batch++;
+
+                    if (checkpointPath != null && batch % checkpointInterval == 0 && batch < batches.numBatches()) {
+                        saveCheckpoint(new ModelCheckpoint.Progress(epoch, batch, randomState));
+                    }
+                    if (controller != null) {
+                        t = TrainingProfiler.start();
+                        stopped = controller.afterStep(this);
+                        profiler.lap(t, 0, TrainingProfiler.VALIDATE, 0);
+                        if (stopped) {
+                            break;
+                        }
+                    }
                 }
-                outputLayer.setLearningRate(decayingLR);
 
-                // forward pass through the entire batch
-                float[][] hiddenOutput = batchData;
-                for (HiddenLayer layer : hiddenLayers) {
-                    hiddenOutput = layer.forwardPass(hiddenOutput);
+                float epochLoss = samples == 0 ? 0f : (float) (totalLoss / samples);
+                System.out.printf("Epoch %d - Loss: %.4f%n", epoch + 1, epochLoss);
+                if (checkpointPath != null) {
+                    saveCheckpoint(new ModelCheckpoint.Progress(epoch + 1, 0, randomState));
                 }
-                float[][] predictions = outputLayer.forwardPass(hiddenOutput);
+                profiler.endEpoch(epoch, steps, samples, epochLoss);
+            }
+            if (controller != null) {
+                controller.end(this);
+            }
+        } finally {
+            if (prefetcher != null) {
+                prefetcher.close();
+            }
+        }
+    }
 
-                // compute batch loss
-                totalLoss += outputLayer.crossEntropyLossBatch(predictions, batchLabels);
 
-                // backward pass for the entire batch
-                float[][] outputGradients = outputLayer.backProp(batchLabels);
-                float[][] gradients = outputGradients;
-                for (int i = hiddenLayers.length - 1; i >= 0; i--) {
-                    gradients = hiddenLayers[i].backProp(gradients);
-                }
+    // streaming training for data that does not fit in memory: the dataset is read one window of windowRows rows
+    // at a time, the rows of a window are shuffled and trained on in batches, then the next window is read into
+    // the same buffers. peak memory is the window, not the dataset. windows of a binary dataset are visited
+    // in a new random order every epoch, csv windows in file order
+    public void trainStreaming(StreamingDataset data, int windowRows, int batchSize, int epochs) throws IOException {
+        // whole batches per window
+        windowRows = Math.min(data.numRows, Math.max(batchSize, windowRows / batchSize * batchSize));
+        int numWindows = (data.numRows + windowRows - 1) / windowRows;
+        int lastRows = data.numRows - (numWindows - 1) * windowRows;
+
+        // the window stays uint8, rows are normalized when the batches are gathered
+        byte[] pixels = new byte[windowRows * data.numCols];
+        int[] labels = new int[windowRows];
+        ByteMatrix window = ByteMatrix.normalized(pixels, windowRows, data.numCols,
+                DataManager.normalizationMean, DataManager.normalizationStd);
+
+        DataManager.BatchIterator full = new DataManager.BatchIterator(window, labels, batchSize);
+        DataManager.BatchIterator last = lastRows == windowRows ? full
+                : new DataManager.BatchIterator(window.rows(0, lastRows), labels, batchSize);
+
+        int[] windowOrder = new int[numWindows];
+        for (int i = 0; i < numWindows; i++) {
+            windowOrder[i] = i;
+        }
 
-                // update parameters for each layer
-                for (HiddenLayer layer : hiddenLayers) {
-                    layer.updateParameters();
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            setEpochLearningRate(epoch);
+            if (data.isRandomAccess()) {
+                DataManager.shuffle(windowOrder, random);
+            }
+
+            profiler.beginEpoch();
+            double totalLoss = 0;
+            long samples = 0;
+            int numBatches = 0;
+            for (int w : windowOrder) {
+                long t = TrainingProfiler.start();
+                int start = w * windowRows;
+                int count = Math.min(windowRows, data.numRows - start);
+                data.read(start, count, pixels, labels);
+
+                DataManager.BatchIterator batches = count == windowRows ? full : last;
+                batches.newEpoch(random);
+                while (batches.hasNext()) {
+                    DataManager.MiniBatch batch = batches.next();
+                    profiler.lap(t, 0, TrainingProfiler.BATCH, 0);
+
+                    profiler.beginStep();
+                    int rows = batch.data.rows;
+                    float loss = trainStep(batch.data, batch.labels);
+                    profiler.endStep(epoch, numBatches, rows, loss);
+                    // mean per sample like train(), the last batch of a window can be smaller
+                    totalLoss += (double) loss * rows;
+                    samples += rows;
+                    numBatches++;
+                    t = TrainingProfiler.start();
                 }
-                outputLayer.updateParametersMomentum(batchSize);
             }
 
-            System.out.printf("Epoch %d - Loss: %.4f%n", epoch + 1, totalLoss / trainData[0].length);
+            float epochLoss = samples == 0 ? 0f : (float) (totalLoss / samples);
+            System.out.printf("Epoch %d - Loss: %.4f%n", epoch + 1, epochLoss);
+            profiler.endEpoch(epoch, numBatches, samples, epochLoss);
         }
     }
 
+    // a failed checkpoint is reported but does not stop the training
+    private void saveCheckpoint(ModelCheckpoint.Progress progress) {
+        long t = TrainingProfiler.start();
+        try {
+            ModelCheckpoint.save(this, checkpointPath, progress);
+        } catch (IOException e) {
+            System.err.println("Could not write checkpoint " + checkpointPath + ": " + e.getMessage());
+        }
+        profiler.lap(t, 0, TrainingProfiler.CHECKPOINT, 0);
+    }
 
-    // validation function, the data go through forward pass and loss is computed
-    public float[] validate(float[][] valData, int[] valLabels, String file_name) {
-        float[][] predictions = forwardPass(valData);
-        int correct = 0;
-        float valLoss = 0;
-        int[] predicted = new int[valLabels.length];
+    private void setEpochLearningRate(int epoch) {
+        // compute the decayed learning rate
+        float decayingLR = (float) (learningRate * Math.exp(-decayRate * epoch));
+        System.out.println("LEARNING RATE: " + decayingLR);
+        applyLearningRate(decayingLR);
+    }
+
+    // update learning rate for all layers
+    private void applyLearningRate(float rate) {
+        for (HiddenLayer layer : hiddenLayers) {
+            layer.setLearningRate(rate);
+        }
+        outputLayer.setLearningRate(rate);
+    }
+
+    // one forward + backward pass and parameter update, all buffers are owned by the layers so a step
+    // with an already seen batch size does not allocate. labels are class indices, not one-hot rows
+    float trainStep(Matrix batchData, int[] batchLabels) {
+        if (numThreads > 1 && batchData.rows > 1) {
+            return trainStepParallel(batchData, batchLabels);
+        }
+
+        float loss = forwardBackward(hiddenLayers, outputLayer, batchData, batchLabels, 0, profiler, 0);
+
+        // update parameters for each layer, the gradients are sums over the rows of the batch
+        long t = TrainingProfiler.start();
+        for (int i = 0; i < hiddenLayers.length; i++) {
+            hiddenLayers[i].updateParameters(batchData.rows);
+            t = profiler.lap(t, 0, TrainingProfiler.UPDATE, i);
+        }
+        outputLayer.updateParameters(batchData.rows);
+        profiler.lap(t, 0, TrainingProfiler.UPDATE, hiddenLayers.length);
+
+        return loss;
+    }
+
+    // forward and backward pass of one batch through the given layers, leaves the gradients in the layers.
+    // the label of row i is batchLabels[labelOffset + i], the time of every layer goes to the worker's counters
+    private static float forwardBackward(HiddenLayer[] hidden, OutputLayer output, Matrix batchData, int[] batchLabels,
+                                         int labelOffset, TrainingProfiler profiler, int worker) {
+        // forward pass through the entire batch
+        long t = TrainingProfiler.start();
+        Matrix hiddenOutput = batchData;
+        for (int i = 0; i < hidden.length; i++) {
+            hiddenOutput = hidden[i].forwardPass(hiddenOutput);
+            t = profiler.lap(t, worker, TrainingProfiler.FORWARD, i);
+        }
+        Matrix predictions = output.forwardPass(hiddenOutput);
+        t = profiler.lap(t, worker, TrainingProfiler.FORWARD, hidden.length);
+
+        // compute batch loss
+        float loss = output.crossEntropyLoss(predictions, batchLabels, labelOffset);
+        t = profiler.lap(t, worker, TrainingProfiler.LOSS, hidden.length);
+
+        // backward pass for the entire batch
+        Matrix gradients = output.backProp(batchLabels, labelOffset);
+        t = profiler.lap(t, worker, TrainingProfiler.BACKWARD, hidden.length);
+        for (int i = hidden.length - 1; i >= 0; i--) {
+            gradients = hidden[i].backProp(gradients);
+            t = profiler.lap(t, worker, TrainingProfiler.BACKWARD, i);
+        }
+        return loss;
+    }
 
-        float[][] targets = DataManager.toOneHot(valLabels, outputLayer.outputLen);
+    // splits the batch into contiguous row shards, one per worker, then sums the shard gradients
+    // into this network's layers and does a single parameter update
+    private float trainStepParallel(Matrix batchData, int[] batchLabels) {
+        int rows = batchData.rows;
+        stepData = batchData;
+        stepLabels = batchLabels;
+        stepShards = Math.min(numThreads, rows);
+        stepWorkers.run(shardTask);
+
+        long t = TrainingProfiler.start();
+        stepWorkers.run(reduceTask);
+        t = profiler.lap(t, 0, TrainingProfiler.REDUCE, 0);
+
+        // gradients are sums over the whole batch now, so scale by the full batch size
+        for (int i = 0; i < hiddenLayers.length; i++) {
+            hiddenLayers[i].updateParameters(rows);
+            t = profiler.lap(t, 0, TrainingProfiler.UPDATE, i);
+        }
+        outputLayer.updateParameters(rows);
+        profiler.lap(t, 0, TrainingProfiler.UPDATE, hiddenLayers.length);
+
+        float loss = 0;
+        for (int w = 0; w < stepShards; w++) {
+            loss += workerLoss[w];
+        }
+        return loss / rows;
+    }
+
+    // forward and backward pass of the worker's shard of stepData
+    private void trainShard(int worker) {
+        if (worker >= stepShards) {
+            return;
+        }
+        int rows = stepData.rows;
+        int start = worker * rows / stepShards, end = (worker + 1) * rows / stepShards;
+        if (shardSources[worker] != stepData) {
+            shardSources[worker] = stepData;
+            shardViews[worker] = stepData.rows(start, end);
+        }
+        float shardLoss = forwardBackward(workerHiddenLayers[worker], workerOutputLayers[worker],
+                shardViews[worker], stepLabels, start, profiler, worker);
+        workerLoss[worker] = shardLoss * (end - start);
+    }
+
+    private void reduceShard(int stripe) {
+        if (stripe < stepShards) {
+            reduceGradients(stripe, stepShards);
+        }
+    }
 
-        for (int i = 0; i < valData.length; i++) {
-            int predictedClass = getArgMax(predictions[i]);
-            predicted[i] = predictedClass;
-            if (predictedClass == valLabels[i]) {
-                correct++;
+    // striped reduction: stripe s sums its share of weight rows of every layer over all workers,
+    // always in worker order, so the result does not depend on thread timing
+    private void reduceGradients(int stripe, int shards) {
+        for (int i = 0; i < hiddenLayers.length; i++) {
+            int n = hiddenLayers[i].inputLen;
+            int start = stripe * n / shards, end = (stripe + 1) * n / shards;
+            for (int w = 1; w < shards; w++) {
+                hiddenLayers[i].addGradients(workerHiddenLayers[w][i], start, end, stripe == 0);
             }
+        }
+        int n = outputLayer.inputLen;
+        int start = stripe * n / shards, end = (stripe + 1) * n / shards;
+        for (int w = 1; w < shards; w++) {
+            outputLayer.addGradients(workerOutputLayers[w], start, end, stripe == 0);
+        }
+    }
 
-            valLoss += outputLayer.crossEntropyLossBatch(predictions, targets);
+    private void runAll(List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> f : workerPool.invokeAll(tasks)) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Training was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Training worker failed", e.getCause());
         }
+    }
 
-        FileUtil.saveLabelsToCSV(predicted, file_name); // create the predictions file(s)
+    // rows per inference chunk, every worker reuses its activation buffers of this size
+    private static final int INFERENCE_CHUNK = Integer.getInteger("ffnn.infer.chunk", 256);
+    private static final int TRAIN_ROWS = 60000;
+    private static final int TEST_ROWS = 10000;
+    // headroom on the time to load the test set, estimated as the training set's load time scaled by rows
+    private static final double TEST_LOAD_HEADROOM = 2.0;
+    private static final int INT8_CALIBRATION_ROWS = 1000;
+
+    // validation rows set aside to calibrate the int8 model, at most half of them
+    private static int calibrationRows(int validationRows) {
+        return Math.min(INT8_CALIBRATION_ROWS, validationRows / 2);
+    }
+
+    public static class Evaluation {
+        public final int[] predictions;
+        public final float accuracy; // fraction of correct predictions, 0 without labels
+        public final float loss;     // mean cross-entropy, 0 without labels
 
-        float accuracy = (float) correct / valData.length;
-        System.out.printf("Validation Accuracy: %.2f%%%n", accuracy * 100);
-        return new float[] {valLoss, accuracy * 100};
+        Evaluation(int[] predictions, float accuracy, float loss) {
+            this.predictions = predictions;
+            this.accuracy = accuracy;
+            this.loss = loss;
+        }
     }
 
-    private int getArgMax(float[] array) {
+    // validation function, the data go through forward pass and loss is computed
+    public float[] validate(Matrix valData, int[] valLabels, String file_name) {
+        return report(evaluate(valData, valLabels), file_name);
+    }
+
+    public float[] validate(ByteMatrix valData, int[] valLabels, String file_name) {
+        return report(evaluate(valData, valLabels), file_name);
+    }
+
+    private float[] report(Evaluation evaluation, String file_name) {
+        FileUtil.saveLabelsToCSV(evaluation.predictions, file_name); // create the predictions file(s)
+
+        System.out.printf("Validation Accuracy: %.2f%%%n", evaluation.accuracy * 100);
+        return new float[] {evaluation.loss, evaluation.accuracy * 100};
+    }
+
+    // predicted classes of all rows
+    public int[] predict(Matrix data) {
+        return evaluate(data, null).predictions;
+    }
+
+    // inference over the whole set in chunks of INFERENCE_CHUNK rows, spread over the worker threads.
+    // the output layer only produces logits: argmax of the logits is argmax of the softmax, and the loss of a row
+    // is logsumexp(z) - z[label], so both come out of one pass over each row without building probabilities.
+    // labels may be null, then only the predictions are computed
+    public Evaluation evaluate(Matrix data, int[] labels) {
+        return evaluate(data, null, data.rows, labels);
+    }
+
+    public Evaluation evaluate(ByteMatrix data, int[] labels) {
+        return evaluate(null, data, data.rows, labels);
+    }
+
+    private Evaluation evaluate(Matrix data, ByteMatrix pixels, int rows, int[] labels) {
+        if (rows == 0) {
+            return new Evaluation(new int[0], 0f, 0f);
+        }
+        int numChunks = (rows + INFERENCE_CHUNK - 1) / INFERENCE_CHUNK;
+        int workers = Math.min(workerPool == null ? 1 : numThreads, numChunks);
+        int[] predictions = new int[rows];
+        int[] correct = new int[workers];
+        double[] loss = new double[workers];
+
+        List<Callable<Void>> tasks = new ArrayList<>(workers);
+        for (int w = 0; w < workers; w++) {
+            int worker = w;
+            tasks.add(() -> {
+                // pooled activation buffers of this worker thread, the layers themselves are only read
+                Workspace workspace = workspaces.get();
+
+                for (int chunk = worker; chunk < numChunks; chunk += workers) {
+                    int start = chunk * INFERENCE_CHUNK;
+                    int end = Math.min(start + INFERENCE_CHUNK, rows);
+                    int n = end - start;
+
+                    Matrix x = pixels == null ? data.rows(start, end) : dequantize(pixels, start, end, workspace);
+                    Matrix z = logits(x, workspace);
+
+                    for (int i = 0; i < n; i++) {
+                        int row = z.index(i, 0);
+                        int predicted = argMax(z.data, row, z.cols);
+                        predictions[start + i] = predicted;
+                        if (labels != null) {
+                            if (predicted == labels[start + i]) {
+                                correct[worker]++;
+                            }
+                            loss[worker] += crossEntropy(z.data, row, z.cols, z.data[row + predicted], labels[start + i]);
+                        }
+                    }
+                }
+                return null;
+            });
+        }
+
+        if (workers > 1) {
+            runAll(tasks);
+        } else {
+            try {
+                tasks.get(0).call();
+            } catch (Exception e) {
+                throw new IllegalStateException("Inference failed", e);
+            }
+        }
+
+        if (labels == null) {
+            return new Evaluation(predictions, 0f, 0f);
+        }
+        int totalCorrect = 0;
+        double totalLoss = 0;
+        for (int w = 0; w < workers; w++) {
+            totalCorrect += correct[w];
+            totalLoss += loss[w];
+        }
+        return new Evaluation(predictions, (float) totalCorrect / rows, (float) (totalLoss / rows));
+    }
+
+    static int argMax(float[] z, int offset, int n) {
         int maxIndex = 0;
-        for (int i = 1; i < array.length; i++) {
-            if (array[i] > array[maxIndex]) {
-                maxIndex = i;
+        for (int j = 1; j < n; j++) {
+            if (z[offset + j] > z[offset + maxIndex]) {
+                maxIndex = j;
             }
         }
         return maxIndex;
     }
 
+    // -log(softmax(z)[label]) = log(sum(exp(z - max))) + max - z[label], stable for any logits
+    private static double crossEntropy(float[] z, int offset, int n, float max, int label) {
+        double sumExp = 0;
+        for (int j = 0; j < n; j++) {
+            sumExp += Math.exp(z[offset + j] - max);
+        }
+        return Math.log(sumExp) + max - z[offset + label];
+    }
+
     public static void main(String[] args) throws IOException {
+        long jobStart = System.nanoTime();
         int inputLen = 784; 
         int[] hiddenLayerSizes = {256, 128};
         int outputLen = 10;
-        float learningRate = 0.008f;
         float momentum = 0.9f;
+        Optimizer optimizer = Optimizer.fromProperties(momentum);
+        float learningRate = optimizer.isAdaptive() ? 0.001f : 0.008f;
         int batchSize = 32;
-        int epochs = 10;
-
-        NeuralNetwork neuralNetwork = new NeuralNetwork(inputLen, hiddenLayerSizes, outputLen, learningRate, momentum);
-        neuralNetwork.decayRate = 0.02F;
-
-        float[][] trainData;
-        int[] trainLabels;
-
-        DataManager dm = new DataManager();
-
-        float[][] images = dm.loadImageData("data/fashion_mnist_train_vectors.csv", 60000, 784, true);
-        int[] labels = dm.loadLabels("data/fashion_mnist_train_labels.csv", 60000);
+        // -Dffnn.budget=<seconds>: the whole job has to finish within that time, epochs is then only a maximum
+        String budget = System.getProperty("ffnn.budget");
+        int epochs = Integer.getInteger("ffnn.epochs", budget == null ? 10 : 30);
+        long seed = 42;
+        int numThreads = Integer.getInteger("ffnn.threads", 1);
+
+        // -Dffnn.model=<file>: a saved model is used as is, otherwise the trained model is saved there.
+        // -Dffnn.checkpoint=<file>: checkpoints every -Dffnn.checkpoint.every batches, an existing one is resumed
+        String modelPath = System.getProperty("ffnn.model");
+        String checkpointPath = System.getProperty("ffnn.checkpoint");
+        boolean pretrained = modelPath != null && new File(modelPath).exists();
+
+        NeuralNetwork neuralNetwork;
+        if (pretrained) {
+            neuralNetwork = ModelCheckpoint.load(modelPath);
+        } else if (checkpointPath != null && new File(checkpointPath).exists()) {
+            neuralNetwork = ModelCheckpoint.load(checkpointPath);
+        } else {
+            neuralNetwork = new NeuralNetwork(inputLen, hiddenLayerSizes, outputLen, learningRate, optimizer, seed);
+            neuralNetwork.decayRate = 0.02F;
+        }
+        if (checkpointPath != null) {
+            neuralNetwork.setCheckpoint(checkpointPath, Integer.getInteger("ffnn.checkpoint.every", 500));
+        }
+        neuralNetwork.setNumThreads(numThreads);
+        System.out.println("Optimizer: " + neuralNetwork.getOptimizer() + ", learning rate " + neuralNetwork.getLearningRate());
+        if (neuralNetwork.offHeapBytes() > 0) {
+            System.out.printf("Off-heap parameters, gradients and optimizer state: %.1f MB%n", neuralNetwork.offHeapBytes() / 1e6);
+        }
+        if (Boolean.getBoolean("ffnn.flip")) {
+            neuralNetwork.setAugmentation(BatchPrefetcher.horizontalFlip(28, 0.5f));
+        }
 
-        DataManager.DataSplit split = DataManager.splitData(images, labels, 0.8f);
-        trainData = split.trainData;
-        trainLabels = split.trainLabels;;
+        int streamWindow = Integer.getInteger("ffnn.stream", 0);
+        if (budget != null && streamWindow > 0 && !pretrained) {
+            throw new IllegalArgumentException("-Dffnn.budget is not supported with -Dffnn.stream");
+        }
+        if (pretrained) {
+            System.out.println("Loaded model " + modelPath);
+        } else if (streamWindow > 0) {
+            // out-of-core mode, -Dffnn.stream=<window rows>: trains on the whole training set without loading it,
+            // from the binary cache if there is one, the test set is the only validation
+            String cachePath = "data/fashion_mnist_train_vectors.bin";
+            try (StreamingDataset stream = new File(cachePath).exists() ? StreamingDataset.binary(cachePath, true)
+                    : StreamingDataset.csv("data/fashion_mnist_train_vectors.csv", "data/fashion_mnist_train_labels.csv", TRAIN_ROWS, 784, true)) {
+                System.out.println("start:" + LocalTime.now());
+                neuralNetwork.trainStreaming(stream, streamWindow, batchSize, epochs);
+            }
+        } else {
+            ByteMatrix trainData;
+            int[] trainLabels;
+
+            // the training set stays uint8 (47 MB instead of 188 MB as floats)
+            long loadStart = System.nanoTime();
+            DataManager.PixelDataset train = DataManager.loadPixelDataset("data/fashion_mnist_train_vectors.csv",
+                    "data/fashion_mnist_train_labels.csv", TRAIN_ROWS, 784, true);
+
+            DataManager.PixelSplit split = DataManager.splitData(train.images, train.labels, 0.8f, new Random(seed));
+            trainData = split.trainData;
+            trainLabels = split.trainLabels;
+
+            validateLabels = split.valLabels;
+
+            if (budget != null) {
+                // stops at -Dffnn.target accuracy, or when it stops improving, or in time for the rest of the job:
+                // loading the test set and saving the model (both estimated from the training set's load above), a
+                // -Dffnn.budget.margin of seconds, and predicting the validation and test rows, with -Dffnn.int8 also
+                // the calibration rows and a float and an int8 pass for the report. evaluated every
+                // -Dffnn.validate.every batches on -Dffnn.validate.rows validation rows,
+                // -Dffnn.schedule=cosine|onecycle|plateau|exponential
+                long loadNanos = System.nanoTime() - loadStart;
+                long testLoad = (long) (loadNanos * TEST_LOAD_HEADROOM * TEST_ROWS / TRAIN_ROWS);
+                long save = modelPath == null ? 0
+                        : (long) (loadNanos * TEST_LOAD_HEADROOM * ModelCheckpoint.fileBytes(neuralNetwork) / ((long) TRAIN_ROWS * inputLen));
+                long inferenceRows = split.valData.rows + (long) TEST_ROWS;
+                if (Boolean.getBoolean("ffnn.int8")) {
+                    int calibrationRows = calibrationRows(split.valData.rows);
+                    inferenceRows += calibrationRows + 2L * (split.valData.rows - calibrationRows);
+                }
+                long margin = (long) (Double.parseDouble(System.getProperty("ffnn.budget.margin", "15")) * 1e9);
+                TrainingController controller = new TrainingController(jobStart + (long) (Double.parseDouble(budget) * 1e9),
+                        Float.parseFloat(System.getProperty("ffnn.target", "0.88")));
+                controller.setSchedule(TrainingController.schedule(System.getProperty("ffnn.schedule", "cosine")));
+                controller.setValidation(split.valData, validateLabels, Integer.getInteger("ffnn.validate.rows", 2000),
+                        Integer.getInteger("ffnn.validate.every", 200));
+                controller.setPatience(Integer.getInteger("ffnn.patience", 10), 0.001f);
+                controller.setReserve(testLoad + save + margin, inferenceRows);
+                neuralNetwork.setController(controller);
+            }
 
-        validateData = split.valData;
-        validateLabels = split.valLabels;
+            System.out.println("start:" + LocalTime.now());
+            neuralNetwork.trainBatch(trainData, trainLabels, batchSize, epochs);
 
-        System.out.println("start:" + LocalTime.now());
-        neuralNetwork.trainBatch(trainData, trainLabels, batchSize, epochs);
+            float[] v = neuralNetwork.validate(split.valData, validateLabels, "train_predictions.csv");
 
-        float[] v = neuralNetwork.validate(validateData, validateLabels, "train_predictions.csv");
+            if (Boolean.getBoolean("ffnn.int8")) {
+                // -Dffnn.int8=true: int8 copy of the model, activation ranges calibrated on the last validation rows
+                // and compared on the others, so the report does not score the rows the ranges were fitted to
+                int reportRows = split.valData.rows - calibrationRows(split.valData.rows);
+                QuantizedNetwork quantized = QuantizedNetwork.quantize(neuralNetwork, split.valData.rows(reportRows, split.valData.rows));
+                quantized.report(neuralNetwork, split.valData.rows(0, reportRows), Arrays.copyOf(validateLabels, reportRows));
+            }
+        }
+        if (modelPath != null && !pretrained) {
+            ModelCheckpoint.save(neuralNetwork, modelPath, null);
+        }
 
-        float[][] finalValData = dm.loadImageData("data/fashion_mnist_test_vectors.csv", 10000, 784, false);
-        int[] finalValLabels = dm.loadLabels("data/fashion_mnist_test_labels.csv", 10000);
+        DataManager.Dataset test = DataManager.loadDataset("data/fashion_mnist_test_vectors.csv",
+                "data/fashion_mnist_test_labels.csv", TEST_ROWS, 784, false);
 
         System.out.println("FINAL VALIDATION");
-        neuralNetwork.validate(finalValData, finalValLabels, "test_predictions.csv");
+        neuralNetwork.validate(test.images, test.labels, "test_predictions.csv");
+        neuralNetwork.close();
         System.out.println("end:" + LocalTime.now());
     }
 }
@@ -0,0 +1,42 @@
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteOrder;
+
+public class OffHeapArena implements AutoCloseable {
+
+    // native memory for the matrices whose size grows with the model: weights, their gradients and the optimizer
+    // state. these can be hundreds of MB for wide layers, off the heap they don't count towards -Xmx and are never
+    // copied by the gc, the heap only keeps the Matrix objects and the per batch workspaces.
+    // every matrix is its own 64-byte aligned segment (a cache line, and a whole vector of the widest SIMD
+    // registers) in one shared scope, so any thread can use them. close() frees them all at once, after that any
+    // access throws. an arena that is never closed is freed by the gc when it becomes unreachable.
+    // this is the incubating jdk.incubator.foreign api of jdk 17 (ResourceScope is what became Arena),
+    // it needs --add-modules jdk.incubator.foreign, but only when an arena is actually created
+
+    public static final long ALIGNMENT = 64;
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final ResourceScope scope = ResourceScope.newSharedScope(CLEANER);
+    private long allocatedBytes;
+
+    // zeroed rows x cols matrix in native memory
+    public synchronized Matrix matrix(int rows, int cols) {
+        long bytes = Math.max(1L, (long) rows * cols) * Float.BYTES;
+        MemorySegment segment = MemorySegment.allocateNative(bytes, ALIGNMENT, scope);
+        segment.fill((byte) 0);
+        allocatedBytes += bytes;
+        return new Matrix(segment.asByteBuffer().order(ByteOrder.nativeOrder()).asFloatBuffer(), 0, rows, cols, cols, 1);
+    }
+
+    public synchronized long allocatedBytes() {
+        return allocatedBytes;
+    }
+
+    @Override
+    public void close() {
+        scope.close();
+    }
+}
@@ -0,0 +1,460 @@
+import java.util.Map;
+
+public abstract class Optimizer {
+
+    // how a layer turns the gradients summed over a batch into a step of its parameters. g is the gradient
+    // averaged over the batch, every rule is one fused pass that reads each parameter, its gradient and its
+    // state once and writes the parameter and the state back, nothing is allocated:
+    //   Sgd        w -= lr * g
+    //   Momentum   v = mu * v - lr * g, w += v
+    //   Nesterov   v = mu * v - lr * g, w += mu * v - lr * g  (the step looks ahead along the new velocity)
+    //   RmsProp    s = rho * s + (1 - rho) * g^2, w -= lr * g / (sqrt(s) + eps)
+    //   Adam       m = b1 * m + (1 - b1) * g, v = b2 * v + (1 - b2) * g^2, w -= lr * m^ / (sqrt(v^) + eps)
+    //   AdamW      adam, and the weights (not the biases) decay by w -= lr * wd * w in the same pass
+    // m^ and v^ are the bias corrected moments, folded into the step size and eps once per step.
+    // an Optimizer only holds the hyperparameters and is shared by all layers, the moments live in a State per layer.
+    // every rule has an id that ModelCheckpoint writes, REGISTRY turns it back into the optimizer.
+    // -Dffnn.optimizer=sgd|momentum|nesterov|rmsprop|adam|adamw picks it for main, momentum is the default
+
+    private static final String[] NAMES = {"sgd", "momentum", "nesterov", "rmsprop", "adam", "adamw"};
+
+    // checkpoint id -> the optimizer with the hyperparameters of the file, see hyperparameters()
+    private interface Factory {
+        Optimizer create(float[] hyperparameters);
+    }
+
+    private static final Map<Integer, Factory> REGISTRY = Map.of(
+            Sgd.ID, p -> new Sgd(),
+            Momentum.ID, p -> new Momentum(p[0]),
+            Nesterov.ID, p -> new Nesterov(p[0]),
+            RmsProp.ID, p -> new RmsProp(p[0], p[2]),
+            Adam.ID, p -> new Adam(p[0], p[1], p[2]),
+            AdamW.ID, p -> new AdamW(p[0], p[1], p[2], p[3]));
+
+    public static final int HYPERPARAMETERS = 4;
+
+    public static Optimizer sgd() {
+        return new Sgd();
+    }
+
+    public static Optimizer momentum(float momentum) {
+        return new Momentum(momentum);
+    }
+
+    public static Optimizer nesterov(float momentum) {
+        return new Nesterov(momentum);
+    }
+
+    public static Optimizer rmsProp(float rho) {
+        return new RmsProp(rho, 1e-8f);
+    }
+
+    public static Optimizer adam(float beta1, float beta2) {
+        return new Adam(beta1, beta2, 1e-8f);
+    }
+
+    public static Optimizer adamW(float beta1, float beta2, float weightDecay) {
+        return new AdamW(beta1, beta2, 1e-8f, weightDecay);
+    }
+
+    // the optimizer a checkpoint saved with id() and hyperparameters(), null if the id is unknown
+    public static Optimizer forId(int id, float[] hyperparameters) {
+        Factory factory = REGISTRY.get(id);
+        return factory == null ? null : factory.create(hyperparameters);
+    }
+
+    // the optimizer named by -Dffnn.optimizer, momentum is the one of the sgd variants,
+    // -Dffnn.weight.decay sets adamw's decay
+    public static Optimizer fromProperties(float momentum) {
+        String name = System.getProperty("ffnn.optimizer", "momentum");
+        switch (name) {
+            case "sgd": return sgd();
+            case "momentum": return momentum(momentum);
+            case "nesterov": return nesterov(momentum);
+            case "rmsprop": return rmsProp(0.9f);
+            case "adam": return adam(0.9f, 0.999f);
+            case "adamw": return adamW(0.9f, 0.999f, Float.parseFloat(System.getProperty("ffnn.weight.decay", "0.01")));
+            default: throw new IllegalArgumentException("Unknown optimizer " + name + ", expected one of " + String.join(", ", NAMES));
+        }
+    }
+
+    // id in the checkpoint, a key of REGISTRY
+    public abstract int id();
+
+    // buffers of state per parameter: the velocity, the mean square, or adam's two moments
+    public abstract int numStates();
+
+    // HYPERPARAMETERS values for the checkpoint: beta1 (momentum, rho), beta2, epsilon, weight decay, 0 if unused
+    public abstract float[] hyperparameters();
+
+    // true for the rules that scale the step per parameter, they want a smaller learning rate (~0.001)
+    public boolean isAdaptive() {
+        return false;
+    }
+
+    // state of one layer, shaped like its parameters: numStates() weight matrices (in the layer's arena if it has
+    // one) and bias arrays, and the number of steps taken so far
+    public static class State {
+        public final Matrix[] weights;
+        public final float[][] biases;
+        public int steps;
+        private float[] staging; // rows of off-heap operands, allocated on the first update that needs it
+        // of the current step, set by beginStep
+        float rate;
+        float epsilon;
+        float decay;
+
+        State(Matrix[] weights, float[][] biases) {
+            this.weights = weights;
+            this.biases = biases;
+        }
+    }
+
+    public State newState(int rows, int cols, OffHeapArena arena) {
+        Matrix[] weights = new Matrix[numStates()];
+        float[][] biases = new float[numStates()][];
+        for (int s = 0; s < weights.length; s++) {
+            weights[s] = Matrix.allocate(rows, cols, arena);
+            biases[s] = new float[cols];
+        }
+        return new State(weights, biases);
+    }
+
+    // one step of a layer's weights and biases from its gradients summed over batchSize rows, all in place
+    public void update(Matrix weights, float[] biases, Matrix gradientsW, float[] gradientsB, State state,
+                       float learningRate, int batchSize) {
+        state.steps++;
+        beginStep(state, learningRate);
+        float gradScale = 1.0f / batchSize;
+
+        Matrix s0 = state.weights.length > 0 ? state.weights[0] : null;
+        Matrix s1 = state.weights.length > 1 ? state.weights[1] : null;
+        int cols = weights.cols;
+        boolean onHeap = weights.isOnHeap() && gradientsW.isOnHeap() && (s0 == null || s0.isOnHeap()) && (s1 == null || s1.isOnHeap());
+        if (!onHeap && state.staging == null) {
+            state.staging = new float[4 * cols];
+        }
+        for (int i = 0; i < weights.rows; i++) {
+            if (onHeap) {
+                step(weights.data, weights.index(i, 0), gradientsW.data, gradientsW.index(i, 0),
+                        s0 == null ? null : s0.data, s0 == null ? 0 : s0.index(i, 0),
+                        s1 == null ? null : s1.data, s1 == null ? 0 : s1.index(i, 0),
+                        cols, gradScale, state, true);
+                continue;
+            }
+            // off-heap rows are copied next to each other, updated and the parameter and state rows copied back
+            float[] staging = state.staging;
+            weights.readRow(i, staging, 0);
+            gradientsW.readRow(i, staging, cols);
+            if (s0 != null) {
+                s0.readRow(i, staging, 2 * cols);
+            }
+            if (s1 != null) {
+                s1.readRow(i, staging, 3 * cols);
+            }
+            step(staging, 0, staging, cols, staging, 2 * cols, staging, 3 * cols, cols, gradScale, state, true);
+            weights.writeRow(i, staging, 0);
+            if (s0 != null) {
+                s0.writeRow(i, staging, 2 * cols);
+            }
+            if (s1 != null) {
+                s1.writeRow(i, staging, 3 * cols);
+            }
+        }
+
+        step(biases, 0, gradientsB, 0, state.biases.length > 0 ? state.biases[0] : null, 0,
+                state.biases.length > 1 ? state.biases[1] : null, 0, biases.length, gradScale, state, false);
+    }
+
+    // once per update, before the rows: the rate, epsilon and decay of this step into the state
+    void beginStep(State state, float learningRate) {
+        state.rate = learningRate;
+        state.epsilon = 0f;
+        state.decay = 1.0f;
+    }
+
+    // the fused update of n parameters w[wo..] with gradients g[go..] and the state buffers s[so..], t[to..]
+    // (null past numStates()), weights is false for the biases
+    abstract void step(float[] w, int wo, float[] g, int go, float[] s, int so, float[] t, int to, int n,
+                       float gradScale, State state, boolean weights);
+
+    static class Sgd extends Optimizer {
+        static final int ID = 0;
+
+        @Override
+        public int id() {
+            return ID;
+        }
+
+        @Override
+        public int numStates() {
+            return 0;
+        }
+
+        @Override
+        public float[] hyperparameters() {
+            return new float[HYPERPARAMETERS];
+        }
+
+        @Override
+        void step(float[] w, int wo, float[] g, int go, float[] s, int so, float[] t, int to, int n,
+                  float gradScale, State state, boolean weights) {
+            float scale = -state.rate * gradScale;
+            if (MatrixOperations.useVectorApi) {
+                VectorKernels.sgdStep(w, wo, g, go, n, scale);
+                return;
+            }
+            for (int j = 0; j < n; j++) {
+                w[wo + j] += g[go + j] * scale;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "sgd";
+        }
+    }
+
+    static class Momentum extends Optimizer {
+        static final int ID = 1;
+        final float momentum;
+
+        Momentum(float momentum) {
+            this.momentum = momentum;
+        }
+
+        @Override
+        public int id() {
+            return ID;
+        }
+
+        @Override
+        public int numStates() {
+            return 1;
+        }
+
+        @Override
+        public float[] hyperparameters() {
+            return new float[] {momentum, 0f, 0f, 0f};
+        }
+
+        @Override
+        void step(float[] w, int wo, float[] g, int go, float[] s, int so, float[] t, int to, int n,
+                  float gradScale, State state, boolean weights) {
+            float scale = -state.rate * gradScale;
+            if (MatrixOperations.useVectorApi) {
+                VectorKernels.momentumStep(w, wo, g, go, s, so, n, momentum, scale, false);
+                return;
+            }
+            for (int j = 0; j < n; j++) {
+                float v = s[so + j] * momentum + g[go + j] * scale;
+                s[so + j] = v;
+                w[wo + j] += v;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "momentum(" + momentum + ")";
+        }
+    }
+
+    static class Nesterov extends Optimizer {
+        static final int ID = 2;
+        final float momentum;
+
+        Nesterov(float momentum) {
+            this.momentum = momentum;
+        }
+
+        @Override
+        public int id() {
+            return ID;
+        }
+
+        @Override
+        public int numStates() {
+            return 1;
+        }
+
+        @Override
+        public float[] hyperparameters() {
+            return new float[] {momentum, 0f, 0f, 0f};
+        }
+
+        @Override
+        void step(float[] w, int wo, float[] g, int go, float[] s, int so, float[] t, int to, int n,
+                  float gradScale, State state, boolean weights) {
+            float scale = -state.rate * gradScale;
+            if (MatrixOperations.useVectorApi) {
+                VectorKernels.momentumStep(w, wo, g, go, s, so, n, momentum, scale, true);
+                return;
+            }
+            for (int j = 0; j < n; j++) {
+                float step = g[go + j] * scale;
+                float v = s[so + j] * momentum + step;
+                s[so + j] = v;
+                w[wo + j] += v * momentum + step;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "nesterov(" + momentum + ")";
+        }
+    }
+
+    static class RmsProp extends Optimizer {
+        static final int ID = 3;
+        final float rho;
+        final float epsilon;
+
+        RmsProp(float rho, float epsilon) {
+            this.rho = rho;
+            this.epsilon = epsilon;
+        }
+
+        @Override
+        public int id() {
+            return ID;
+        }
+
+        @Override
+        public int numStates() {
+            return 1;
+        }
+
+        @Override
+        public float[] hyperparameters() {
+            return new float[] {rho, 0f, epsilon, 0f};
+        }
+
+        @Override
+        public boolean isAdaptive() {
+            return true;
+        }
+
+        @Override
+        void step(float[] w, int wo, float[] g, int go, float[] s, int so, float[] t, int to, int n,
+                  float gradScale, State state, boolean weights) {
+            float rate = state.rate;
+            if (MatrixOperations.useVectorApi) {
+                VectorKernels.rmsPropStep(w, wo, g, go, s, so, n, rho, gradScale, rate, epsilon);
+                return;
+            }
+            float keep = 1.0f - rho;
+            for (int j = 0; j < n; j++) {
+                float gj = g[go + j] * gradScale;
+                float ms = s[so + j] * rho + gj * gj * keep;
+                s[so + j] = ms;
+                w[wo + j] -= rate * gj / ((float) Math.sqrt(ms) + epsilon);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "rmsprop(" + rho + ")";
+        }
+    }
+
+    static class Adam extends Optimizer {
+        static final int ID = 4;
+        final float beta1;
+        final float beta2;
+        final float epsilon;
+
+        Adam(float beta1, float beta2, float epsilon) {
+            this.beta1 = beta1;
+            this.beta2 = beta2;
+            this.epsilon = epsilon;
+        }
+
+        @Override
+        public int id() {
+            return ID;
+        }
+
+        @Override
+        public int numStates() {
+            return 2;
+        }
+
+        @Override
+        public float[] hyperparameters() {
+            return new float[] {beta1, beta2, epsilon, 0f};
+        }
+
+        @Override
+        public boolean isAdaptive() {
+            return true;
+        }
+
+        @Override
+        void beginStep(State state, float learningRate) {
+            // lr * m^ / (sqrt(v^) + eps) = lr * sqrt(c2) / c1 * m / (sqrt(v) + eps * sqrt(c2))
+            double c1 = 1.0 - Math.pow(beta1, state.steps);
+            double c2 = Math.sqrt(1.0 - Math.pow(beta2, state.steps));
+            state.rate = (float) (learningRate * c2 / c1);
+            state.epsilon = (float) (epsilon * c2);
+            state.decay = 1.0f;
+        }
+
+        @Override
+        void step(float[] w, int wo, float[] g, int go, float[] s, int so, float[] t, int to, int n,
+                  float gradScale, State state, boolean weights) {
+            float rate = state.rate;
+            float epsilon = state.epsilon;
+            float decay = weights ? state.decay : 1.0f;
+            if (MatrixOperations.useVectorApi) {
+                VectorKernels.adamStep(w, wo, g, go, s, so, t, to, n, beta1, beta2, gradScale, rate, epsilon, decay);
+                return;
+            }
+            float keep1 = 1.0f - beta1, keep2 = 1.0f - beta2;
+            for (int j = 0; j < n; j++) {
+                float gj = g[go + j] * gradScale;
+                float m = s[so + j] * beta1 + gj * keep1;
+                float v = t[to + j] * beta2 + gj * gj * keep2;
+                s[so + j] = m;
+                t[to + j] = v;
+                w[wo + j] = w[wo + j] * decay - rate * m / ((float) Math.sqrt(v) + epsilon);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "adam(" + beta1 + ", " + beta2 + ")";
+        }
+    }
+
+    // adam's kernel with the weight decay folded into its pass
+    static class AdamW extends Adam {
+        static final int ID = 5;
+        final float weightDecay;
+
+        AdamW(float beta1, float beta2, float epsilon, float weightDecay) {
+            super(beta1, beta2, epsilon);
+            this.weightDecay = weightDecay;
+        }
+
+        @Override
+        public int id() {
+            return ID;
+        }
+
+        @Override
+        public float[] hyperparameters() {
+            return new float[] {beta1, beta2, epsilon, weightDecay};
+        }
+
+        @Override
+        void beginStep(State state, float learningRate) {
+            super.beginStep(state, learningRate);
+            state.decay = 1.0f - learningRate * weightDecay;
+        }
+
+        @Override
+        public String toString() {
+            return "adamw(" + beta1 + ", " + beta2 + ", decay " + weightDecay + ")";
+        }
+    }
+}
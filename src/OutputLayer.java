@@ -1,47 +1,103 @@
 import java.util.Random;
 
 public class OutputLayer {
-    private float[][] weights;
+    private Matrix weights;
     private float[] biases;
     public int inputLen;
     public int outputLen;
     private float learningRate;
 
-    private float[][] velocityWeights;
-    private float[] velocityBiases;
+    private Matrix zBatch;  // raw output before softmax
 
-    private float[][] zBatch;  // raw output before softmax
-
-    private float[][] xBatch; // inoutBatch
-    private float[][] softmaxOutput;  // Softmax output
+    private Matrix xBatch; // inoutBatch
+    private Matrix softmaxOutput;  // Softmax output
 
     //need to init these for batch gradient updates - gradient of weight and bias (L_z == L_b)
-    float momentum;
-    private float[][] gradientsW;
+    private Matrix gradientsW;
     private float[] gradientsB;
 
+    // the update rule and its per parameter state (velocities, moments), shared with the replicas
+    private final Optimizer optimizer;
+    private final Optimizer.State optimizerState;
+
+    // the weights, their gradients and the optimizer state live in native memory if this is set,
+    // the workspaces always on the heap
+    private final OffHeapArena arena;
+
+    // workspaces, sized once per batch size and reused by every step
+    private Matrix gradientsZ;
+    private Matrix gradientsX; // gradient w.r.t. inputs, passed to the last hidden layer
+
     public OutputLayer(int inputLen, int outputLen, float learningRate, float momentum) {
+        this(inputLen, outputLen, learningRate, momentum, new Random());
+    }
+
+    public OutputLayer(int inputLen, int outputLen, float learningRate, float momentum, Random random) {
+        this(inputLen, outputLen, learningRate, Optimizer.momentum(momentum), random, null);
+    }
+
+    public OutputLayer(int inputLen, int outputLen, float learningRate, Optimizer optimizer, Random random, OffHeapArena arena) {
         this.inputLen = inputLen;
         this.outputLen = outputLen;
         this.learningRate = learningRate;
-        this.momentum = momentum;
+        this.arena = arena;
 
-        weights = new float[inputLen][outputLen];
+        weights = Matrix.allocate(inputLen, outputLen, arena);
         biases = new float[outputLen];
 
-        this.velocityWeights = new float[inputLen][outputLen];
-        this.velocityBiases = new float[outputLen];
+        this.optimizer = optimizer;
+        this.optimizerState = optimizer.newState(inputLen, outputLen, arena);
+
+        gradientsW = Matrix.allocate(inputLen, outputLen, arena);
+        gradientsB = new float[outputLen];
+
+        setWeights(random);
+    }
+
+    // replica for data-parallel training, shares weights, biases and optimizer state with the original layer
+    // but has its own workspaces and gradients
+    private OutputLayer(OutputLayer shared) {
+        this.inputLen = shared.inputLen;
+        this.outputLen = shared.outputLen;
+        this.learningRate = shared.learningRate;
+        this.optimizer = shared.optimizer;
+        this.optimizerState = shared.optimizerState;
+        this.arena = shared.arena;
+
+        weights = shared.weights;
+        biases = shared.biases;
+
+        gradientsW = Matrix.allocate(inputLen, outputLen, arena);
+        gradientsB = new float[outputLen];
+    }
+
+    public OutputLayer replica() {
+        return new OutputLayer(this);
+    }
+
+    // the parameters and optimizer state themselves, not copies, for saving and loading a model
+    public Matrix getWeights() {
+        return weights;
+    }
 
-        setWeights();
+    public float[] getBiases() {
+        return biases;
+    }
+
+    public Optimizer.State getOptimizerState() {
+        return optimizerState;
     }
 
     public void setWeights(){
-        Random r = new Random();
+        setWeights(new Random());
+    }
+
+    public void setWeights(Random r){
 
         float range = (float) Math.sqrt(6.0 / (inputLen + outputLen));
-        for (int i = 0; i < weights.length; i++) {
-            for (int j = 0; j < weights[0].length; j++) {
-                weights[i][j] = (float) (r.nextDouble() * 2 * range - range);
+        for (int i = 0; i < weights.rows; i++) {
+            for (int j = 0; j < weights.cols; j++) {
+                weights.set(i, j, (float) (r.nextDouble() * 2 * range - range));
             }
         }
         for (int j = 0; j < outputLen; j++) {
@@ -65,92 +121,123 @@ public class OutputLayer {
         return gradients;
     }
 
-    public static float[][] softmax(float[][] zBatch) {
-        int rows = zBatch.length;
-        int cols = zBatch[0].length;
-        float[][] softmaxBatch = new float[rows][cols];
+    public static Matrix softmax(Matrix zBatch) {
+        return softmax(zBatch, new Matrix(zBatch.rows, zBatch.cols));
+    }
 
-        for (int i = 0; i < rows; i++) {
-            // find max for dstability
-            float maxLogit = Float.NEGATIVE_INFINITY;
-            for (int j = 0; j < cols; j++) {
-                maxLogit = Math.max(maxLogit, zBatch[i][j]);
-            }
+    public static Matrix softmax(Matrix zBatch, Matrix softmaxBatch) {
+        int rows = zBatch.rows;
+        int cols = zBatch.cols;
 
-            float sumExp = 0.0f;
-            for (int j = 0; j < cols; j++) {
-                softmaxBatch[i][j] = (float) Math.exp(zBatch[i][j] - maxLogit); // subtract maxLogit for numerical stability
-                sumExp += softmaxBatch[i][j];
-            }
-
-            // normalize by the sum of exponentials
-            for (int j = 0; j < cols; j++) {
-                softmaxBatch[i][j] /= sumExp;
-            }
+        for (int i = 0; i < rows; i++) {
+            ActivationFunctions.softmax(zBatch.data, zBatch.index(i, 0), softmaxBatch.data, softmaxBatch.index(i, 0), cols);
         }
 
         return softmaxBatch;
     }
 
-    public float crossEntropyLossBatch(float[][] predictions, float[][] targets) {
+    public float crossEntropyLossBatch(Matrix predictions, Matrix targets) {
         float loss = 0;
-        for (int i = 0; i < predictions.length; i++) {
-            for (int j = 0; j < predictions[i].length; j++) {
-                loss -= targets[i][j] * Math.log(predictions[i][j] + 1e-7); // for numerical stability
+        for (int i = 0; i < predictions.rows; i++) {
+            for (int j = 0; j < predictions.cols; j++) {
+                loss -= targets.get(i, j) * Math.log(predictions.get(i, j) + 1e-7); // for numerical stability
             }
         }
-        return loss / predictions.length;
+        return loss / predictions.rows;
     }
 
-    public float[][] forwardPass(float[][] inputBatch) {
+    // same loss with sparse labels, labels[labelOffset + i] is the class of row i
+    public float crossEntropyLoss(Matrix predictions, int[] labels, int labelOffset) {
+        float loss = 0;
+        for (int i = 0; i < predictions.rows; i++) {
+            loss -= Math.log(predictions.get(i, labels[labelOffset + i]) + 1e-7);
+        }
+        return loss / predictions.rows;
+    }
+
+    public Matrix forwardPass(Matrix inputBatch) {
         xBatch = inputBatch;
+        ensureWorkspace(inputBatch.rows);
+
+        // logits and softmax in one fused pass
+        return MatrixOperations.denseForward(inputBatch, weights, biases, MatrixOperations.ACTIVATION_SOFTMAX, zBatch, softmaxOutput);
+    }
 
-        zBatch = MatrixOperations.matrixMultiply(inputBatch, weights);
-        addBias(zBatch, biases);
+    // softmax probabilities for inference into a caller-owned buffer, the logits are computed in the same buffer
+    // and nothing is kept for backprop, so any number of threads can run it with their own buffers
+    public Matrix infer(Matrix inputBatch, Matrix out) {
+        return MatrixOperations.denseForward(inputBatch, weights, biases, MatrixOperations.ACTIVATION_SOFTMAX, out, out);
+    }
 
-        softmaxOutput = softmax(zBatch);
-        return softmaxOutput;
+    // logits for inference into a caller-owned buffer, argmax and the loss can be computed without the softmax
+    public Matrix logits(Matrix inputBatch, Matrix out) {
+        return MatrixOperations.denseForward(inputBatch, weights, biases, MatrixOperations.ACTIVATION_NONE, out, out);
     }
 
-    public static void addBias(float[][] matrix, float[] biases) {
-        int rows = matrix.length;
-        int cols = matrix[0].length;
+    private void ensureWorkspace(int batchSize) {
+        zBatch = Matrix.reuse(zBatch, batchSize, outputLen);
+        softmaxOutput = Matrix.reuse(softmaxOutput, batchSize, outputLen);
+        gradientsZ = Matrix.reuse(gradientsZ, batchSize, outputLen);
+        gradientsX = Matrix.reuse(gradientsX, batchSize, inputLen);
+    }
+
+    public static void addBias(Matrix matrix, float[] biases) {
+        int rows = matrix.rows;
+        int cols = matrix.cols;
 
         for (int i = 0; i < rows; i++) {
+            int row = matrix.index(i, 0);
+            if (MatrixOperations.useVectorApi) {
+                VectorKernels.add(matrix.data, row, biases, 0, matrix.data, row, cols);
+                continue;
+            }
             for (int j = 0; j < cols; j++) {
-                matrix[i][j] += biases[j];
+                matrix.data[row + j] += biases[j];
             }
         }
     }
 
-    public float[][] backProp(float[][] targets) {
+    public Matrix backProp(Matrix targets) {
         //gradient of loss w.r.t softmax output
-        float[][] gradientsZ = MatrixOperations.subtractMatrix(softmaxOutput, targets);
+        MatrixOperations.subtractMatrix(softmaxOutput, targets, gradientsZ);
 
         //gradient of loss w.r.t pre activation z ==> L_z == L_softmax ==> simplification of softmax + cross entropy
         //gradient of loss w.r.t bieses == L_softmax == L_z
 
+        return backPropZ();
+    }
+
+    // backProp with sparse labels, the one-hot subtraction only touches the label column of every row
+    public Matrix backProp(int[] labels, int labelOffset) {
+        for (int i = 0; i < softmaxOutput.rows; i++) {
+            gradientsZ.copyRow(i, softmaxOutput, i);
+            gradientsZ.data[gradientsZ.index(i, labels[labelOffset + i])] -= 1.0f;
+        }
+        return backPropZ();
+    }
+
+    private Matrix backPropZ() {
        //gradient of loss w.r.t weights
-        gradientsW = MatrixOperations.matrixMultiply(MatrixOperations.transpose(xBatch), gradientsZ);
-        gradientsB = MatrixOperations.sumAlongAxis(gradientsZ, 0);
+        MatrixOperations.matrixMultiplyTransA(xBatch, gradientsZ, gradientsW);
+        MatrixOperations.sumAlongAxis(gradientsZ, 0, gradientsB);
 
         //gradient of loss w.r.t inputs
-        return MatrixOperations.matrixMultiply(gradientsZ, MatrixOperations.transpose(weights));
-    }
-
-    public void updateParametersMomentum(int batchSize) {
-        velocityWeights = MatrixOperations.addMatrix(
-                MatrixOperations.scalarMultiply(velocityWeights, momentum),
-                MatrixOperations.scalarMultiply(gradientsW, -(learningRate / batchSize))
-        );
-        weights = MatrixOperations.addMatrix(weights, velocityWeights);
-
-        // update velocities and biases
-        velocityBiases = MatrixOperations.addVector(
-                MatrixOperations.scalarMultiply(velocityBiases, momentum),
-                MatrixOperations.scalarMultiply(gradientsB, -(learningRate / batchSize))
-        );
-        biases = MatrixOperations.addVector(biases, velocityBiases);
+        return MatrixOperations.matrixMultiplyTransB(gradientsZ, weights, gradientsX);
+    }
+
+    // adds the weight gradient rows [rowStart, rowEnd) of other to this layer's gradients,
+    // the bias gradients are added too if withBiases is set
+    public void addGradients(OutputLayer other, int rowStart, int rowEnd, boolean withBiases) {
+        Matrix stripe = gradientsW.rows(rowStart, rowEnd);
+        MatrixOperations.addMatrix(stripe, other.gradientsW.rows(rowStart, rowEnd), stripe);
+        if (withBiases) {
+            MatrixOperations.addVector(gradientsB, other.gradientsB, gradientsB);
+        }
+    }
+
+    // one fused in-place pass over the weights, gradients and optimizer state, the gradients are sums over batchSize rows
+    public void updateParameters(int batchSize) {
+        optimizer.update(weights, biases, gradientsW, gradientsB, optimizerState, learningRate, batchSize);
     }
 
     public void setLearningRate(float newRate){
@@ -0,0 +1,259 @@
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+public class QuantizedNetwork {
+
+    // int8 post-training quantization of a trained NeuralNetwork, for inference only.
+    // weights: symmetric int8 with one scale per output channel (column of W). activations: symmetric int8 with
+    // one scale per layer input, calibrated as the largest |value| the float model produces on a calibration
+    // sample. the first layer takes the raw uint8 pixels: the per pixel normalization x = p * scale + shift is
+    // folded into its weights and biases, so the images are never converted to floats. a layer computes int32
+    // sums of int8 * int8 products and turns them back into floats once per output:
+    //   y = sum * inputScale * weightScale[j] + bias[j]
+
+    private static final int CHUNK = 256;
+    private static final int ROW_TILE = 4;
+
+    private static class Layer {
+        final int inputLen;
+        final int outputLen;
+        final byte[] weights; // inputLen x outputLen, row-major like the float weights
+        final float[] outputScale; // inputScale * weightScale[j]
+        final float[] biases;
+
+        Layer(int inputLen, int outputLen, byte[] weights, float[] outputScale, float[] biases) {
+            this.inputLen = inputLen;
+            this.outputLen = outputLen;
+            this.weights = weights;
+            this.outputScale = outputScale;
+            this.biases = biases;
+        }
+    }
+
+    private final Layer[] layers; // hidden layers, then the output layer
+    private final float[] activationScale; // scale of the int8 input of layers[1..]
+    private final float[] pixelScale; // the normalization folded into the first layer
+    private final float[] pixelShift;
+
+    private QuantizedNetwork(Layer[] layers, float[] activationScale, float[] pixelScale, float[] pixelShift) {
+        this.layers = layers;
+        this.activationScale = activationScale;
+        this.pixelScale = pixelScale;
+        this.pixelShift = pixelShift;
+    }
+
+    // quantizes the network, the activation ranges come from the float model on the calibration rows.
+    // the pixel normalization is the one of the calibration data
+    public static QuantizedNetwork quantize(NeuralNetwork network, ByteMatrix calibration) {
+        HiddenLayer[] hidden = network.getHiddenLayers();
+        OutputLayer output = network.getOutputLayer();
+
+        // largest |activation| at the output of every hidden layer
+        float[] maxAbs = new float[hidden.length];
+        NeuralNetwork.Workspace workspace = network.newWorkspace(CHUNK);
+        for (int start = 0; start < calibration.rows; start += CHUNK) {
+            int end = Math.min(start + CHUNK, calibration.rows);
+            Matrix x = network.dequantize(calibration, start, end, workspace);
+            for (int i = 0; i < hidden.length; i++) {
+                x = hidden[i].infer(x, workspace.activations[i].rows(0, end - start));
+                for (int r = 0; r < x.rows; r++) {
+                    int row = x.index(r, 0);
+                    for (int j = 0; j < x.cols; j++) {
+                        maxAbs[i] = Math.max(maxAbs[i], Math.abs(x.data[row + j]));
+                    }
+                }
+            }
+        }
+
+        Layer[] layers = new Layer[hidden.length + 1];
+        float[] activationScale = new float[hidden.length];
+        for (int i = 0; i <= hidden.length; i++) {
+            Matrix weights = i < hidden.length ? hidden[i].getWeights() : output.getWeights();
+            float[] biases = (i < hidden.length ? hidden[i].getBiases() : output.getBiases()).clone();
+            float inputScale;
+            if (i == 0) {
+                // w' = w * scale[k], b' = b + sum_k shift[k] * w
+                weights = weights.copy();
+                for (int k = 0; k < weights.rows; k++) {
+                    for (int j = 0; j < weights.cols; j++) {
+                        float w = weights.get(k, j);
+                        biases[j] += calibration.shift[k] * w;
+                        weights.set(k, j, w * calibration.scale[k]);
+                    }
+                }
+                inputScale = 1.0f;
+            } else {
+                activationScale[i - 1] = maxAbs[i - 1] > 0 ? maxAbs[i - 1] / 127.0f : 1.0f;
+                inputScale = activationScale[i - 1];
+            }
+            layers[i] = quantizeLayer(weights, biases, inputScale);
+        }
+        return new QuantizedNetwork(layers, activationScale, calibration.scale.clone(), calibration.shift.clone());
+    }
+
+    private static Layer quantizeLayer(Matrix weights, float[] biases, float inputScale) {
+        int inputLen = weights.rows;
+        int outputLen = weights.cols;
+        byte[] q = new byte[inputLen * outputLen];
+        float[] outputScale = new float[outputLen];
+        for (int j = 0; j < outputLen; j++) {
+            float max = 0;
+            for (int k = 0; k < inputLen; k++) {
+                max = Math.max(max, Math.abs(weights.get(k, j)));
+            }
+            float scale = max > 0 ? max / 127.0f : 1.0f;
+            for (int k = 0; k < inputLen; k++) {
+                q[k * outputLen + j] = (byte) Math.round(weights.get(k, j) / scale);
+            }
+            outputScale[j] = inputScale * scale;
+        }
+        return new Layer(inputLen, outputLen, q, outputScale, biases);
+    }
+
+    // bytes of weights, scales and biases
+    public long sizeBytes() {
+        long bytes = 0;
+        for (Layer layer : layers) {
+            bytes += layer.weights.length + 2L * layer.outputLen * Float.BYTES;
+        }
+        return bytes + (activationScale.length + 2L * pixelScale.length) * Float.BYTES;
+    }
+
+    // predicted classes of raw uint8 rows. the normalization of the pixels must be the one the network was
+    // quantized with, the chunks of rows run in parallel
+    public int[] predict(ByteMatrix pixels) {
+        if (!Arrays.equals(pixels.scale, pixelScale) || !Arrays.equals(pixels.shift, pixelShift)) {
+            throw new IllegalArgumentException("Pixels are normalized differently than the calibration data");
+        }
+        int[] predictions = new int[pixels.rows];
+        int numChunks = (pixels.rows + CHUNK - 1) / CHUNK;
+        IntStream.range(0, numChunks).parallel().forEach(c -> {
+            int start = c * CHUNK;
+            int end = Math.min(start + CHUNK, pixels.rows);
+            predict(pixels.data, pixels.offset + start * pixels.rowStride, pixels.rowStride, end - start, predictions, start);
+        });
+        return predictions;
+    }
+
+    // raw pixels, row i at pixels[offset + i * rowStride], predictions into predictions[outOffset..]
+    public void predict(byte[] pixels, int offset, int rowStride, int rows, int[] predictions, int outOffset) {
+        int maxWidth = 0;
+        for (Layer layer : layers) {
+            maxWidth = Math.max(maxWidth, layer.outputLen);
+        }
+        byte[] activations = new byte[CHUNK * maxWidth];
+        int[] sums = new int[CHUNK * maxWidth];
+        float[] logits = new float[layers[layers.length - 1].outputLen];
+
+        for (int start = 0; start < rows; start += CHUNK) {
+            int n = Math.min(CHUNK, rows - start);
+
+            // the first layer reads the unsigned pixels in place, the others the int8 activations of the previous one
+            Layer first = layers[0];
+            gemm(pixels, offset + start * rowStride, rowStride, true, n, first, sums);
+            for (int i = 1; i < layers.length; i++) {
+                requantize(sums, n, layers[i - 1], activationScale[i - 1], activations);
+                gemm(activations, 0, layers[i].inputLen, false, n, layers[i], sums);
+            }
+
+            Layer last = layers[layers.length - 1];
+            for (int r = 0; r < n; r++) {
+                for (int j = 0; j < last.outputLen; j++) {
+                    logits[j] = sums[r * last.outputLen + j] * last.outputScale[j] + last.biases[j];
+                }
+                predictions[outOffset + start + r] = NeuralNetwork.argMax(logits, 0, last.outputLen);
+            }
+        }
+    }
+
+    // int32 sums[r][j] = sum_k x[r][k] * w[k][j] for n rows. i-k-j order like the float gemm: the inner loop runs
+    // along a weight row and the sum rows, and four rows share every pass over a weight row (VectorKernels with
+    // the vector api). an input that is 0 in all four rows skips its weight row, most pixels are background
+    private static void gemm(byte[] x, int xOffset, int xStride, boolean unsigned, int n, Layer layer, int[] sums) {
+        int k = layer.inputLen;
+        int m = layer.outputLen;
+        byte[] w = layer.weights;
+        int mask = unsigned ? 0xFF : -1;
+        Arrays.fill(sums, 0, n * m, 0);
+        int r = 0;
+        for (; r + ROW_TILE <= n; r += ROW_TILE) {
+            if (MatrixOperations.useVectorApi) {
+                VectorKernels.int8Kernel4(x, xOffset + r * xStride, xStride, mask, w, m, k, sums, r * m);
+                continue;
+            }
+            int x0 = xOffset + r * xStride, x1 = x0 + xStride, x2 = x1 + xStride, x3 = x2 + xStride;
+            int s0 = r * m, s1 = s0 + m, s2 = s1 + m, s3 = s2 + m;
+            for (int t = 0; t < k; t++) {
+                int a0 = x[x0 + t] & mask, a1 = x[x1 + t] & mask, a2 = x[x2 + t] & mask, a3 = x[x3 + t] & mask;
+                if ((a0 | a1 | a2 | a3) == 0) {
+                    continue;
+                }
+                int wt = t * m;
+                for (int j = 0; j < m; j++) {
+                    int wv = w[wt + j];
+                    sums[s0 + j] += a0 * wv;
+                    sums[s1 + j] += a1 * wv;
+                    sums[s2 + j] += a2 * wv;
+                    sums[s3 + j] += a3 * wv;
+                }
+            }
+        }
+        for (; r < n; r++) {
+            int x0 = xOffset + r * xStride;
+            int s0 = r * m;
+            for (int t = 0; t < k; t++) {
+                int a0 = x[x0 + t] & mask;
+                if (a0 == 0) {
+                    continue;
+                }
+                int wt = t * m;
+                for (int j = 0; j < m; j++) {
+                    sums[s0 + j] += a0 * w[wt + j];
+                }
+            }
+        }
+    }
+
+    // sums of a hidden layer -> float outputs -> LeakyReLU -> int8 input of the next layer
+    private static void requantize(int[] sums, int n, Layer layer, float nextScale, byte[] out) {
+        float inverse = 1.0f / nextScale;
+        int m = layer.outputLen;
+        for (int r = 0; r < n; r++) {
+            for (int j = 0; j < m; j++) {
+                float y = ActivationFunctions.LeakyReLU(sums[r * m + j] * layer.outputScale[j] + layer.biases[j]);
+                int q = Math.round(y * inverse);
+                out[r * m + j] = (byte) Math.max(-127, Math.min(127, q));
+            }
+        }
+    }
+
+    // accuracy, agreement and speed of the int8 model next to the float model on the same data
+    public void report(NeuralNetwork network, ByteMatrix data, int[] labels) {
+        long t0 = System.nanoTime();
+        int[] expected = network.evaluate(data, null).predictions;
+        long t1 = System.nanoTime();
+        int[] predicted = predict(data);
+        long t2 = System.nanoTime();
+
+        int floatCorrect = 0, int8Correct = 0, agree = 0;
+        for (int i = 0; i < data.rows; i++) {
+            floatCorrect += expected[i] == labels[i] ? 1 : 0;
+            int8Correct += predicted[i] == labels[i] ? 1 : 0;
+            agree += expected[i] == predicted[i] ? 1 : 0;
+        }
+
+        long floatBytes = 0;
+        for (HiddenLayer layer : network.getHiddenLayers()) {
+            floatBytes += ((long) layer.inputLen * layer.outputLen + layer.outputLen) * Float.BYTES;
+        }
+        OutputLayer output = network.getOutputLayer();
+        floatBytes += ((long) output.inputLen * output.outputLen + output.outputLen) * Float.BYTES;
+
+        System.out.println("INT8 QUANTIZATION (" + data.rows + " rows)");
+        System.out.printf("  float32: accuracy %.2f%%, %8.0f rows/s, %7.1f KB%n",
+                100.0 * floatCorrect / data.rows, data.rows / ((t1 - t0) / 1e9), floatBytes / 1024.0);
+        System.out.printf("  int8:    accuracy %.2f%%, %8.0f rows/s, %7.1f KB%n",
+                100.0 * int8Correct / data.rows, data.rows / ((t2 - t1) / 1e9), sizeBytes() / 1024.0);
+        System.out.printf("  same prediction for %.2f%% of the rows%n", 100.0 * agree / data.rows);
+    }
+}
@@ -0,0 +1,204 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public abstract class StreamingDataset implements AutoCloseable {
+
+    // a dataset that stays on disk and is read one window of rows at a time, for data that does not fit in the heap.
+    // a binary dataset cache (uint8) can be read at any row, so the trainer can visit its windows in random order,
+    // csv files can only be read front to back. pixels are returned raw, the caller normalizes them
+
+    public final int numRows;
+    public final int numCols;
+
+    protected StreamingDataset(int numRows, int numCols) {
+        this.numRows = numRows;
+        this.numCols = numCols;
+    }
+
+    // true if read accepts any start row, otherwise windows have to be read in order starting at row 0
+    public abstract boolean isRandomAccess();
+
+    // rows [start, start + count) into pixels and labels
+    public abstract void read(int start, int count, byte[] pixels, int[] labels) throws IOException;
+
+    @Override
+    public abstract void close() throws IOException;
+
+    // reads a uint8 dataset cache (see DatasetCache) with positional reads, the file is never mapped as a whole.
+    // if training, the statistics come from the .stats file next to it if that matches the header's global values,
+    // otherwise they are recomputed by one pass over the cached pixels and saved
+    public static StreamingDataset binary(String cachePath, boolean training) throws IOException {
+        FileChannel channel = FileChannel.open(Path.of(cachePath), StandardOpenOption.READ);
+        try {
+            ByteBuffer bytes = ByteBuffer.allocate(DatasetCache.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(bytes, 0);
+            DatasetCache.Header header = DatasetCache.readHeader(bytes, channel.size());
+            if (header.dtype != DatasetCache.DTYPE_UINT8) {
+                throw new IOException("Streaming needs a uint8 dataset cache: " + cachePath);
+            }
+            Binary binary = new Binary(channel, header);
+            if (training) {
+                String statsPath = DataManager.statisticsPath(cachePath);
+                DatasetStatistics stats = new File(statsPath).exists() ? DatasetStatistics.read(statsPath) : null;
+                if (stats == null || stats.cols != header.cols || stats.mean != header.mean || stats.std != header.std) {
+                    stats = binary.statistics();
+                    try {
+                        stats.write(statsPath);
+                    } catch (IOException e) {
+                        System.err.println("Could not write dataset statistics " + statsPath + ": " + e.getMessage());
+                    }
+                }
+                DataManager.setStatistics(stats);
+            }
+            DataManager.checkStatistics(header.cols);
+            return binary;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // reads csv images and labels front to back. if training and there is no .stats file next to the images yet,
+    // the statistics are computed by one streaming pass over the file first and saved
+    public static StreamingDataset csv(String imagesPath, String labelsPath, int numRows, int numCols, boolean training) throws IOException {
+        Csv csv = new Csv(imagesPath, labelsPath, numRows, numCols);
+        try {
+            if (training) {
+                String statsPath = DataManager.statisticsPath(DataManager.cachePath(imagesPath));
+                if (new File(statsPath).exists()) {
+                    DataManager.setStatistics(DatasetStatistics.read(statsPath));
+                } else {
+                    DatasetStatistics stats = csv.statistics();
+                    stats.write(statsPath);
+                    DataManager.setStatistics(stats);
+                }
+            }
+            DataManager.checkStatistics(numCols);
+            return csv;
+        } catch (IOException e) {
+            csv.close();
+            throw e;
+        }
+    }
+
+    private static class Binary extends StreamingDataset {
+        private final FileChannel channel;
+        private final long labelsOffset;
+        private ByteBuffer labelBytes;
+
+        Binary(FileChannel channel, DatasetCache.Header header) throws IOException {
+            super(header.rows, header.cols);
+            if (header.numLabels != header.rows) {
+                throw new IOException("Dataset cache has " + header.numLabels + " labels for " + header.rows + " rows");
+            }
+            this.channel = channel;
+            this.labelsOffset = DatasetCache.HEADER_BYTES + (long) header.rows * header.cols;
+        }
+
+        @Override
+        public boolean isRandomAccess() {
+            return true;
+        }
+
+        @Override
+        public void read(int start, int count, byte[] pixels, int[] labels) throws IOException {
+            readFully(ByteBuffer.wrap(pixels, 0, count * numCols), DatasetCache.HEADER_BYTES + (long) start * numCols);
+
+            // labels are stored as one byte each
+            if (labelBytes == null || labelBytes.capacity() < count) {
+                labelBytes = ByteBuffer.allocate(count);
+            }
+            labelBytes.clear().limit(count);
+            readFully(labelBytes, labelsOffset + start);
+            for (int i = 0; i < count; i++) {
+                labels[i] = labelBytes.get(i) & 0xFF;
+            }
+        }
+
+        DatasetStatistics statistics() throws IOException {
+            int window = Math.max(1, Math.min(numRows, (1 << 20) / numCols));
+            byte[] pixels = new byte[window * numCols];
+            DatasetStatistics.Accumulator accumulator = new DatasetStatistics.Accumulator(numCols);
+            for (int start = 0; start < numRows; start += window) {
+                int count = Math.min(window, numRows - start);
+                readFully(ByteBuffer.wrap(pixels, 0, count * numCols), DatasetCache.HEADER_BYTES + (long) start * numCols);
+                accumulator.add(ByteBuffer.wrap(pixels), 0, count);
+            }
+            return accumulator.result();
+        }
+
+        private void readFully(ByteBuffer target, long position) throws IOException {
+            while (target.hasRemaining()) {
+                int read = channel.read(target, position);
+                if (read < 0) {
+                    throw new IOException("Dataset cache ends early");
+                }
+                position += read;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static class Csv extends StreamingDataset {
+        private final CsvParser.RowReader images;
+        private final CsvParser.RowReader labels;
+
+        Csv(String imagesPath, String labelsPath, int numRows, int numCols) throws IOException {
+            super(numRows, numCols);
+            images = new CsvParser.RowReader(imagesPath, numCols, 255);
+            labels = new CsvParser.RowReader(labelsPath, 1, CsvParser.MAX_LABEL);
+        }
+
+        @Override
+        public boolean isRandomAccess() {
+            return false;
+        }
+
+        @Override
+        public void read(int start, int count, byte[] pixels, int[] labelValues) throws IOException {
+            if (start == 0) {
+                images.rewind();
+                labels.rewind();
+            } else if (start != images.rowsRead()) {
+                throw new IOException("Csv datasets can only be read in order, asked for row " + start
+                        + " after " + images.rowsRead() + " rows");
+            }
+            images.readPixels(pixels, count);
+            labels.readInts(labelValues, count);
+            if (start + count == numRows) {
+                images.checkEnd();
+                labels.checkEnd();
+            }
+        }
+
+        DatasetStatistics statistics() throws IOException {
+            int window = Math.max(1, Math.min(numRows, (1 << 20) / numCols));
+            byte[] pixels = new byte[window * numCols];
+            DatasetStatistics.Accumulator accumulator = new DatasetStatistics.Accumulator(numCols);
+            images.rewind();
+            for (int start = 0; start < numRows; start += window) {
+                int count = Math.min(window, numRows - start);
+                images.readPixels(pixels, count);
+                accumulator.add(ByteBuffer.wrap(pixels), 0, count);
+            }
+            images.checkEnd();
+            images.rewind();
+            return accumulator.result();
+        }
+
+        @Override
+        public void close() throws IOException {
+            images.close();
+            labels.close();
+        }
+    }
+}
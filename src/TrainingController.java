@@ -0,0 +1,273 @@
+public class TrainingController {
+
+    // runs trainBatch against a wall-clock budget. the learning rate follows a schedule, every validateEvery batches
+    // a subsample of the validation set is evaluated, and the training stops as soon as
+    //   - the target accuracy is reached (a subsample above the target is confirmed on the whole validation set),
+    //   - the accuracy has not improved for patience evaluations (with the plateau schedule: after the last cut), or
+    //   - the next step would eat into the time kept for what comes after the training: a fixed reserve for
+    //     parsing and writing files, and twice the inference time of the rows still to be predicted, estimated
+    //     from the speed of the evaluations.
+    // the weights of the best evaluation are kept and put back at the end if the last evaluation is worse.
+    // cosine and one-cycle run over the training, their progress is the larger of the share of the steps done
+    // and the share of the training time used, so a run that is cut short by the budget still anneals to the end
+
+    public static final int EXPONENTIAL = 0; // the network's per epoch decayRate, what trainBatch does without a controller
+    public static final int COSINE = 1;
+    public static final int ONE_CYCLE = 2;
+    public static final int PLATEAU = 3; // halves the rate when the accuracy stops improving
+    private static final String[] SCHEDULES = {"exponential", "cosine", "onecycle", "plateau"};
+
+    private static final float ONE_CYCLE_WARMUP = 0.3f;
+    private static final int MAX_REDUCTIONS = 3;
+
+    private final long deadline; // System.nanoTime() by which the whole job has to be done
+    private final float targetAccuracy;
+
+    private int schedule = COSINE;
+    private int validateEvery = 200;
+    private int sampleRows = 2000;
+    private int patience = 10;
+    private float minDelta = 0.001f;
+    private long reserveNanos;
+    private long inferenceRows;
+
+    // validation set, one of the two is set
+    private Matrix validation;
+    private ByteMatrix validationPixels;
+    private int[] validationLabels;
+
+    // state of the current run
+    private long start;
+    private long lastStep;
+    private long stepNanos; // moving average of the time of one training step
+    private double nanosPerRow; // inference speed of the last evaluation
+    private int steps;
+    private int totalSteps;
+    private float baseRate;
+    private float rate; // of the last step
+    private float decayRate;
+    private float plateauRate;
+    private int reductions;
+    private float best; // accuracies on the subsample
+    private float last;
+    private float lastFull; // on the whole validation set, of the last subsample above the target, -1 before
+    private int sinceBest;
+    private String stopReason;
+
+    private Matrix[] bestWeights; // hidden layers, then the output layer
+    private float[][] bestBiases;
+
+    // deadline is the System.nanoTime() by which the job has to be finished
+    public TrainingController(long deadline, float targetAccuracy) {
+        this.deadline = deadline;
+        this.targetAccuracy = targetAccuracy;
+    }
+
+    public static int schedule(String name) {
+        for (int i = 0; i < SCHEDULES.length; i++) {
+            if (SCHEDULES[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown schedule " + name + ", expected one of " + String.join(", ", SCHEDULES));
+    }
+
+    public void setSchedule(int schedule) {
+        this.schedule = schedule;
+    }
+
+    // the first sampleRows rows are evaluated every validateEvery batches, the rows should be in random order
+    public void setValidation(Matrix data, int[] labels, int sampleRows, int validateEvery) {
+        this.validation = data;
+        this.validationPixels = null;
+        setValidation(data.rows, labels, sampleRows, validateEvery);
+    }
+
+    public void setValidation(ByteMatrix data, int[] labels, int sampleRows, int validateEvery) {
+        this.validation = null;
+        this.validationPixels = data;
+        setValidation(data.rows, labels, sampleRows, validateEvery);
+    }
+
+    private void setValidation(int rows, int[] labels, int sampleRows, int validateEvery) {
+        this.validationLabels = labels;
+        this.sampleRows = Math.min(rows, Math.max(1, sampleRows));
+        this.validateEvery = Math.max(1, validateEvery);
+    }
+
+    // evaluations without an improvement of at least minDelta before the training stops or the plateau rate is cut
+    public void setPatience(int patience, float minDelta) {
+        this.patience = Math.max(1, patience);
+        this.minDelta = minDelta;
+    }
+
+    // time kept free after the training: reserveNanos, plus the inference of inferenceRows rows
+    public void setReserve(long reserveNanos, long inferenceRows) {
+        this.reserveNanos = reserveNanos;
+        this.inferenceRows = inferenceRows;
+    }
+
+    // start of a run of totalSteps steps at most, evaluates the untrained network once to time the inference
+    void begin(NeuralNetwork network, int totalSteps) {
+        this.totalSteps = Math.max(1, totalSteps);
+        start = System.nanoTime();
+        baseRate = network.getLearningRate();
+        decayRate = network.getDecayRate();
+        plateauRate = baseRate;
+        reductions = 0;
+        steps = 0;
+        stepNanos = 0;
+        sinceBest = 0;
+        lastFull = -1;
+        stopReason = null;
+        best = last = evaluate(network, sampleRows);
+        snapshot(network);
+        System.out.printf("Training until %.0f s before the deadline, target accuracy %.2f%%, %s schedule%n",
+                (deadline - trainingDeadline()) / 1e9, targetAccuracy * 100, SCHEDULES[schedule]);
+        lastStep = System.nanoTime();
+    }
+
+    // learning rate of the next step
+    float learningRate(int epoch) {
+        rate = scheduledRate(epoch);
+        return rate;
+    }
+
+    private float scheduledRate(int epoch) {
+        switch (schedule) {
+            case EXPONENTIAL:
+                return (float) (baseRate * Math.exp(-decayRate * epoch));
+            case PLATEAU:
+                return plateauRate;
+            case ONE_CYCLE: {
+                // up from base / 25 during the warmup, then down to base / 10^4, both halves of a cosine
+                double p = progress();
+                if (p < ONE_CYCLE_WARMUP) {
+                    return anneal(baseRate / 25, baseRate, p / ONE_CYCLE_WARMUP);
+                }
+                return anneal(baseRate, baseRate / 1e4f, (p - ONE_CYCLE_WARMUP) / (1 - ONE_CYCLE_WARMUP));
+            }
+            default:
+                return anneal(baseRate, baseRate / 100, progress());
+        }
+    }
+
+    // from -> to along half a cosine as t goes 0 -> 1
+    private static float anneal(float from, float to, double t) {
+        return (float) (to + (from - to) * (1 + Math.cos(Math.PI * t)) / 2);
+    }
+
+    private double progress() {
+        double byTime = (double) (System.nanoTime() - start) / Math.max(1L, trainingDeadline() - start);
+        return Math.min(1.0, Math.max((double) steps / totalSteps, byTime));
+    }
+
+    // System.nanoTime() at which the training has to stop
+    long trainingDeadline() {
+        return deadline - reserveNanos - (long) (2 * nanosPerRow * inferenceRows);
+    }
+
+    // after every training step, true if the training should stop
+    boolean afterStep(NeuralNetwork network) {
+        long now = System.nanoTime();
+        long step = now - lastStep;
+        stepNanos = stepNanos == 0 ? step : (7 * stepNanos + step) / 8;
+        steps++;
+
+        if (now + stepNanos > trainingDeadline()) {
+            return stop("time budget");
+        }
+        if (sampleRows > 0 && steps % validateEvery == 0 && now + (long) (nanosPerRow * sampleRows) < trainingDeadline()) {
+            last = evaluate(network, sampleRows);
+            System.out.printf("  step %d: validation accuracy %.2f%% (%d rows), learning rate %.6f, %.0f s of training left%n",
+                    steps, last * 100, sampleRows, rate, (trainingDeadline() - System.nanoTime()) / 1e9);
+
+            if (last >= targetAccuracy) {
+                // the full set only confirms the target, the patience keeps comparing subsample accuracies
+                lastFull = evaluate(network, validationLabels.length);
+                if (lastFull >= targetAccuracy) {
+                    best = last;
+                    snapshot(network);
+                    return stop(String.format("target reached, %.2f%% on all %d validation rows", lastFull * 100, validationLabels.length));
+                }
+                System.out.printf("  %.2f%% on all %d validation rows, below the target%n", lastFull * 100, validationLabels.length);
+            }
+            if (last >= best + minDelta) {
+                best = last;
+                sinceBest = 0;
+                snapshot(network);
+            } else if (++sinceBest >= patience) {
+                if (schedule != PLATEAU || reductions == MAX_REDUCTIONS) {
+                    return stop("no improvement in " + patience + " evaluations");
+                }
+                reductions++;
+                plateauRate /= 2;
+                sinceBest = 0;
+                System.out.printf("  accuracy plateaued, learning rate cut to %.6f%n", plateauRate);
+            }
+        }
+        lastStep = System.nanoTime();
+        return false;
+    }
+
+    private boolean stop(String reason) {
+        stopReason = reason;
+        return true;
+    }
+
+    // end of the run: puts the best weights back if the last evaluation was worse
+    void end(NeuralNetwork network) {
+        if (last < best) {
+            restore(network);
+        }
+        System.out.printf("Training stopped after %d steps and %.1f s: %s, best validation accuracy %.2f%% (%d rows)%n",
+                steps, (System.nanoTime() - start) / 1e9, stopReason == null ? "all epochs done" : stopReason, best * 100, sampleRows);
+    }
+
+    // 0 without validation rows, then only the time budget and the epochs end the training
+    private float evaluate(NeuralNetwork network, int rows) {
+        if (rows == 0) {
+            return 0f;
+        }
+        long t = System.nanoTime();
+        NeuralNetwork.Evaluation evaluation = validationPixels != null
+                ? network.evaluate(validationPixels.rows(0, rows), validationLabels)
+                : network.evaluate(validation.rows(0, rows), validationLabels);
+        nanosPerRow = (double) (System.nanoTime() - t) / rows;
+        return evaluation.accuracy;
+    }
+
+    // copies of the weights and biases, on the heap whatever the parameters live in
+    private void snapshot(NeuralNetwork network) {
+        HiddenLayer[] hidden = network.getHiddenLayers();
+        if (bestWeights == null) {
+            bestWeights = new Matrix[hidden.length + 1];
+            bestBiases = new float[hidden.length + 1][];
+        }
+        for (int l = 0; l <= hidden.length; l++) {
+            Matrix weights = l < hidden.length ? hidden[l].getWeights() : network.getOutputLayer().getWeights();
+            float[] biases = l < hidden.length ? hidden[l].getBiases() : network.getOutputLayer().getBiases();
+            if (bestWeights[l] == null) {
+                bestWeights[l] = new Matrix(weights.rows, weights.cols);
+                bestBiases[l] = new float[biases.length];
+            }
+            for (int i = 0; i < weights.rows; i++) {
+                bestWeights[l].copyRow(i, weights, i);
+            }
+            System.arraycopy(biases, 0, bestBiases[l], 0, biases.length);
+        }
+    }
+
+    private void restore(NeuralNetwork network) {
+        HiddenLayer[] hidden = network.getHiddenLayers();
+        for (int l = 0; l <= hidden.length; l++) {
+            Matrix weights = l < hidden.length ? hidden[l].getWeights() : network.getOutputLayer().getWeights();
+            float[] biases = l < hidden.length ? hidden[l].getBiases() : network.getOutputLayer().getBiases();
+            for (int i = 0; i < weights.rows; i++) {
+                weights.copyRow(i, bestWeights[l], i);
+            }
+            System.arraycopy(bestBiases[l], 0, biases, 0, biases.length);
+        }
+        System.out.printf("Restored the weights of the best evaluation (%.2f%%)%n", best * 100);
+    }
+}
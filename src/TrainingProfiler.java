@@ -0,0 +1,254 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+public class TrainingProfiler {
+
+    // where the training time goes: nanoTime counters per phase and per layer, summed over an epoch and printed
+    // as a table at its end, with samples/s and the bytes allocated per step. every step and epoch is also a JFR
+    // event (ffnn.TrainingStep, ffnn.TrainingEpoch), recorded when the jvm runs with -XX:StartFlightRecording.
+    // on with -Dffnn.profile=true. ENABLED is a static final, so when it is off the jit folds every check away
+    // and the instrumented code is the code without instrumentation.
+    // counters are per worker: worker w only writes nanos[w], the training thread writes worker 0's between the
+    // parallel sections. with several workers the forward, loss and backward rows add up thread time, not wall time
+
+    public static final boolean ENABLED = Boolean.getBoolean("ffnn.profile");
+
+    static final int BATCH = 0;
+    static final int FORWARD = 1;
+    static final int LOSS = 2;
+    static final int BACKWARD = 3;
+    static final int REDUCE = 4;
+    static final int UPDATE = 5;
+    static final int CHECKPOINT = 6;
+    static final int VALIDATE = 7;
+    private static final String[] PHASES = {"batch", "forward", "loss", "backward", "reduce", "update", "checkpoint", "validate"};
+
+    @Name("ffnn.TrainingStep")
+    @Label("Training Step")
+    @Category({"ffnn", "Training"})
+    static class StepEvent extends Event {
+        @Label("Epoch")
+        int epoch;
+        @Label("Batch")
+        int batch;
+        @Label("Rows")
+        int rows;
+        @Label("Loss")
+        float loss;
+        @Label("Allocated")
+        @DataAmount
+        long allocated; // by the training thread
+    }
+
+    @Name("ffnn.TrainingEpoch")
+    @Label("Training Epoch")
+    @Category({"ffnn", "Training"})
+    static class EpochEvent extends Event {
+        @Label("Epoch")
+        int epoch;
+        @Label("Steps")
+        int steps;
+        @Label("Samples")
+        long samples;
+        @Label("Samples per Second")
+        double samplesPerSecond;
+        @Label("Loss")
+        float loss;
+        @Label("Forward")
+        @Timespan
+        long forward;
+        @Label("Backward")
+        @Timespan
+        long backward;
+        @Label("Update")
+        @Timespan
+        long update;
+        @Label("Allocated per Step")
+        @DataAmount
+        long allocatedPerStep; // by the training thread and the step workers
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS = ENABLED ? threadBean() : null;
+
+    private final String[] layerNames; // hidden layers, then the output layer
+    private final long[][][] nanos; // [worker][phase][layer], phases without a layer use layer 0
+    private final long[] workerThreadIds; // the step workers besides the training thread
+
+    private long epochStart;
+    private long epochAllocated;
+    private EpochEvent epochEvent;
+    private StepEvent stepEvent;
+    private long stepAllocated;
+
+    TrainingProfiler(HiddenLayer[] hidden, OutputLayer output, int numWorkers, long[] workerThreadIds) {
+        this.workerThreadIds = workerThreadIds;
+        layerNames = new String[hidden.length + 1];
+        for (int i = 0; i < hidden.length; i++) {
+            layerNames[i] = "hidden " + i + " (" + hidden[i].inputLen + "x" + hidden[i].outputLen + ")";
+        }
+        layerNames[hidden.length] = "output (" + output.inputLen + "x" + output.outputLen + ")";
+        nanos = new long[Math.max(1, numWorkers)][PHASES.length][layerNames.length];
+    }
+
+    // start of a timed section, 0 when profiling is off
+    static long start() {
+        return ENABLED ? System.nanoTime() : 0L;
+    }
+
+    // adds the time since start to a phase of a layer and returns the current time, the start of the next section
+    long lap(long start, int worker, int phase, int layer) {
+        if (!ENABLED) {
+            return 0L;
+        }
+        long now = System.nanoTime();
+        nanos[worker][phase][layer] += now - start;
+        return now;
+    }
+
+    void beginEpoch() {
+        if (!ENABLED) {
+            return;
+        }
+        for (long[][] worker : nanos) {
+            for (long[] phase : worker) {
+                Arrays.fill(phase, 0L);
+            }
+        }
+        epochEvent = new EpochEvent();
+        epochEvent.begin();
+        epochAllocated = allocatedByTraining();
+        epochStart = System.nanoTime();
+    }
+
+    void beginStep() {
+        if (!ENABLED) {
+            return;
+        }
+        stepEvent = new StepEvent();
+        stepEvent.begin();
+        stepAllocated = allocatedByThisThread();
+    }
+
+    void endStep(int epoch, int batch, int rows, float loss) {
+        if (!ENABLED) {
+            return;
+        }
+        StepEvent event = stepEvent;
+        stepEvent = null;
+        event.end();
+        if (event.shouldCommit()) {
+            event.epoch = epoch + 1;
+            event.batch = batch;
+            event.rows = rows;
+            event.loss = loss;
+            event.allocated = allocatedByThisThread() - stepAllocated;
+            event.commit();
+        }
+    }
+
+    // prints the breakdown of the epoch: time of every phase and layer, its share of the wall time and per step
+    void endEpoch(int epoch, int steps, long samples, float loss) {
+        if (!ENABLED) {
+            return;
+        }
+        long wall = System.nanoTime() - epochStart;
+        long allocated = THREADS == null ? -1L : allocatedByTraining() - epochAllocated;
+        steps = Math.max(1, steps);
+        double seconds = wall / 1e9;
+
+        long[][] total = new long[PHASES.length][layerNames.length];
+        for (long[][] worker : nanos) {
+            for (int p = 0; p < PHASES.length; p++) {
+                for (int l = 0; l < layerNames.length; l++) {
+                    total[p][l] += worker[p][l];
+                }
+            }
+        }
+
+        System.out.printf("Epoch %d profile: %d steps, %d samples in %.2f s, %.0f samples/s, %s allocated per step by the training threads%n",
+                epoch + 1, steps, samples, seconds, samples / seconds,
+                allocated < 0 ? "n/a" : allocated / steps + " B");
+        if (nanos.length > 1) {
+            System.out.printf("  forward, loss and backward are summed over %d worker threads%n", nanos.length);
+        }
+        System.out.printf("  %-12s %-22s %12s %8s %10s%n", "phase", "layer", "total ms", "% wall", "us/step");
+        long accounted = 0;
+        for (int p = 0; p < PHASES.length; p++) {
+            boolean perLayer = p == FORWARD || p == LOSS || p == BACKWARD || p == UPDATE;
+            for (int l = 0; l < layerNames.length; l++) {
+                if (total[p][l] == 0) {
+                    continue;
+                }
+                accounted += total[p][l];
+                printRow(PHASES[p], perLayer ? layerNames[l] : "", total[p][l], wall, steps);
+            }
+        }
+        if (nanos.length == 1) {
+            printRow("other", "", Math.max(0, wall - accounted), wall, steps);
+        }
+
+        EpochEvent event = epochEvent;
+        epochEvent = null;
+        event.end();
+        if (event.shouldCommit()) {
+            event.epoch = epoch + 1;
+            event.steps = steps;
+            event.samples = samples;
+            event.samplesPerSecond = samples / seconds;
+            event.loss = loss;
+            event.forward = sum(total[FORWARD]);
+            event.backward = sum(total[BACKWARD]);
+            event.update = sum(total[UPDATE]);
+            event.allocatedPerStep = Math.max(0, allocated) / steps;
+            event.commit();
+        }
+    }
+
+    private static void printRow(String phase, String layer, long nanos, long wall, int steps) {
+        System.out.printf("  %-12s %-22s %12.1f %7.1f%% %10.1f%n",
+                phase, layer, nanos / 1e6, 100.0 * nanos / wall, nanos / 1e3 / steps);
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long v : values) {
+            sum += v;
+        }
+        return sum;
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+                return bean;
+            }
+        }
+        return null;
+    }
+
+    private static long allocatedByThisThread() {
+        return THREADS == null ? 0L : THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    // bytes allocated so far by the training thread and the step workers, the threads that live as long as the
+    // profiler. other threads (batch loader, inference pool) come and go, their bytes would be lost or counted
+    // from the wrong start. -1 if unknown
+    private long allocatedByTraining() {
+        if (THREADS == null) {
+            return -1L;
+        }
+        long total = THREADS.getCurrentThreadAllocatedBytes();
+        for (long id : workerThreadIds) {
+            total += Math.max(0, THREADS.getThreadAllocatedBytes(id));
+        }
+        return total;
+    }
+}
@@ -0,0 +1,346 @@
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+public class VectorKernels {
+
+    // SIMD versions of the hot loops, written with the jdk.incubator.vector API.
+    // only loaded when MatrixOperations.useVectorApi is on, every kernel has the same signature and
+    // result as the scalar loop it replaces (up to float rounding), tails are done with scalar code
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    // int8 kernels load as many bytes as there are int lanes and widen them to ints before multiplying
+    private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Byte> BYTE_SPECIES =
+            VectorSpecies.of(byte.class, VectorShape.forBitSize(INT_SPECIES.length() * Byte.SIZE));
+    private static final int INT_LANES = INT_SPECIES.length();
+
+    // c[c0..3 + j] += a(0..3, k) * b[bk + j] for the 4-row gemm register tile
+    static void gemmKernel4(float[] a, int aRow, int aStride, int aColStride, float[] b, int bOff, int bStride,
+                            float[] c, int cRow, int cStride,
+                            int kStart, int kEnd, int jStart, int jEnd) {
+        int a0 = aRow, a1 = a0 + aStride, a2 = a1 + aStride, a3 = a2 + aStride;
+        int c0 = cRow, c1 = c0 + cStride, c2 = c1 + cStride, c3 = c2 + cStride;
+        int vecEnd = jStart + SPECIES.loopBound(jEnd - jStart);
+
+        for (int k = kStart; k < kEnd; k++) {
+            int ak = k * aColStride;
+            float v0 = a[a0 + ak], v1 = a[a1 + ak], v2 = a[a2 + ak], v3 = a[a3 + ak];
+            FloatVector w0 = FloatVector.broadcast(SPECIES, v0), w1 = FloatVector.broadcast(SPECIES, v1);
+            FloatVector w2 = FloatVector.broadcast(SPECIES, v2), w3 = FloatVector.broadcast(SPECIES, v3);
+            int bk = bOff + k * bStride;
+            int j = jStart;
+            for (; j < vecEnd; j += LANES) {
+                FloatVector bj = FloatVector.fromArray(SPECIES, b, bk + j);
+                bj.fma(w0, FloatVector.fromArray(SPECIES, c, c0 + j)).intoArray(c, c0 + j);
+                bj.fma(w1, FloatVector.fromArray(SPECIES, c, c1 + j)).intoArray(c, c1 + j);
+                bj.fma(w2, FloatVector.fromArray(SPECIES, c, c2 + j)).intoArray(c, c2 + j);
+                bj.fma(w3, FloatVector.fromArray(SPECIES, c, c3 + j)).intoArray(c, c3 + j);
+            }
+            for (; j < jEnd; j++) {
+                float bj = b[bk + j];
+                c[c0 + j] += v0 * bj;
+                c[c1 + j] += v1 * bj;
+                c[c2 + j] += v2 * bj;
+                c[c3 + j] += v3 * bj;
+            }
+        }
+    }
+
+    static void gemmKernel1(float[] a, int aRow, int aColStride, float[] b, int bOff, int bStride,
+                            float[] c, int cRow,
+                            int kStart, int kEnd, int jStart, int jEnd) {
+        int vecEnd = jStart + SPECIES.loopBound(jEnd - jStart);
+        for (int k = kStart; k < kEnd; k++) {
+            float v = a[aRow + k * aColStride];
+            FloatVector w = FloatVector.broadcast(SPECIES, v);
+            int bk = bOff + k * bStride;
+            int j = jStart;
+            for (; j < vecEnd; j += LANES) {
+                FloatVector.fromArray(SPECIES, b, bk + j)
+                        .fma(w, FloatVector.fromArray(SPECIES, c, cRow + j))
+                        .intoArray(c, cRow + j);
+            }
+            for (; j < jEnd; j++) {
+                c[cRow + j] += v * b[bk + j];
+            }
+        }
+    }
+
+    // s[s0..3 + j] = sum_t x(0..3, t) * w[t * m + j] for the int8 gemm of QuantizedNetwork, x(r, t) is
+    // x[x0 + r * xStride + t] & mask (0xFF reads unsigned bytes). t where all four inputs are 0 are skipped
+    static void int8Kernel4(byte[] x, int x0, int xStride, int mask, byte[] w, int m, int k, int[] s, int s0) {
+        int x1 = x0 + xStride, x2 = x1 + xStride, x3 = x2 + xStride;
+        int s1 = s0 + m, s2 = s1 + m, s3 = s2 + m;
+        int vecEnd = INT_SPECIES.loopBound(m);
+        for (int t = 0; t < k; t++) {
+            int a0 = x[x0 + t] & mask, a1 = x[x1 + t] & mask, a2 = x[x2 + t] & mask, a3 = x[x3 + t] & mask;
+            if ((a0 | a1 | a2 | a3) == 0) {
+                continue;
+            }
+            int wt = t * m;
+            int j = 0;
+            for (; j < vecEnd; j += INT_LANES) {
+                IntVector wj = (IntVector) ByteVector.fromArray(BYTE_SPECIES, w, wt + j)
+                        .convertShape(VectorOperators.B2I, INT_SPECIES, 0);
+                IntVector.fromArray(INT_SPECIES, s, s0 + j).add(wj.mul(a0)).intoArray(s, s0 + j);
+                IntVector.fromArray(INT_SPECIES, s, s1 + j).add(wj.mul(a1)).intoArray(s, s1 + j);
+                IntVector.fromArray(INT_SPECIES, s, s2 + j).add(wj.mul(a2)).intoArray(s, s2 + j);
+                IntVector.fromArray(INT_SPECIES, s, s3 + j).add(wj.mul(a3)).intoArray(s, s3 + j);
+            }
+            for (; j < m; j++) {
+                int wj = w[wt + j];
+                s[s0 + j] += a0 * wj;
+                s[s1 + j] += a1 * wj;
+                s[s2 + j] += a2 * wj;
+                s[s3 + j] += a3 * wj;
+            }
+        }
+    }
+
+    // dot product of a[aOff .. aOff + n) and b[bOff .. bOff + n), used by the A * B^T kernel
+    static float dot(float[] a, int aOff, float[] b, int bOff, int n) {
+        int vecEnd = SPECIES.loopBound(n);
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int k = 0;
+        for (; k < vecEnd; k += LANES) {
+            acc = FloatVector.fromArray(SPECIES, a, aOff + k).fma(FloatVector.fromArray(SPECIES, b, bOff + k), acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; k < n; k++) {
+            sum += a[aOff + k] * b[bOff + k];
+        }
+        return sum;
+    }
+
+    // c(i..i+3, j) += dot(row i..i+3 of a, row of b) over [kStart, kEnd), the 4-row tile of the A * B^T kernel
+    static void dot4(float[] a, int aRow, int aStride, float[] b, int bRow, int kStart, int kEnd,
+                     float[] c, int cRow, int cStride) {
+        int a0 = aRow, a1 = a0 + aStride, a2 = a1 + aStride, a3 = a2 + aStride;
+        int vecEnd = kStart + SPECIES.loopBound(kEnd - kStart);
+        FloatVector s0 = FloatVector.zero(SPECIES), s1 = s0, s2 = s0, s3 = s0;
+        int k = kStart;
+        for (; k < vecEnd; k += LANES) {
+            FloatVector bk = FloatVector.fromArray(SPECIES, b, bRow + k);
+            s0 = FloatVector.fromArray(SPECIES, a, a0 + k).fma(bk, s0);
+            s1 = FloatVector.fromArray(SPECIES, a, a1 + k).fma(bk, s1);
+            s2 = FloatVector.fromArray(SPECIES, a, a2 + k).fma(bk, s2);
+            s3 = FloatVector.fromArray(SPECIES, a, a3 + k).fma(bk, s3);
+        }
+        float r0 = s0.reduceLanes(VectorOperators.ADD), r1 = s1.reduceLanes(VectorOperators.ADD);
+        float r2 = s2.reduceLanes(VectorOperators.ADD), r3 = s3.reduceLanes(VectorOperators.ADD);
+        for (; k < kEnd; k++) {
+            float bk = b[bRow + k];
+            r0 += a[a0 + k] * bk;
+            r1 += a[a1 + k] * bk;
+            r2 += a[a2 + k] * bk;
+            r3 += a[a3 + k] * bk;
+        }
+        c[cRow] += r0;
+        c[cRow + cStride] += r1;
+        c[cRow + 2 * cStride] += r2;
+        c[cRow + 3 * cStride] += r3;
+    }
+
+    // element-wise row ops: out[o + j] = x[xo + j] (op) y[yo + j] for j < n
+    static void add(float[] x, int xo, float[] y, int yo, float[] out, int o, int n) {
+        int vecEnd = SPECIES.loopBound(n);
+        int j = 0;
+        for (; j < vecEnd; j += LANES) {
+            FloatVector.fromArray(SPECIES, x, xo + j).add(FloatVector.fromArray(SPECIES, y, yo + j)).intoArray(out, o + j);
+        }
+        for (; j < n; j++) {
+            out[o + j] = x[xo + j] + y[yo + j];
+        }
+    }
+
+    static void subtract(float[] x, int xo, float[] y, int yo, float[] out, int o, int n) {
+        int vecEnd = SPECIES.loopBound(n);
+        int j = 0;
+        for (; j < vecEnd; j += LANES) {
+            FloatVector.fromArray(SPECIES, x, xo + j).sub(FloatVector.fromArray(SPECIES, y, yo + j)).intoArray(out, o + j);
+        }
+        for (; j < n; j++) {
+            out[o + j] = x[xo + j] - y[yo + j];
+        }
+    }
+
+    static void multiply(float[] x, int xo, float[] y, int yo, float[] out, int o, int n) {
+        int vecEnd = SPECIES.loopBound(n);
+        int j = 0;
+        for (; j < vecEnd; j += LANES) {
+            FloatVector.fromArray(SPECIES, x, xo + j).mul(FloatVector.fromArray(SPECIES, y, yo + j)).intoArray(out, o + j);
+        }
+        for (; j < n; j++) {
+            out[o + j] = x[xo + j] * y[yo + j];
+        }
+    }
+
+    static void scale(float[] x, int xo, float scalar, float[] out, int o, int n) {
+        int vecEnd = SPECIES.loopBound(n);
+        int j = 0;
+        for (; j < vecEnd; j += LANES) {
+            FloatVector.fromArray(SPECIES, x, xo + j).mul(scalar).intoArray(out, o + j);
+        }
+        for (; j < n; j++) {
+            out[o + j] = x[xo + j] * scalar;
+        }
+    }
+
+    // fused optimizer steps of Optimizer, see there for the rules. scale is -lr / batchSize
+    static void sgdStep(float[] w, int wo, float[] g, int go, int n, float scale) {
+        int vecEnd = SPECIES.loopBound(n);
+        int j = 0;
+        for (; j < vecEnd; j += LANES) {
+            FloatVector.fromArray(SPECIES, w, wo + j).add(FloatVector.fromArray(SPECIES, g, go + j).mul(scale)).intoArray(w, wo + j);
+        }
+        for (; j < n; j++) {
+            w[wo + j] += g[go + j] * scale;
+        }
+    }
+
+    // v = momentum * v + scale * g, w += v, or w += momentum * v + scale * g with nesterov
+    static void momentumStep(float[] w, int wo, float[] g, int go, float[] v, int vo, int n,
+                             float momentum, float scale, boolean nesterov) {
+        int vecEnd = SPECIES.loopBound(n);
+        int j = 0;
+        for (; j < vecEnd; j += LANES) {
+            FloatVector step = FloatVector.fromArray(SPECIES, g, go + j).mul(scale);
+            FloatVector vj = FloatVector.fromArray(SPECIES, v, vo + j).mul(momentum).add(step);
+            vj.intoArray(v, vo + j);
+            FloatVector wj = FloatVector.fromArray(SPECIES, w, wo + j);
+            (nesterov ? wj.add(vj.mul(momentum).add(step)) : wj.add(vj)).intoArray(w, wo + j);
+        }
+        for (; j < n; j++) {
+            float step = g[go + j] * scale;
+            float vj = v[vo + j] * momentum + step;
+            v[vo + j] = vj;
+            w[wo + j] += nesterov ? vj * momentum + step : vj;
+        }
+    }
+
+    static void rmsPropStep(float[] w, int wo, float[] g, int go, float[] s, int so, int n,
+                            float rho, float gradScale, float rate, float epsilon) {
+        float keep = 1.0f - rho;
+        int vecEnd = SPECIES.loopBound(n);
+        int j = 0;
+        for (; j < vecEnd; j += LANES) {
+            FloatVector gj = FloatVector.fromArray(SPECIES, g, go + j).mul(gradScale);
+            FloatVector ms = FloatVector.fromArray(SPECIES, s, so + j).mul(rho).add(gj.mul(gj).mul(keep));
+            ms.intoArray(s, so + j);
+            FloatVector.fromArray(SPECIES, w, wo + j).sub(gj.mul(rate).div(ms.sqrt().add(epsilon))).intoArray(w, wo + j);
+        }
+        for (; j < n; j++) {
+            float gj = g[go + j] * gradScale;
+            float ms = s[so + j] * rho + gj * gj * keep;
+            s[so + j] = ms;
+            w[wo + j] -= rate * gj / ((float) Math.sqrt(ms) + epsilon);
+        }
+    }
+
+    // adam with bias corrected rate and epsilon, decay is 1 without weight decay
+    static void adamStep(float[] w, int wo, float[] g, int go, float[] m, int mo, float[] v, int vo, int n,
+                         float beta1, float beta2, float gradScale, float rate, float epsilon, float decay) {
+        float keep1 = 1.0f - beta1, keep2 = 1.0f - beta2;
+        int vecEnd = SPECIES.loopBound(n);
+        int j = 0;
+        for (; j < vecEnd; j += LANES) {
+            FloatVector gj = FloatVector.fromArray(SPECIES, g, go + j).mul(gradScale);
+            FloatVector mj = FloatVector.fromArray(SPECIES, m, mo + j).mul(beta1).add(gj.mul(keep1));
+            FloatVector vj = FloatVector.fromArray(SPECIES, v, vo + j).mul(beta2).add(gj.mul(gj).mul(keep2));
+            mj.intoArray(m, mo + j);
+            vj.intoArray(v, vo + j);
+            FloatVector.fromArray(SPECIES, w, wo + j).mul(decay)
+                    .sub(mj.mul(rate).div(vj.sqrt().add(epsilon))).intoArray(w, wo + j);
+        }
+        for (; j < n; j++) {
+            float gj = g[go + j] * gradScale;
+            float mj = m[mo + j] * beta1 + gj * keep1;
+            float vj = v[vo + j] * beta2 + gj * gj * keep2;
+            m[mo + j] = mj;
+            v[vo + j] = vj;
+            w[wo + j] = w[wo + j] * decay - rate * mj / ((float) Math.sqrt(vj) + epsilon);
+        }
+    }
+
+    // out = z <= 0 ? z * alfa : z
+    static void leakyReLU(float[] z, int zo, float[] out, int o, int n, float alfa) {
+        int vecEnd = SPECIES.loopBound(n);
+        int j = 0;
+        for (; j < vecEnd; j += LANES) {
+            FloatVector v = FloatVector.fromArray(SPECIES, z, zo + j);
+            VectorMask<Float> negative = v.compare(VectorOperators.LE, 0f);
+            v.blend(v.mul(alfa), negative).intoArray(out, o + j);
+        }
+        for (; j < n; j++) {
+            out[o + j] = ActivationFunctions.LeakyReLU(z[zo + j]);
+        }
+    }
+
+    // out = z <= 0 ? alfa : 1
+    static void leakyReLUDerivative(float[] z, int zo, float[] out, int o, int n, float alfa) {
+        int vecEnd = SPECIES.loopBound(n);
+        FloatVector ones = FloatVector.broadcast(SPECIES, 1f);
+        int j = 0;
+        for (; j < vecEnd; j += LANES) {
+            VectorMask<Float> negative = FloatVector.fromArray(SPECIES, z, zo + j).compare(VectorOperators.LE, 0f);
+            ones.blend(alfa, negative).intoArray(out, o + j);
+        }
+        for (; j < n; j++) {
+            out[o + j] = Derivatives.D_LeakyReLU(z[zo + j]);
+        }
+    }
+
+    // out = g * (z <= 0 ? alfa : 1)
+    static void leakyReLUBackward(float[] z, int zo, float[] g, int go, float[] out, int o, int n, float alfa) {
+        int vecEnd = SPECIES.loopBound(n);
+        int j = 0;
+        for (; j < vecEnd; j += LANES) {
+            VectorMask<Float> negative = FloatVector.fromArray(SPECIES, z, zo + j).compare(VectorOperators.LE, 0f);
+            FloatVector gv = FloatVector.fromArray(SPECIES, g, go + j);
+            gv.blend(gv.mul(alfa), negative).intoArray(out, o + j);
+        }
+        for (; j < n; j++) {
+            out[o + j] = z[zo + j] <= 0 ? g[go + j] * alfa : g[go + j];
+        }
+    }
+
+    // one softmax row: max, exp(z - max) with sum, then normalization
+    static void softmaxRow(float[] z, int zo, float[] out, int o, int n) {
+        int vecEnd = SPECIES.loopBound(n);
+        int j = 0;
+
+        float maxLogit = Float.NEGATIVE_INFINITY;
+        if (vecEnd > 0) {
+            FloatVector max = FloatVector.broadcast(SPECIES, Float.NEGATIVE_INFINITY);
+            for (; j < vecEnd; j += LANES) {
+                max = max.max(FloatVector.fromArray(SPECIES, z, zo + j));
+            }
+            maxLogit = max.reduceLanes(VectorOperators.MAX);
+        }
+        for (; j < n; j++) {
+            maxLogit = Math.max(maxLogit, z[zo + j]);
+        }
+
+        float sumExp = 0f;
+        FloatVector sum = FloatVector.zero(SPECIES);
+        for (j = 0; j < vecEnd; j += LANES) {
+            FloatVector e = FloatVector.fromArray(SPECIES, z, zo + j).sub(maxLogit).lanewise(VectorOperators.EXP);
+            e.intoArray(out, o + j);
+            sum = sum.add(e);
+        }
+        sumExp += sum.reduceLanes(VectorOperators.ADD);
+        for (; j < n; j++) {
+            out[o + j] = (float) Math.exp(z[zo + j] - maxLogit);
+            sumExp += out[o + j];
+        }
+
+        scale(out, o, 1f / sumExp, out, o, n);
+    }
+}
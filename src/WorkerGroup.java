@@ -0,0 +1,110 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+public class WorkerGroup implements AutoCloseable {
+
+    // fixed set of threads that run one task on every worker and wait for all of them, for the data-parallel
+    // training step. the calling thread is worker 0, the others stay parked between runs. a run only writes a
+    // few volatile fields and unparks the threads, so unlike an ExecutorService (futures, queue nodes) it
+    // allocates nothing, a steady-state training step stays allocation-free with any number of threads
+
+    public interface Task {
+        void run(int worker);
+    }
+
+    private final Thread[] threads; // workers 1..size-1
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile Task task;
+    private volatile int generation; // incremented by every run, only written by the calling thread
+    private volatile Thread caller;
+    private volatile Throwable failure;
+    private volatile boolean closed;
+
+    public WorkerGroup(int size, String name) {
+        threads = new Thread[Math.max(1, size) - 1];
+        for (int i = 0; i < threads.length; i++) {
+            int worker = i + 1;
+            threads[i] = new Thread(() -> work(worker), name + "-" + worker);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    public int size() {
+        return threads.length + 1;
+    }
+
+    // ids of the threads of workers 1..size-1
+    public long[] threadIds() {
+        long[] ids = new long[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            ids[i] = threads[i].getId();
+        }
+        return ids;
+    }
+
+    // task.run(w) for every worker w, returns when all are done. a failure of any worker is rethrown
+    public void run(Task task) {
+        if (closed) {
+            throw new IllegalStateException("Worker group is closed");
+        }
+        this.task = task;
+        this.caller = Thread.currentThread();
+        failure = null;
+        pending.set(threads.length);
+        generation++;
+        for (Thread thread : threads) {
+            LockSupport.unpark(thread);
+        }
+
+        Throwable own = null;
+        try {
+            task.run(0);
+        } catch (Throwable e) {
+            own = e;
+        }
+        while (pending.get() > 0) {
+            LockSupport.park(this);
+        }
+        if (own == null) {
+            own = failure;
+        }
+        if (own instanceof Error) {
+            throw (Error) own;
+        }
+        if (own != null) {
+            throw new IllegalStateException("Training worker failed", own);
+        }
+    }
+
+    private void work(int worker) {
+        int seen = 0;
+        while (true) {
+            // park returns spuriously too, the generation tells whether there is a new run
+            while (generation == seen) {
+                if (closed) {
+                    return;
+                }
+                LockSupport.park(this);
+            }
+            seen = generation;
+            try {
+                task.run(worker);
+            } catch (Throwable e) {
+                failure = e;
+            }
+            if (pending.decrementAndGet() == 0) {
+                LockSupport.unpark(caller);
+            }
+        }
+    }
+
+    // the threads finish once they are idle
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread thread : threads) {
+            LockSupport.unpark(thread);
+        }
+    }
+}